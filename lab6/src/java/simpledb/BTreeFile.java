@@ -11,7 +11,14 @@ import simpledb.Predicate.Op;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
- * 
+ * <p>
+ * Searches take the locks on the root pointer and internal pages as short-term latches,
+ * crabbing down the tree: a page is released as soon as its child on the path is locked,
+ * so a transaction keeps only its locks on leaf pages and on the pages it changes.  An
+ * insert first finds its leaf that way; if the leaf is full, it finds it again holding
+ * write locks from the root pointer down to the lowest page that has room for one more
+ * entry, which are exactly the pages the split can change.
+ *
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
  * @see simpledb.BTreeHeaderPage#BTreeHeaderPage
@@ -24,6 +31,7 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private volatile boolean keyLocking = false;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -176,73 +184,271 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
-	 * 
+	 * Switch between locking leaf pages for the transaction (the default) and key-range
+	 * locking.  With key locking, a scan locks the keys it returns and the key after its
+	 * range, and holds its lock on a leaf page only while it reads it, so inserts into
+	 * other key ranges of the same leaf page do not wait for it.  Inserts and deletes
+	 * lock their key and the key after it.  Set this before any transaction uses the table.
+	 * @see KeyId
+	 */
+	public void setKeyLocking(boolean enabled) {
+		this.keyLocking = enabled;
+	}
+
+	/** @return true if transactions lock key ranges of this file rather than its leaf pages */
+	public boolean isKeyLocking() {
+		return keyLocking;
+	}
+
+	/**
+	 * Find and lock the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f, by latch crabbing: each internal page is
+	 * locked with READ_ONLY permission only until its child on the path is locked, and
+	 * the leaf node is locked with permission perm.  Pages the transaction had locked
+	 * already stay locked.
+	 *
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
-	 * 
+	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param latched - the pages locked by the current operation that it may release
+	 * @param parentId - the page above pid, to be unlatched once pid is locked, or null
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
-	 * 
+	 *
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-			Field f) throws DbException, TransactionAbortedException {
-		// some code goes here
-        if (pid.pgcateg() == BTreePageId.LEAF) {
-            return (BTreeLeafPage) this.getPage(tid, dirtypages, pid, perm);
-        } else {
-            // internal and page can not be empty
-            BTreePageId nextSearchId;
-            BTreeInternalPage searchPg = (BTreeInternalPage) this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-
-            BTreeEntry entry;
-            Iterator<BTreeEntry> it = searchPg.iterator();
-            if (it.hasNext()) {
-                entry = it.next();
-            } else {
-                throw new DbException("findLeafPage: InternalPage must contain at least one data");
-            }
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashSet<PageId> latched,
+			BTreePageId parentId, BTreePageId pid, Permissions perm, Field f)
+					throws DbException, TransactionAbortedException {
+		while (pid.pgcateg() != BTreePageId.LEAF) {
+			BTreeInternalPage searchPg = (BTreeInternalPage) latch(tid, dirtypages, latched, pid, Permissions.READ_ONLY);
+			if (parentId != null) {
+				unlatch(tid, dirtypages, latched, parentId);
+			}
+			parentId = pid;
+			pid = findChild(searchPg, f);
+		}
+		BTreeLeafPage leafPage = (BTreeLeafPage) latch(tid, dirtypages, latched, pid, perm);
+		if (parentId != null) {
+			unlatch(tid, dirtypages, latched, parentId);
+		}
+		return leafPage;
+	}
 
-            if (f == null) {
-                nextSearchId = entry.getLeftChild();
-            } else {
-                while (f.compare(Op.GREATER_THAN, entry.getKey()) && it.hasNext()) {
-                    entry = it.next();
-                }
-
-                if (f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())) {
-                    nextSearchId = entry.getLeftChild();
-                } else {
-                	// greater than the last one
-                    nextSearchId = entry.getRightChild();
-                }
-            }
-            return findLeafPage(tid, dirtypages, nextSearchId, perm, f);
-        }
+	/**
+	 * Return the child of an internal page that leads to the left-most leaf page
+	 * possibly containing the key field f, or to the left-most leaf page if f is null.
+	 *
+	 * @param page - the internal page
+	 * @param f - the field to search for
+	 * @return the id of the child to follow
+	 * @throws DbException if the page has no entries
+	 */
+	private BTreePageId findChild(BTreeInternalPage page, Field f) throws DbException {
+		// internal and page can not be empty
+		BTreeEntry entry;
+		Iterator<BTreeEntry> it = page.iterator();
+		if (it.hasNext()) {
+			entry = it.next();
+		} else {
+			throw new DbException("findLeafPage: InternalPage must contain at least one data");
+		}
+
+		if (f == null) {
+			return entry.getLeftChild();
+		}
+		while (f.compare(Op.GREATER_THAN, entry.getKey()) && it.hasNext()) {
+			entry = it.next();
+		}
+
+		if (f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())) {
+			return entry.getLeftChild();
+		} else {
+			// greater than the last one
+			return entry.getRightChild();
+		}
 	}
-	
+
+	/**
+	 * Find and lock the leaf page corresponding to the key field f for an insert that has
+	 * to split it.  The path is locked with READ_WRITE permission from the root pointer down,
+	 * and the locks on the pages above a page with an empty slot are released as soon as that
+	 * page is locked: the split cannot reach past it.  The pages that stay locked are the ones
+	 * the split changes.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param latched - the pages locked by the current operation that it may release
+	 * @param f - the field to search for
+	 * @return the leaf page, which may have an empty slot again
+	 * @see #splitLeafPage(TransactionId, HashMap, BTreeLeafPage, Field)
+	 *
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	private BTreeLeafPage findLeafPageToSplit(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			HashSet<PageId> latched, Field f) throws DbException, TransactionAbortedException {
+		ArrayList<BTreePageId> ancestors = new ArrayList<BTreePageId>();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) latch(tid, dirtypages, latched, rootPtrId, Permissions.READ_WRITE);
+		ancestors.add(rootPtrId);
+		BTreePageId pid = rootPtr.getRootId();
+		while (true) {
+			BTreePage page = (BTreePage) latch(tid, dirtypages, latched, pid, Permissions.READ_WRITE);
+			if (page.getNumEmptySlots() > 0) {
+				// a split below this page ends here
+				for (BTreePageId ancestor : ancestors) {
+					unlatch(tid, dirtypages, latched, ancestor);
+				}
+				ancestors.clear();
+			}
+			if (pid.pgcateg() == BTreePageId.LEAF) {
+				return (BTreeLeafPage) page;
+			}
+			ancestors.add(pid);
+			pid = findChild((BTreeInternalPage) page, f);
+		}
+	}
+
+	/**
+	 * Find the smallest key greater than f, starting at the given leaf page and following
+	 * right sibling pointers.  The siblings are latched only while they are read.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the leaf page where f belongs
+	 * @param f - the key
+	 * @return the key after f, or null if f is greater than or equal to every key in the file
+	 *
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	private Field nextKey(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field f)
+			throws DbException, TransactionAbortedException {
+		HashSet<PageId> latched = new HashSet<PageId>();
+		while(true) {
+			Iterator<Tuple> it = page.iterator();
+			while(it.hasNext()) {
+				Field key = it.next().getField(keyField);
+				if(key.compare(Op.GREATER_THAN, f)) {
+					unlatch(tid, dirtypages, latched, page.getId());
+					return key;
+				}
+			}
+			BTreePageId nextId = page.getRightSiblingId();
+			if(nextId == null) {
+				unlatch(tid, dirtypages, latched, page.getId());
+				return null;
+			}
+			BTreeLeafPage next = (BTreeLeafPage) latch(tid, dirtypages, latched, nextId, Permissions.READ_ONLY);
+			unlatch(tid, dirtypages, latched, page.getId());
+			page = next;
+		}
+	}
+
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
-	 * 
+	 * Used by the BTreeFile iterators, which lock the leaf page with READ_ONLY permission.
+	 * The search starts at the root pointer page, which is latched like the internal pages.
+	 * With key locking the leaf page is latched as well, and left in latched for the iterator
+	 * to release.
+	 * @see #findLeafPage(TransactionId, HashMap, HashSet, BTreePageId, BTreePageId, Permissions, Field)
+	 *
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
-	 * @param perm - the permissions with which to lock the leaf page
+	 * @param latched - the pages locked by the iterator that it releases
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
-	 * 
+	 *
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f) 
+	BTreeLeafPage findLeafPage(TransactionId tid, HashSet<PageId> latched, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) latch(tid, dirtypages, latched, rootPtrId, Permissions.READ_ONLY);
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, latched, rootPtrId, rootPtr.getRootId(), 
+				Permissions.READ_ONLY, f);
+		if(!keyLocking) {
+			// the lock on the leaf page is held until the transaction ends
+			latched.clear();
+		}
+		return leafPage;
+	}
+
+	/**
+	 * Move an iterator to the right sibling of its leaf page.  With key locking the iterator's
+	 * lock on the page is released once the sibling is locked.
+	 *
+	 * @param tid - the transaction id
+	 * @param latched - the pages locked by the iterator that it releases
+	 * @param page - the iterator's current leaf page
+	 * @return the right sibling, or null if page is the last leaf page
+	 *
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	BTreeLeafPage nextLeafPage(TransactionId tid, HashSet<PageId> latched, BTreeLeafPage page)
+			throws DbException, TransactionAbortedException {
+		BTreePageId nextId = page.getRightSiblingId();
+		if(nextId == null) {
+			return null;
+		}
+		if(!keyLocking) {
+			return (BTreeLeafPage) Database.getBufferPool().getPage(tid, nextId, Permissions.READ_ONLY);
+		}
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreeLeafPage next = (BTreeLeafPage) latch(tid, dirtypages, latched, nextId, Permissions.READ_ONLY);
+		unlatch(tid, dirtypages, latched, page.getId());
+		return next;
+	}
+
+	/**
+	 * With key locking, lock a key an iterator returns.
+	 *
+	 * @param tid - the transaction id
+	 * @param key - the key of the tuple returned
+	 *
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	void lockScannedKey(TransactionId tid, Field key) throws DbException, TransactionAbortedException {
+		if(keyLocking) {
+			Database.getBufferPool().lockKey(tid, new KeyId(tableid, key), Permissions.READ_ONLY);
+		}
+	}
+
+	/**
+	 * End an iterator's scan.  With key locking, the key after the range it returned is locked,
+	 * so that nothing can be inserted between the last key it returned and that key, and the
+	 * iterator's lock on its leaf page is released.
+	 *
+	 * @param tid - the transaction id
+	 * @param latched - the pages locked by the iterator that it releases
+	 * @param next - the first key after the range, or null if the scan reached the end of the file
+	 *
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	void endScan(TransactionId tid, HashSet<PageId> latched, Field next) 
+			throws DbException, TransactionAbortedException {
+		if(keyLocking) {
+			Database.getBufferPool().lockKey(tid, new KeyId(tableid, next), Permissions.READ_ONLY);
+		}
+		releaseLatched(tid, latched);
+	}
+
+	/**
+	 * Release the leaf page locks an iterator holds only while it reads the pages.
+	 *
+	 * @param tid - the transaction id
+	 * @param latched - the pages locked by the iterator that it releases
+	 */
+	void releaseLatched(TransactionId tid, HashSet<PageId> latched) {
+		for(PageId pid : latched) {
+			Database.getBufferPool().releasePage(tid, pid);
+		}
+		latched.clear();
 	}
 
 	/**
@@ -564,12 +770,16 @@ public class BTreeFile implements DbFile {
 	private void updateParentPointer(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child) 
 			throws DbException, IOException, TransactionAbortedException {
 
-		BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
+		HashSet<PageId> latched = new HashSet<PageId>();
+		BTreePage p = (BTreePage) latch(tid, dirtypages, latched, child, Permissions.READ_ONLY);
 
 		if(!p.getParentId().equals(pid)) {
 			p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
 			p.setParentId(pid);
 		}
+		else {
+			unlatch(tid, dirtypages, latched, child);
+		}
 
 	}
 	
@@ -633,6 +843,50 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Fetch a page like getPage, remembering in latched whether the lock was taken by the
+	 * current operation, which may then release it with unlatch.  Locks the transaction held
+	 * before, and pages already in dirtypages, are never released early.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param latched - the pages locked by the current operation that it may release
+	 * @param pid - the id of the requested page
+	 * @param perm - the requested permissions on the page
+	 * @return the requested page
+	 * @see #unlatch(TransactionId, HashMap, HashSet, PageId)
+	 *
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	private Page latch(TransactionId tid, HashMap<PageId, Page> dirtypages, HashSet<PageId> latched,
+			BTreePageId pid, Permissions perm) throws DbException, TransactionAbortedException {
+		if(!dirtypages.containsKey(pid) && !Database.getBufferPool().holdsLock(tid, pid)) {
+			latched.add(pid);
+		}
+		return getPage(tid, dirtypages, pid, perm);
+	}
+
+	/**
+	 * Release the lock on a page the current operation latched and has not changed.  Under
+	 * strict two-phase locking every lock is kept until the transaction ends, but the pages
+	 * of a B+ tree that are only passed through on the way to a leaf do not hold any data
+	 * the transaction read, so holding them would only serialize other transactions on the
+	 * root.  Does nothing if the transaction held the lock before the operation.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param latched - the pages locked by the current operation that it may release
+	 * @param pid - the id of the page to release
+	 */
+	private void unlatch(TransactionId tid, HashMap<PageId, Page> dirtypages, HashSet<PageId> latched,
+			PageId pid) {
+		if(latched.remove(pid)) {
+			dirtypages.remove(pid);
+			Database.getBufferPool().releasePage(tid, pid);
+		}
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -646,30 +900,108 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		boolean done = false;
+		try {
+			insertTuple(tid, dirtypages, t);
+			done = true;
+		} finally {
+			if(!done) {
+				markUnfinished(tid, dirtypages);
+			}
+		}
+
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.addAll(dirtypages.values());
+		return dirtyPagesArr;
+	}
+
+	/**
+	 * Mark the pages an operation has locked for writing as dirty when it fails
+	 * in the middle, e.g. because the transaction was aborted while it waited for
+	 * a lock.  A split or a merge may have changed some of them already, and an
+	 * abort only discards dirty pages.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages locked for writing by the operation
+	 */
+	private void markUnfinished(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+		}
+	}
+
+	// insert t, adding the pages it changes to dirtypages
+	private void insertTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		HashSet<PageId> latched = new HashSet<PageId>();
 
 		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages, latched);
+		BTreePageId rootPtrId = rootPtr.getId();
 		BTreePageId rootId = rootPtr.getRootId();
 
 		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
 			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
 			rootPtr.setRootId(rootId);
+			latched.remove(rootPtrId);
 		}
 
 		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// holding no locks on the internal pages.  If the leaf page has no more 
+		// slots available, find it again with the pages a split changes locked,
+		// and split it
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, latched, rootPtrId, rootId, 
+				Permissions.READ_WRITE, t.getField(keyField));
+
+		// with key locking, lock the new key, and the key after it until the new key
+		// is in place, so that no scan has locked the gap it goes into.  A scan that
+		// holds one of them may need the leaf page, so wait for them without it and
+		// then find the leaf page again
+		KeyId nextKeyId = null;
+		while(keyLocking) {
+			BufferPool bp = Database.getBufferPool();
+			KeyId kid = new KeyId(tableid, t.getField(keyField));
+			KeyId next = new KeyId(tableid, nextKey(tid, dirtypages, leafPage, t.getField(keyField)));
+			boolean heldNext = bp.holdsKeyLock(tid, next);
+			if(!latched.contains(leafPage.getId())) {
+				// the transaction held the leaf page before: keep it while waiting
+				bp.lockKey(tid, kid, Permissions.READ_WRITE);
+				bp.lockKey(tid, next, Permissions.READ_WRITE);
+			}
+			else if(!bp.tryLockKey(tid, kid, Permissions.READ_WRITE)
+					|| !bp.tryLockKey(tid, next, Permissions.READ_WRITE)) {
+				unlatch(tid, dirtypages, latched, leafPage.getId());
+				bp.lockKey(tid, kid, Permissions.READ_WRITE);
+				bp.lockKey(tid, next, Permissions.READ_WRITE);
+				if(!heldNext) {
+					// the key after the new one may have changed meanwhile
+					bp.releaseKey(tid, next);
+				}
+				rootPtr = getRootPtrPage(tid, dirtypages, latched);
+				leafPage = findLeafPage(tid, dirtypages, latched, rootPtrId, rootPtr.getRootId(), 
+						Permissions.READ_WRITE, t.getField(keyField));
+				continue;
+			}
+			if(!heldNext) {
+				nextKeyId = next;
+			}
+			break;
+		}
+
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			unlatch(tid, dirtypages, latched, leafPage.getId());
+			leafPage = findLeafPageToSplit(tid, dirtypages, latched, t.getField(keyField));
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+			}
 		}
 
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
-
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
+		if(nextKeyId != null) {
+			Database.getBufferPool().releaseKey(tid, nextKeyId);
+		}
 	}
 	
 	/**
@@ -1172,10 +1504,60 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		boolean done = false;
+		try {
+			deleteTuple(tid, dirtypages, t);
+			done = true;
+		} finally {
+			if(!done) {
+				markUnfinished(tid, dirtypages);
+			}
+		}
 
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.addAll(dirtypages.values());
+		return dirtyPagesArr;
+	}
+
+	// delete t, adding the pages it changes to dirtypages
+	private void deleteTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(), 
 				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+		HashSet<PageId> latched = new HashSet<PageId>();
+		BTreeLeafPage page = (BTreeLeafPage) latch(tid, dirtypages, latched, pageId, Permissions.READ_WRITE);
+
+		// with key locking, lock the key and the key after it: a scan that passes
+		// the deleted key's place waits on the latter until the delete commits.
+		// As for inserts, a scan that holds one of them may need the leaf page,
+		// so wait for them without it and then find the tuple again
+		while(keyLocking) {
+			BufferPool bp = Database.getBufferPool();
+			Field key = t.getField(keyField);
+			if(!holdsTuple(page, t)) {
+				// the scan that read t did not keep its leaf page locked, and an insert
+				// has moved t since: find it again by its key
+				unlatch(tid, dirtypages, latched, page.getId());
+				page = findTuple(tid, dirtypages, latched, t);
+			}
+			KeyId kid = new KeyId(tableid, key);
+			KeyId next = new KeyId(tableid, nextKey(tid, dirtypages, page, key));
+			if(!latched.contains(page.getId())) {
+				// the transaction held the leaf page before: keep it while waiting
+				bp.lockKey(tid, kid, Permissions.READ_WRITE);
+				bp.lockKey(tid, next, Permissions.READ_WRITE);
+			}
+			else if(!bp.tryLockKey(tid, kid, Permissions.READ_WRITE)
+					|| !bp.tryLockKey(tid, next, Permissions.READ_WRITE)) {
+				unlatch(tid, dirtypages, latched, page.getId());
+				bp.lockKey(tid, kid, Permissions.READ_WRITE);
+				bp.lockKey(tid, next, Permissions.READ_WRITE);
+				// t may have moved meanwhile, and the key after it may have changed
+				page = findTuple(tid, dirtypages, latched, t);
+				continue;
+			}
+			break;
+		}
 		page.deleteTuple(t);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
@@ -1184,24 +1566,79 @@ public class BTreeFile implements DbFile {
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
 			handleMinOccupancyPage(tid, dirtypages, page);
 		}
+	}
 
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
+	// whether the slot of page that t's record id names holds a tuple equal to t
+	private boolean holdsTuple(BTreeLeafPage page, Tuple t) {
+		int slot = t.getRecordId().tupleno();
+		return slot < page.getMaxTuples() && page.isSlotUsed(slot) && sameTuple(page.getTuple(slot), t);
+	}
+
+	private static boolean sameTuple(Tuple t1, Tuple t2) {
+		int numFields = t1.getTupleDesc().numFields();
+		for(int i = 0; i < numFields; i++) {
+			if(!t1.getField(i).equals(t2.getField(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Find the leaf page holding a tuple equal to t, lock it for writing, and set the
+	 * record id of t to the tuple's place in it.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param latched - the pages locked by the current operation that it may release
+	 * @param t - the tuple to find
+	 * @return the leaf page holding t
+	 * @throws DbException if no tuple of the file is equal to t
+	 */
+	private BTreeLeafPage findTuple(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			HashSet<PageId> latched, Tuple t) throws DbException, IOException, TransactionAbortedException {
+		Field key = t.getField(keyField);
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages, latched);
+		BTreeLeafPage page = findLeafPage(tid, dirtypages, latched, rootPtr.getId(), rootPtr.getRootId(),
+				Permissions.READ_WRITE, key);
+		while(true) {
+			for(int i = 0; i < page.getMaxTuples(); i++) {
+				if(!page.isSlotUsed(i)) {
+					continue;
+				}
+				Tuple other = page.getTuple(i);
+				if(other.getField(keyField).compare(Op.GREATER_THAN, key)) {
+					throw new DbException("tried to delete tuple that is not in the file");
+				}
+				if(sameTuple(other, t)) {
+					t.setRecordId(new RecordId(page.getId(), i));
+					return page;
+				}
+			}
+			BTreePageId nextId = page.getRightSiblingId();
+			if(nextId == null) {
+				throw new DbException("tried to delete tuple that is not in the file");
+			}
+			BTreeLeafPage next = (BTreeLeafPage) latch(tid, dirtypages, latched, nextId, Permissions.READ_WRITE);
+			unlatch(tid, dirtypages, latched, page.getId());
+			page = next;
+		}
 	}
 
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
-	 * if necessary.
+	 * if necessary.  The lock is remembered in latched if the current operation may release it.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages 
+	 * @param latched - the pages locked by the current operation that it may release
 	 * @return the root pointer page
 	 * @throws DbException
 	 * @throws IOException
 	 * @throws TransactionAbortedException
 	 */
-	private BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+	private BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
+			HashSet<PageId> latched) throws DbException, IOException, TransactionAbortedException {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
@@ -1216,7 +1653,7 @@ public class BTreeFile implements DbFile {
 		}
 
 		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		return (BTreeRootPtrPage) latch(tid, dirtypages, latched, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
 	/**
@@ -1234,8 +1671,10 @@ public class BTreeFile implements DbFile {
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages) 
 			throws DbException, IOException, TransactionAbortedException {
 		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		HashSet<PageId> latched = new HashSet<PageId>();
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages, latched);
 		BTreePageId headerId = rootPtr.getHeaderId();
+		unlatch(tid, dirtypages, latched, rootPtr.getId());
 		int emptyPageNo = 0;
 
 		if(headerId != null) {
@@ -1352,8 +1791,12 @@ public class BTreeFile implements DbFile {
 
 		// otherwise, get a read lock on the root pointer page and use it to locate 
 		// the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		HashSet<PageId> latched = new HashSet<PageId>();
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages, latched);
 		BTreePageId headerId = rootPtr.getHeaderId();
+		if(headerId != null) {
+			unlatch(tid, dirtypages, latched, rootPtr.getId());
+		}
 		BTreePageId prevId = null;
 		int headerPageCount = 0;
 
@@ -1435,6 +1878,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// the leaf page locks to release when the iterator moves on
+	HashSet<PageId> latched = new HashSet<PageId>();
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1453,10 +1898,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, latched, null);
 		it = curp.iterator();
 	}
 
@@ -1472,13 +1914,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			it = null;
 
 		while (it == null && curp != null) {
-			BTreePageId nextp = curp.getRightSiblingId();
-			if(nextp == null) {
-				curp = null;
+			curp = f.nextLeafPage(tid, latched, curp);
+			if(curp == null) {
+				f.endScan(tid, latched, null);
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1487,7 +1927,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 		if (it == null)
 			return null;
-		return it.next();
+		Tuple t = it.next();
+		f.lockScannedKey(tid, t.getField(f.keyField()));
+		return t;
 	}
 
 	/**
@@ -1503,6 +1945,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		f.releaseLatched(tid, latched);
 		it = null;
 		curp = null;
 	}
@@ -1516,6 +1959,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// the leaf page locks to release when the iterator moves on
+	HashSet<PageId> latched = new HashSet<PageId>();
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1538,15 +1983,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, latched, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, latched, null);
 		}
 		it = curp.iterator();
 	}
@@ -1564,30 +2006,36 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				Field key = t.getField(f.keyField());
+				if (key.compare(ipred.getOp(), ipred.getField())) {
+					f.lockScannedKey(tid, key);
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
 					// if the predicate was not satisfied and the operation is less than, we have
 					// hit the end
+					f.endScan(tid, latched, key);
+					it = null;
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						key.compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
+					f.endScan(tid, latched, key);
+					it = null;
 					return null;
 				}
 			}
 
-			BTreePageId nextp = curp.getRightSiblingId();
+			curp = f.nextLeafPage(tid, latched, curp);
 			// if there are no more pages to the right, end the iteration
-			if(nextp == null) {
+			if(curp == null) {
+				f.endScan(tid, latched, null);
+				it = null;
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
 				it = curp.iterator();
 			}
 		}
@@ -1608,6 +2056,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		f.releaseLatched(tid, latched);
 		it = null;
 	}
 }
@@ -613,6 +613,7 @@ public class BTreeUtility {
 						synchronized(slock) {
 							found = true;
 						}
+						break;
 					}
 				}
 
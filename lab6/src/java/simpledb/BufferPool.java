@@ -3,8 +3,14 @@ package simpledb;
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -14,247 +20,395 @@ import java.util.concurrent.ThreadFactory;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The cached pages are partitioned into shards by PageId.  Each shard has
+ * its own latch (its monitor) and its own replacement policy, so page
+ * fetches on different shards never contend.  The capacity of the pool is
+ * shared by all shards.
+ * <p>
+ * By default the pool is NO-STEAL/FORCE.  In STEAL/NO-FORCE mode a
+ * transaction may evict its own dirty pages (after logging them), and
+ * commit only logs the pages it dirtied; the pages themselves are written
+ * later by eviction, checkpoints or a background page cleaner, each time
+ * after forcing the log records that cover them.
+ * <p>
+ * HeapFiles with row locking change pages in place under row locks, so
+ * several transactions may have changes on one page.  Every change is
+ * logged as it is made, and the page is written like a committed one,
+ * after forcing its records.  Pages that a transaction holds an intention
+ * lock to change rows on are not evicted, and an aborting transaction
+ * undoes its row changes in the pool.
+ * <p>
+ * In multi-version mode the pool also keeps the committed images of pages
+ * in a VersionStore, so that snapshot transactions read the database as of
+ * their start without taking locks.  Whenever a running transaction's
+ * dirty page is logged or written, the committed image it replaces is
+ * stashed, and at commit the replaced images become versions for the
+ * snapshots that started earlier.
+ * <p>
+ * Every page changed through insertTuple or deleteTuple gets a new version
+ * number when its transaction finishes.  Optimistic transactions read
+ * committed images without locks, remember the versions they read, and
+ * buffer their writes; {@link #validate} checks the versions and applies
+ * the writes under ordinary locks.
  * 
  * @Threadsafe, all fields are final
  */
 
-class LockManager {
-    enum LockType {
-        SLock, XLock
-    }
+public class BufferPool {
+    /** Bytes per page, including header. */
+    private static final int PAGE_SIZE = 4096; // 4096
+
+    private static int pageSize = PAGE_SIZE;
+    
+    /** Default number of pages passed to the constructor. This is used by
+    other classes. BufferPool should use the numPages argument to the
+    constructor instead. */
+    public static final int DEFAULT_PAGES = 500;
 
-    class ObjLock {
-        // boolean blocked;
-        LockType type;
-        PageId obj;
-        ArrayList<TransactionId> holders;
+    /** Scans over tables larger than capacity / SCAN_RING_DIVISOR pages
+    use a private ScanRing instead of the shared pool. */
+    public static final int SCAN_RING_DIVISOR = 4;
 
-        /*
-        public boolean isBlocked() {
-            return blocked;
-        }
-        public void setBlocked(boolean blocked) {
-            this.blocked = blocked;
-        }
-        */
+    /** Replacement policy used by the single-argument constructor. */
+    public static final ReplacementPolicy.Type DEFAULT_POLICY = ReplacementPolicy.Type.CLOCK;
 
-        public ObjLock(LockType t, PageId obj, ArrayList<TransactionId> holders) {
-            // this.blocked = false;
-            this.type = t;
-            this.obj = obj;
-            this.holders = holders;
-        }
+    /** Upper bound on the default number of shards. */
+    public static final int MAX_SHARDS = 16;
+    // the default shard count gives each shard at least this many pages
+    private static final int MIN_PAGES_PER_SHARD = 32;
 
-        public void setType(LockType type) {
-            this.type = type;
-        }
+    /**
+     * One partition of the pool.  Lookups may read the page map without the
+     * latch; installing or removing a page, every call into the policy and
+     * all access to the in-flight loads happen while holding the shard's
+     * monitor.
+     */
+    private static class Shard {
+        // page buffer; PageId -> page
+        final ConcurrentHashMap<PageId, Page> pages;
+        // pages being read from disk; PageId -> pending page
+        final HashMap<PageId, CompletableFuture<Page>> loading;
+        final ReplacementPolicy policy;
 
-        public LockType getType() {
-            return type;
+        Shard(ReplacementPolicy policy) {
+            this.pages = new ConcurrentHashMap<PageId, Page>();
+            this.loading = new HashMap<PageId, CompletableFuture<Page>>();
+            this.policy = policy;
         }
+    }
+
+    private final Shard[] shards;
+    private final int capacity;
+    // number of cached pages over all shards, plus frames reserved by loads
+    private final AtomicInteger numCached = new AtomicInteger(0);
+
+    private volatile boolean scanRingsEnabled = true;
+
+    /** How often the page cleaner wakes up, in milliseconds. */
+    public static final int CLEANER_INTERVAL_MS = 100;
+    /** Maximum number of pages the page cleaner writes per round. */
+    public static final int CLEANER_BATCH_PAGES = 32;
+
+    private volatile boolean stealNoForce = false;
+    // committed changes (NO-FORCE) and row changes that are not on disk
+    // yet; PageId -> log offset that must be forced before the page may be
+    // written
+    private final ConcurrentHashMap<PageId, Long> pendingWrites = new ConcurrentHashMap<PageId, Long>();
+
+    // a change to one slot, made under a row lock
+    private static class TupleChange {
+        final TransactionId tid;
+        final HeapPageId pid;
+        final int slot;
+        final Tuple before;
+        final Tuple after;
 
-        public PageId getObj() {
-            return obj;
+        TupleChange(TransactionId tid, HeapPageId pid, int slot, Tuple before, Tuple after) {
+            this.tid = tid;
+            this.pid = pid;
+            this.slot = slot;
+            this.before = before;
+            this.after = after;
         }
+    }
+    // the row changes of each running transaction, oldest first
+    private final ConcurrentHashMap<TransactionId, ArrayList<TupleChange>> tupleChanges = new ConcurrentHashMap<>();
+
+    private volatile boolean multiVersion = false;
+    private final VersionStore versions = new VersionStore();
+    // pages whose committed image a running transaction stashed
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> writtenBy = new ConcurrentHashMap<>();
+    // multi-version mode: the row changes on each page that have not
+    // committed, oldest first; guarded by the page's latch
+    private final ConcurrentHashMap<PageId, ArrayList<TupleChange>> rowChanges = new ConcurrentHashMap<>();
+    // PageId -> number of transactions that committed after changing the page,
+    // or aborted after writing it to disk with their changes
+    private final ConcurrentHashMap<PageId, Long> pageVersions = new ConcurrentHashMap<PageId, Long>();
+    // pages each running transaction changed through insertTuple or deleteTuple
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> changedBy = new ConcurrentHashMap<>();
+    // pages each running transaction wrote to disk with its changes in them
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> flushedBy = new ConcurrentHashMap<>();
+    // heap pages whose last slot each running transaction filled
+    private final ConcurrentHashMap<TransactionId, Set<HeapPageId>> filledBy = new ConcurrentHashMap<>();
+    private final AtomicLong validationFailures = new AtomicLong(0);
 
-        public ArrayList<TransactionId> getHolders() {
-            return holders;
+    // the image of a cached page that optimistic transactions read at a version
+    private static class ReadImage {
+        final long version;
+        final Page image;
+
+        ReadImage(long version, Page image) {
+            this.version = version;
+            this.image = image;
         }
+    }
+    // shared by optimistic readers until the page changes or leaves the pool
+    private final ConcurrentHashMap<PageId, ReadImage> readImages = new ConcurrentHashMap<>();
+    private PageCleaner cleaner; // protected by this
+    // the last write-back the page cleaner failed, until flushAllPages
+    // reports it
+    private final AtomicReference<IOException> cleanerFailure = new AtomicReference<>();
 
-        public boolean tryUpgradeLock(TransactionId tid) {
-            if (type == LockType.SLock && holders.size() == 1 && holders.get(0).equals(tid)) {
-                type = LockType.XLock;
-                return true;
-            }
-            return false;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0);
+
+    private LockManager lockMgr;
+    private static int TRANSATION_FACTOR = 2;
+    // deadlocks are detected; the timeout is a backstop
+    private static int DEFAUT_MAXTIMEOUT = 5000;
+    // int size;
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     */
+    public BufferPool(int numPages) {
+        this(numPages, DEFAULT_POLICY);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and replaces
+     * them according to the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyType the page replacement policy to use.
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Type policyType) {
+        this(numPages, policyType, defaultShards(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages in numShards
+     * independently latched partitions.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyType the page replacement policy each shard uses.
+     * @param numShards the number of partitions.
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Type policyType, int numShards) {
+        // some code goes here
+        if (numShards < 1) {
+            throw new IllegalArgumentException("BufferPool: numShards must be positive");
         }
+        this.capacity = numPages;
+        this.shards = new Shard[numShards];
+        int shardPages = (numPages + numShards - 1) / numShards;
+        for (int i = 0; i < numShards; i++) {
+            shards[i] = new Shard(policyType.create(shardPages));
+        }
+        this.lockMgr = new LockManager(numPages, TRANSATION_FACTOR * numPages);
+    }
 
-        public TransactionId addHolder(TransactionId tid) {
-            if (type == LockType.SLock) {
-                if (!holders.contains(tid)) {
-                    holders.add(tid);
-                }
-                return tid;
+    /**
+     * Switch between NO-STEAL/FORCE (the default) and STEAL/NO-FORCE
+     * buffer management.  Enabling STEAL/NO-FORCE starts the background
+     * page cleaner; disabling it stops the cleaner and writes out all
+     * committed pages it had not written yet.
+     */
+    public synchronized void setStealNoForce(boolean enabled) throws IOException {
+        if (enabled == stealNoForce) {
+            return;
+        }
+        stealNoForce = enabled;
+        if (enabled) {
+            cleaner = new PageCleaner();
+            cleaner.start();
+        } else {
+            cleaner.shutdown();
+            cleaner = null;
+            for (PageId pid : pendingWrites.keySet()) {
+                flushPage(pid);
             }
-            return null;
         }
     }
 
-    private ConcurrentHashMap<PageId, ObjLock> lockTable;
-    private ConcurrentHashMap<TransactionId, ArrayList<PageId>> transactionTable;
+    /** @return true if the pool runs in STEAL/NO-FORCE mode */
+    public boolean isStealNoForce() {
+        return stealNoForce;
+    }
 
-    public LockManager(int lockTabCap, int transTabCap) {
-        this.lockTable = new ConcurrentHashMap<>(lockTabCap);
-        this.transactionTable = new ConcurrentHashMap<>(transTabCap);
+    /**
+     * Turn multi-version mode on or off.  Snapshot transactions need it;
+     * set it before any transaction runs.
+     */
+    public void setMultiVersion(boolean enabled) {
+        multiVersion = enabled;
     }
 
-    public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
-        ArrayList<PageId> lockList = getLockList(tid);
-        return lockList != null && lockList.contains(pid);
+    /** @return true if the pool keeps page versions for snapshot transactions */
+    public boolean isMultiVersion() {
+        return multiVersion;
     }
 
-    private synchronized void block(PageId what, long start, long timeout)
-            throws TransactionAbortedException {
-        // activate blocking
-        // lockTable.get(what).setBlocked(true);
+    /** @return the number of old page versions kept for running snapshots */
+    public int getNumPageVersions() {
+        return versions.getNumVersions();
+    }
 
-        if (System.currentTimeMillis() - start > timeout) {
-            // System.out.println(Thread.currentThread().getId() + ": aborted");
-            throw new TransactionAbortedException();
+    /**
+     * Begin a snapshot for a read-only transaction: from now on it reads
+     * the pages as of the last commit, and takes no locks.
+     *
+     * @throws IllegalStateException if the pool is not in multi-version mode
+     */
+    public void beginSnapshot(TransactionId tid) {
+        if (!multiVersion) {
+            throw new IllegalStateException("BufferPool: snapshots need multi-version mode");
         }
+        tid.snapshot = versions.beginSnapshot();
+    }
 
-        try {
-            wait(timeout);
-            if (System.currentTimeMillis() - start > timeout) {
-                // System.out.println(Thread.currentThread().getId() + ": aborted");
-                throw new TransactionAbortedException();
-            }
-        } catch (InterruptedException e) {
-            /* do nothing */
-            e.printStackTrace();
+    // drop the transaction's snapshot, if it has one
+    private void endSnapshot(TransactionId tid) {
+        long s = tid.snapshot;
+        if (s >= 0) {
+            tid.snapshot = -1;
+            versions.endSnapshot(s);
         }
     }
 
-    private synchronized void updateTransactionTable(TransactionId tid, PageId pid) {
-        if (transactionTable.containsKey(tid)) {
-            if (!transactionTable.get(tid).contains(pid)) {
-                transactionTable.get(tid).add(pid);
+    /** @return the number of pages with committed changes not yet on disk */
+    public int getNumPendingWrites() {
+        return pendingWrites.size();
+    }
+
+    /**
+     * Background writer for STEAL/NO-FORCE mode: trickles committed pages
+     * out to disk so that eviction and checkpoints rarely have to write.
+     */
+    private class PageCleaner extends Thread {
+        private volatile boolean running = true;
+
+        PageCleaner() {
+            super("simpledb-page-cleaner");
+            setDaemon(true);
+        }
+
+        void shutdown() {
+            running = false;
+            interrupt();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        } else {
-            // no entry tid
-            ArrayList<PageId> lockList = new ArrayList<PageId>();
-            lockList.add(pid);
-            transactionTable.put(tid, lockList);
         }
-    }
 
-    public synchronized void acquireLock(TransactionId tid, PageId pid, LockType reqLock, int maxTimeout)
-            throws TransactionAbortedException {
-        // boolean isAcquired = false;
-        long start = System.currentTimeMillis();
-        Random rand = new Random();
-        long randomTimeout = rand.nextInt((maxTimeout - 0) + 1) + 0;
-        while (true) {
-            if (lockTable.containsKey(pid)) {
-                // page is locked by some transaction
-                if (lockTable.get(pid).getType() == LockType.SLock) {
-                    if (reqLock == LockType.SLock) {
-                        updateTransactionTable(tid, pid);
-                        assert lockTable.get(pid).addHolder(tid) != null;
-                        // isAcquired = true;
-                        return;
-                    } else {
-                        // request XLock
-                        if (transactionTable.containsKey(tid) && transactionTable.get(tid).contains(pid)
-                                && lockTable.get(pid).getHolders().size() == 1) {
-                            // sanity check
-                            assert lockTable.get(pid).getHolders().get(0) == tid;
-                            // this is a combined case when lock on pid hold only by one trans (which is exactly tid)
-                            lockTable.get(pid).tryUpgradeLock(tid);
-                            // isAcquired = true;
-                            return;
-                        } else {
-                            // all need to do is just blocking
-                            block(pid, start, randomTimeout);
-                        }
-                    }
-                } else {
-                    // already get a Xlock on pid
-                    if (lockTable.get(pid).getHolders().get(0) == tid) {
-                        // Xlock means only one holder
-                        // request xlock or slock on the pid with that tid
-                        // sanity check
-                        assert lockTable.get(pid).getHolders().size() == 1;
-                        // isAcquired = true;
-                        return;
-                    } else {
-                        // otherwise block
-                        block(pid, start, randomTimeout);
-                    }
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    Thread.sleep(CLEANER_INTERVAL_MS);
+                    cleanPages(CLEANER_BATCH_PAGES);
+                } catch (InterruptedException e) {
+                    // shutdown() interrupts a sleeping cleaner
+                } catch (IOException e) {
+                    // the page stays pending and is tried again next round
+                    cleanerFailure.set(e);
                 }
-            } else {
-                ArrayList<TransactionId> initialHolders = new ArrayList<>();
-                initialHolders.add(tid);
-                lockTable.put(pid, new ObjLock(reqLock, pid, initialHolders));
-                updateTransactionTable(tid, pid);
-                // isAcquired = true;
-                return;
             }
         }
     }
 
-    public synchronized void releaseLock(TransactionId tid, PageId pid) {
-
-        // remove from trans table
-        if (transactionTable.containsKey(tid)) {
-            transactionTable.get(tid).remove(pid);
-            if (transactionTable.get(tid).size() == 0) {
-                transactionTable.remove(tid);
+    /**
+     * Write up to maxPages pages with committed changes to disk.  Pages
+     * that a transaction currently holds a write lock on are skipped.
+     *
+     * @return the number of pages written
+     */
+    public int cleanPages(int maxPages) throws IOException {
+        int written = 0;
+        for (PageId pid : pendingWrites.keySet()) {
+            if (written >= maxPages) {
+                break;
             }
-        }
-
-        // remove from locktable
-        if (lockTable.containsKey(pid)) {
-            lockTable.get(pid).getHolders().remove(tid);
-            if (lockTable.get(pid).getHolders().size() == 0) {
-                // no more threads are waiting here
-                lockTable.remove(pid);
-            } else {
-                // ObjLock lock = lockTable.get(pid);
-                // synchronized (lock) {
-                notifyAll();
-                //}
+            if (writeBack(pid, null)) {
+                written++;
             }
         }
+        return written;
     }
 
-    public synchronized void releaseLocksOnTransaction(TransactionId tid) {
-        if (transactionTable.containsKey(tid)) {
-            PageId[] pidArr = new PageId[transactionTable.get(tid).size()];
-            PageId[] toRelease = transactionTable.get(tid).toArray(pidArr);
-            for (PageId pid : toRelease) {
-                releaseLock(tid, pid);
+    /**
+     * Write a page out so that it may be evicted.  A transaction may write
+     * its own dirty pages; committed pages are written only if no
+     * transaction is modifying them.
+     *
+     * @param tid the transaction on whose behalf the page is written, or null
+     * @return true if the page was written (or is no longer cached)
+     */
+    private boolean writeBack(PageId pid, TransactionId tid) throws IOException {
+        Page p = lookup(pid);
+        if (p == null) {
+            return true;
+        }
+        TransactionId dirtier = p.isDirty();
+        if (dirtier != null) {
+            if (!dirtier.equals(tid)) {
+                return false;
             }
-
+            flushPage(pid);
+            return true;
         }
+        // each write-back locks the page under an id of its own, so that
+        // concurrent write-backs do not share (and drop) each other's
+        // intention lock on the table
+        TransactionId writer = new TransactionId();
+        try {
+            if (!lockMgr.tryAcquireLock(writer, pid, LockManager.LockType.SLock)) {
+                return false;
+            }
+            flushPage(pid);
+        } finally {
+            lockMgr.releaseLocksOnTransaction(writer);
+        }
+        return true;
     }
 
-    public synchronized ArrayList<PageId> getLockList(TransactionId tid) {
-        return transactionTable.getOrDefault(tid, null);
+    private static int defaultShards(int numPages) {
+        return Math.max(1, Math.min(MAX_SHARDS, numPages / MIN_PAGES_PER_SHARD));
     }
-}
 
+    /** @return the number of shards the pool is partitioned into */
+    public int getNumShards() {
+        return shards.length;
+    }
 
-public class BufferPool {
-    /** Bytes per page, including header. */
-    private static final int PAGE_SIZE = 4096; // 4096
-
-    private static int pageSize = PAGE_SIZE;
-    
-    /** Default number of pages passed to the constructor. This is used by
-    other classes. BufferPool should use the numPages argument to the
-    constructor instead. */
-    public static final int DEFAULT_PAGES = 500;
+    private int shardIndex(PageId pid) {
+        // spread the hash; BTreePageId keeps the page category in the low bits
+        int h = pid.hashCode() * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
 
-    // page buffer; PageId -> page
-    private ConcurrentHashMap<PageId, Page> pgBufferPool;
-    private int capacity;
+    private Shard shardOf(PageId pid) {
+        return shards[shardIndex(pid)];
+    }
 
-    private LockManager lockMgr;
-    private static int TRANSATION_FACTOR = 2;
-    // timeout 1s for deadlock detection
-    private static int DEFAUT_MAXTIMEOUT = 5000;
-    // int size;
-    /**
-     * Creates a BufferPool that caches up to numPages pages.
-     *
-     * @param numPages maximum number of pages in this buffer pool.
-     */
-    public BufferPool(int numPages) {
-        // some code goes here
-        this.capacity = numPages;
-        this.pgBufferPool = new ConcurrentHashMap<PageId, Page>();
-        this.lockMgr = new LockManager(numPages, TRANSATION_FACTOR * numPages);
+    /** @return the cached version of the page, or null if it is not cached */
+    private Page lookup(PageId pid) {
+        return shardOf(pid).pages.get(pid);
     }
     
     public static int getPageSize() {
@@ -274,7 +428,8 @@ public class BufferPool {
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
-     * transaction.
+     * transaction.  A snapshot transaction takes no lock and gets a
+     * private copy of the page as of its snapshot.
      * <p>
      * The retrieved page should be looked up in the buffer pool.  If it
      * is present, it should be returned.  If it is not present, it should
@@ -287,6 +442,23 @@ public class BufferPool {
      * @param perm the requested permissions on the page
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page on behalf of a scan that owns a ScanRing.
+     * Locking is the same as for {@link #getPage(TransactionId, PageId, Permissions)},
+     * and a page that is already in the pool is returned from the pool.  A
+     * READ_ONLY page that is not in the pool is read into the ring rather
+     * than admitted, so it never evicts a page of the shared pool.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the scan's ring, or null to go through the pool
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
         throws TransactionAbortedException, DbException {
         // some code goes here
 
@@ -294,26 +466,529 @@ public class BufferPool {
         if (perm == Permissions.READ_ONLY) {
             lockType = LockManager.LockType.SLock;
         } else {
+            checkWritable(tid);
             lockType = LockManager.LockType.XLock;
         }
+        if (tid != null && tid.isSnapshot()) {
+            return snapshotPage(tid, pid, ring);
+        }
+        if (perm == Permissions.READ_ONLY && tid != null && tid.isOptimistic()
+            && !tid.optimistic.isValidating()) {
+            return optimisticPage(tid, pid, ring);
+        }
         Debug.log(pid.toString() + ": before acquire lock\n");
         lockMgr.acquireLock(tid, pid, lockType, DEFAUT_MAXTIMEOUT);
         Debug.log(pid.toString() + ": acquired the lock\n");
+        return fetchPage(tid, pid, perm, ring);
+    }
 
-        Page pg;
-        if (pgBufferPool.containsKey(pid)) {
-            pg = pgBufferPool.get(pid);
+    /**
+     * Retrieve a page of a table with row locking.  Only an intention lock
+     * is taken on the page: IS for READ_ONLY and IX for READ_WRITE.  The
+     * caller locks the rows it reads or changes and latches the page.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the permissions the transaction needs on rows of the page
+     */
+    public Page getPageForRows(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (tid.isOptimistic() && !tid.optimistic.isValidating()) {
+            throw new DbException("optimistic transaction " + tid.getId() + " cannot lock rows");
+        }
+        LockManager.LockType lockType;
+        if (perm == Permissions.READ_ONLY) {
+            lockType = LockManager.LockType.ISLock;
         } else {
-            if (pgBufferPool.size() >= capacity) {
-                evictPage();
+            checkWritable(tid);
+            lockType = LockManager.LockType.IXLock;
+        }
+        lockMgr.acquireLock(tid, pid, lockType, DEFAUT_MAXTIMEOUT);
+        return fetchPage(tid, pid, perm, null);
+    }
+
+    // the page as the snapshot of tid sees it
+    private Page snapshotPage(TransactionId tid, PageId pid, ScanRing ring) throws DbException {
+        long s = tid.snapshot;
+        if (!isRowLocked(pid)) {
+            // the before image is the committed state unless it was stashed
+            Page p = fetchPage(tid, pid, Permissions.READ_ONLY, ring);
+            synchronized (versions.stripe(pid)) {
+                Page v = versions.read(pid, s);
+                return v != null ? v : p.getBeforeImage();
             }
+        }
+        // rows change in place: undo the ones that have not committed on a
+        // copy; commits install versions under the write latch
+        HeapPage p = (HeapPage) fetchPage(tid, pid, Permissions.READ_ONLY, null);
+        p.latch().readLock().lock();
+        try {
+            synchronized (versions.stripe(pid)) {
+                Page v = versions.read(pid, s);
+                if (v != null) {
+                    return v;
+                }
+            }
+            return committedCopy(p);
+        } finally {
+            p.latch().readLock().unlock();
+        }
+    }
+
+    // the committed image of the page, read without a lock
+    private Page optimisticPage(TransactionId tid, PageId pid, ScanRing ring) throws DbException {
+        // the version first: the image changes before the version does, so
+        // an image newer than its version fails validation
+        long version = pageVersion(pid);
+        tid.optimistic.read(pid, version);
+        ReadImage cached = readImages.get(pid);
+        if (cached != null && cached.version == version) {
+            hits.incrementAndGet();
+            return cached.image;
+        }
+        Page p = fetchPage(tid, pid, Permissions.READ_ONLY, ring);
+        Page image = p.getBeforeImage();
+        if (lookup(pid) == p) {
+            readImages.put(pid, new ReadImage(version, image));
+        }
+        return image;
+    }
+
+    private long pageVersion(PageId pid) {
+        return pageVersions.getOrDefault(pid, 0L);
+    }
+
+    /**
+     * Validate an optimistic transaction: apply its buffered writes, taking
+     * locks as usual, then check that no page it read has changed since,
+     * or is being changed by another transaction.  The pages read are not
+     * locked: a transaction that changes one later comes after tid, and
+     * one that tid must come after holds a lock tid's writes waited for.
+     * The caller aborts the transaction if this fails.
+     *
+     * @throws TransactionAbortedException if a page it read has changed,
+     *   another transaction is changing one, or a write had to abort
+     */
+    public void validate(TransactionId tid)
+        throws TransactionAbortedException, DbException, IOException {
+        OptimisticState occ = tid.optimistic;
+        occ.setValidating();
+        for (OptimisticState.Write w : occ.getWrites()) {
+            if (w.insert) {
+                insertTuple(tid, w.tableId, w.tuple);
+            } else {
+                deleteTuple(tid, w.tuple);
+            }
+        }
+        for (Map.Entry<PageId, Long> read : occ.getReads().entrySet()) {
+            // a running writer's change may have been read from disk
+            if (pageVersion(read.getKey()) != read.getValue()
+                || lockMgr.hasOtherWriter(tid, read.getKey())) {
+                validationFailures.incrementAndGet();
+                throw new TransactionAbortedException();
+            }
+        }
+    }
+
+    /** @return the number of optimistic transactions that failed validation */
+    public long getValidationFailureCount() {
+        return validationFailures.get();
+    }
+
+    // a copy of a row-locked page without the row changes that have not
+    // committed; caller holds the page's latch
+    private HeapPage committedCopy(HeapPage p) throws DbException {
+        HeapPage copy;
+        try {
+            copy = new HeapPage(p.getId(), p.getPageData());
+        } catch (IOException e) {
+            throw new DbException("BufferPool: cannot copy page " + p.getId() + ": " + e.getMessage());
+        }
+        ArrayList<TupleChange> changes = rowChanges.get(p.getId());
+        if (changes != null) {
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                TupleChange c = changes.get(i);
+                copy.setSlot(c.slot, c.before);
+            }
+        }
+        return copy;
+    }
+
+    private static boolean isRowLocked(PageId pid) {
+        if (!(pid instanceof HeapPageId)) {
+            return false;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        return f instanceof HeapFile && ((HeapFile) f).isRowLocking();
+    }
+
+    // the page from the pool, the ring or the disk; the caller holds a lock
+    private Page fetchPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+        throws DbException {
+        Shard shard = shardOf(pid);
+        Page pg = shard.pages.get(pid);
+        if (pg != null) {
+            hits.incrementAndGet();
+            synchronized (shard) {
+                shard.policy.pageAccessed(pid);
+            }
+        } else if (ring != null && perm == Permissions.READ_ONLY) {
+            pg = ring.get(pid);
+            if (pg != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                pg = Database
+                        .getCatalog()
+                        .getDatabaseFile(pid.getTableId())
+                        .readPage(pid);
+                ring.put(pg);
+            }
+        } else {
+            pg = loadPage(tid, shard, pid);
+        }
+        return pg;
+    }
+
+    /**
+     * Read a page that missed in the pool into its shard.  Only one disk
+     * read is issued per page: the first transaction to miss registers an
+     * in-flight load, and transactions missing on the same page meanwhile
+     * wait for that load instead of reading the page themselves.  The read
+     * itself happens without the shard latch, and a frame is reserved
+     * before it, so making room never holds one shard's latch while taking
+     * another's.
+     */
+    private Page loadPage(TransactionId tid, Shard shard, PageId pid) throws DbException {
+        CompletableFuture<Page> load;
+        synchronized (shard) {
+            Page pg = shard.pages.get(pid);
+            if (pg != null) {
+                // another transaction loaded it after our lookup
+                hits.incrementAndGet();
+                shard.policy.pageAccessed(pid);
+                return pg;
+            }
+            load = shard.loading.get(pid);
+            if (load == null) {
+                shard.loading.put(pid, new CompletableFuture<Page>());
+            }
+        }
+        if (load != null) {
+            coalesced.incrementAndGet();
+            hits.incrementAndGet();
+            return awaitLoad(load);
+        }
+
+        misses.incrementAndGet();
+        Page pg = null;
+        Throwable failure = null;
+        boolean reserved = false;
+        try {
+            reserveFrame(tid, shard);
+            reserved = true;
             pg = Database
                     .getCatalog()
                     .getDatabaseFile(pid.getTableId())
                     .readPage(pid);
-            pgBufferPool.put(pid, pg);
+        } catch (DbException | RuntimeException e) {
+            failure = e;
+        }
+        synchronized (shard) {
+            load = shard.loading.remove(pid);
+            if (failure == null) {
+                shard.pages.put(pid, pg);
+                shard.policy.pageAdmitted(pid);
+            }
+        }
+        if (failure == null) {
+            load.complete(pg);
+            return pg;
+        }
+        if (reserved) {
+            numCached.decrementAndGet();
+        }
+        load.completeExceptionally(failure);
+        if (failure instanceof DbException) {
+            throw (DbException) failure;
+        }
+        throw (RuntimeException) failure;
+    }
+
+    /** Wait for another transaction's load of a page to finish. */
+    private static Page awaitLoad(CompletableFuture<Page> load) throws DbException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return load.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof DbException) {
+                        throw new DbException(cause.getMessage());
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new DbException("BufferPool: loadPage: " + cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Claim one frame of the pool's capacity, evicting pages as needed. */
+    private void reserveFrame(TransactionId tid, Shard home) throws DbException {
+        while (true) {
+            int n = numCached.get();
+            if (n < capacity) {
+                if (numCached.compareAndSet(n, n + 1)) {
+                    return;
+                }
+            } else {
+                evictPage(tid, home);
+            }
+        }
+    }
+
+    /** Install a page in the pool, replacing any cached version of it. */
+    private void cachePage(Page pg) {
+        Shard shard = shardOf(pg.getId());
+        synchronized (shard) {
+            if (shard.pages.put(pg.getId(), pg) == null) {
+                numCached.incrementAndGet();
+                shard.policy.pageAdmitted(pg.getId());
+            } else {
+                shard.policy.pageAccessed(pg.getId());
+            }
+        }
+    }
+
+    /**
+     * Hand out a ScanRing for a sequential scan over numPages pages.  A
+     * ring has at most capacity / SCAN_RING_DIVISOR frames, so a pool too
+     * small to spare a frame for one hands out none, and its scans read
+     * through the pool, within its page budget.
+     *
+     * @param numPages the number of pages the scan will read
+     * @return a new ring if the scan is large enough to flood the pool,
+     *   or null if the scan should read through the pool
+     */
+    public ScanRing newScanRing(int numPages) {
+        int frames = Math.min(ScanRing.DEFAULT_FRAMES, capacity / SCAN_RING_DIVISOR);
+        if (scanRingsEnabled && frames > 0 && numPages > capacity / SCAN_RING_DIVISOR) {
+            return new ScanRing(frames);
+        }
+        return null;
+    }
+
+    /** Turn scan rings on or off for scans started after this call. */
+    public void setScanRingsEnabled(boolean enabled) {
+        this.scanRingsEnabled = enabled;
+    }
+
+    /**
+     * Lock a tuple of a table with row locking, in S mode for READ_ONLY
+     * and X mode for READ_WRITE.  May block.
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        lockMgr.acquireTupleLock(tid, rid, rowLockType(tid, perm), DEFAUT_MAXTIMEOUT);
+    }
+
+    /**
+     * Lock a tuple if that is possible without waiting.
+     *
+     * @return true if tid now holds the lock
+     * @see #lockTuple
+     */
+    public boolean tryLockTuple(TransactionId tid, RecordId rid, Permissions perm)
+        throws DbException {
+        return lockMgr.tryAcquireTupleLock(tid, rid, rowLockType(tid, perm));
+    }
+
+    private static LockManager.LockType rowLockType(TransactionId tid, Permissions perm)
+        throws DbException {
+        if (perm == Permissions.READ_ONLY) {
+            return LockManager.LockType.SLock;
+        }
+        checkWritable(tid);
+        return LockManager.LockType.XLock;
+    }
+
+    /** Return true if the specified transaction has a row lock on the specified tuple */
+    public boolean holdsTupleLock(TransactionId tid, RecordId rid) {
+        return lockMgr.holdsTupleLock(tid, rid);
+    }
+
+    /**
+     * Lock a key range of a B+ tree file with key locking, in S mode for
+     * READ_ONLY and X mode for READ_WRITE.  May block.  Snapshot reads and
+     * optimistic reads take no key locks, as they take no page locks.
+     */
+    public void lockKey(TransactionId tid, KeyId kid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (locksKeys(tid, perm)) {
+            lockMgr.acquireKeyLock(tid, kid, rowLockType(tid, perm), DEFAUT_MAXTIMEOUT);
+        }
+    }
+
+    /**
+     * Lock a key range if that is possible without waiting.
+     *
+     * @return true if tid now holds the lock, or needs none
+     * @see #lockKey
+     */
+    public boolean tryLockKey(TransactionId tid, KeyId kid, Permissions perm)
+        throws DbException {
+        return !locksKeys(tid, perm)
+            || lockMgr.tryAcquireKeyLock(tid, kid, rowLockType(tid, perm));
+    }
+
+    // whether tid takes key locks for access with perm
+    private static boolean locksKeys(TransactionId tid, Permissions perm) {
+        if (tid == null || tid.isSnapshot()) {
+            return false;
+        }
+        return perm != Permissions.READ_ONLY || !tid.isOptimistic() || tid.optimistic.isValidating();
+    }
+
+    /**
+     * Release a key lock before the transaction ends.  Only for locks that
+     * protect a change until it is made, such as an insert's lock on the
+     * key after the new one.
+     */
+    public void releaseKey(TransactionId tid, KeyId kid) {
+        lockMgr.releaseKeyLock(tid, kid);
+    }
+
+    /** Return true if the specified transaction has a lock on the specified key */
+    public boolean holdsKeyLock(TransactionId tid, KeyId kid) {
+        return lockMgr.holdsKeyLock(tid, kid);
+    }
+
+    /**
+     * Log a change to one slot of a page under a row lock.  Called with
+     * the page's write latch held, before the slot is changed, so that the
+     * record is logged before the page can be written.
+     *
+     * @param tid the transaction changing the slot; it holds an X lock on the tuple
+     * @param before the tuple in the slot, or null if it is empty
+     * @param after the tuple to put in the slot, or null to empty it
+     */
+    void tupleChanged(TransactionId tid, HeapPage pg, int slot, Tuple before, Tuple after)
+        throws IOException {
+        long lsn = Database.getLogFile().logTupleChange(tid, pg, slot, before, after);
+        pendingWrites.merge(pg.getId(), lsn, Math::max);
+        TupleChange change = new TupleChange(tid, pg.getId(), slot, before, after);
+        tupleChanges.computeIfAbsent(tid, k -> new ArrayList<TupleChange>()).add(change);
+        if (multiVersion) {
+            rowChanges.computeIfAbsent(pg.getId(), k -> new ArrayList<TupleChange>()).add(change);
         }
-        return pg;
+    }
+
+    /**
+     * Undo the row changes of an aborting transaction, newest first, in
+     * the pool.  Each undo is logged as a change of its own, so this has
+     * to happen before the transaction's ABORT record.
+     */
+    public void undoTupleChanges(TransactionId tid) throws IOException {
+        ArrayList<TupleChange> changes = tupleChanges.remove(tid);
+        if (changes == null) {
+            return;
+        }
+        LogFile log = Database.getLogFile();
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            TupleChange c = changes.get(i);
+            HeapPage pg;
+            try {
+                // escalation to a table lock may have let the page go
+                pg = (HeapPage) fetchPage(tid, c.pid, Permissions.READ_WRITE, null);
+            } catch (DbException e) {
+                throw new IOException("BufferPool: undoTupleChanges: " + e.getMessage(), e);
+            }
+            pg.latch().writeLock().lock();
+            try {
+                long lsn = log.logTupleChange(tid, pg, c.slot, c.after, c.before);
+                pendingWrites.merge(c.pid, lsn, Math::max);
+                pg.setSlot(c.slot, c.before);
+                forgetRowChange(c);
+            } finally {
+                pg.latch().writeLock().unlock();
+            }
+        }
+    }
+
+    // the change is no longer in flight; caller holds the page's write latch
+    private void forgetRowChange(TupleChange c) {
+        ArrayList<TupleChange> changes = rowChanges.get(c.pid);
+        if (changes != null) {
+            changes.remove(c);
+            if (changes.isEmpty()) {
+                rowChanges.remove(c.pid);
+            }
+        }
+    }
+
+    /** Set how lock waits that may be deadlocked are resolved. */
+    public void setDeadlockPolicy(LockManager.DeadlockPolicy policy) {
+        lockMgr.setDeadlockPolicy(policy);
+    }
+
+    /**
+     * Set the number of page locks a transaction may hold on one table
+     * before they are escalated to a table lock.
+     */
+    public void setLockEscalationThreshold(int threshold) {
+        lockMgr.setEscalationThreshold(threshold);
+    }
+
+    /** @return the number of times page locks were escalated to a table lock */
+    public long getLockEscalationCount() {
+        return lockMgr.getEscalationCount();
+    }
+
+    /** @return the number of lock requests aborted for the given reason */
+    public long getAbortCount(LockManager.AbortReason reason) {
+        return lockMgr.getAbortCount(reason);
+    }
+
+    /** @return the number of getPage calls served from the pool (or a scan ring) */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** @return the number of getPage calls that had to read from disk */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of getPage calls that missed while another
+     *   transaction was already reading the same page, and waited for that
+     *   read instead of issuing their own (these are also counted as hits)
+     */
+    public long getCoalescedLoadCount() {
+        return coalesced.get();
+    }
+
+    /** @return the fraction of getPage calls served from the pool */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /** Reset the hit and miss counters, e.g. after a warm-up phase. */
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+        coalesced.set(0);
     }
 
     /**
@@ -331,6 +1006,24 @@ public class BufferPool {
         lockMgr.releaseLock(tid, pid);
     }
 
+    /**
+     * Finish a read-only transaction: release all of its (shared) locks at
+     * once.  There are no dirty pages to write or discard.
+     *
+     * @param tid the ID of the read-only transaction
+     */
+    public void releaseSharedLocks(TransactionId tid) {
+        endSnapshot(tid);
+        lockMgr.releaseLocksOnTransaction(tid);
+    }
+
+    // read-only transactions may not modify pages
+    private static void checkWritable(TransactionId tid) throws DbException {
+        if (tid != null && tid.isReadOnly()) {
+            throw new DbException("read-only transaction " + tid.getId() + " cannot modify pages");
+        }
+    }
+
     /**
      * Release all locks associated with a given transaction.
      *
@@ -365,28 +1058,155 @@ public class BufferPool {
         // just invalidate all the pages in tid
         // invalidateCache(tid);
 
+        ArrayList<TupleChange> changes = null;
+        if (commit) {
+            changes = tupleChanges.remove(tid);
+        } else {
+            // normally done by Transaction before logging the abort
+            undoTupleChanges(tid);
+        }
         ArrayList<PageId> lockList = lockMgr.getLockList(tid);
         if (lockList != null) {
+            if (commit && stealNoForce && logPages(tid, lockList)) {
+                // NO-FORCE: the log, not the data file, makes the commit
+                // durable (Transaction.commit has normally logged the pages
+                // through flushPages already)
+                Database.getLogFile().force();
+            }
             for (PageId pid : lockList) {
-                Page pg = pgBufferPool.getOrDefault(pid, null);
+                Page pg = lookup(pid);
                 if (pg != null) {
                     if (commit) {
-                        flushPage(pg.getId());
+                        if (!stealNoForce) {
+                            flushPage(pg.getId());
+                        }
                         pg.setBeforeImage();
                         //TODO commit log ?????
                     } else if (pg.isDirty() != null){
                         // all dirty pages are flushed and not dirty page are still in cache
                         // discard
                         discardPage(pid);
+                    } else if (!stealNoForce && pendingWrites.containsKey(pid)) {
+                        // FORCE: write out the undone row changes
+                        flushPage(pid);
+                    }
+                }
+            }
+        }
+        if (commit) {
+            installVersions(tid, changes);
+        } else {
+            Set<PageId> written = writtenBy.remove(tid);
+            if (written != null) {
+                for (PageId pid : written) {
+                    synchronized (versions.stripe(pid)) {
+                        versions.abort(pid);
                     }
                 }
             }
         }
+        endSnapshot(tid);
+        // after the pages changed (or were discarded), before others can lock them.
+        // An abort leaves the committed images that optimistic transactions
+        // read as they were, except on disk, where a page written with the
+        // aborted changes in it may have been read meanwhile
+        Set<PageId> changed = changedBy.remove(tid);
+        Set<PageId> flushed = flushedBy.remove(tid);
+        if (!commit) {
+            changed = flushed;
+        }
+        if (changed != null) {
+            for (PageId pid : changed) {
+                pageVersions.merge(pid, 1L, Long::sum);
+            }
+        }
+        // the pages an aborted insert filled have room again
+        Set<HeapPageId> filled = filledBy.remove(tid);
+        if (!commit && filled != null) {
+            for (HeapPageId pid : filled) {
+                DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                ((HeapFile) f).pageHasRoom(pid);
+            }
+        }
 
         // release locks finally
         lockMgr.releaseLocksOnTransaction(tid);
     }
 
+    /**
+     * Multi-version mode: make a commit visible to the snapshots that begin
+     * after it, keeping the images it replaced for the snapshots that are
+     * running.  Called while tid still holds its locks.
+     *
+     * @param changes the committing transaction's row changes, or null
+     */
+    private void installVersions(TransactionId tid, ArrayList<TupleChange> changes)
+        throws IOException {
+        Set<PageId> written = writtenBy.remove(tid);
+        if (!multiVersion || (written == null && changes == null)) {
+            return;
+        }
+        VersionStore.Commit c = versions.beginCommit();
+        try {
+            if (written != null) {
+                for (PageId pid : written) {
+                    synchronized (versions.stripe(pid)) {
+                        versions.install(pid, c, null);
+                    }
+                }
+            }
+            if (changes != null) {
+                LinkedHashSet<HeapPageId> pids = new LinkedHashSet<HeapPageId>();
+                for (TupleChange change : changes) {
+                    pids.add(change.pid);
+                }
+                for (HeapPageId pid : pids) {
+                    HeapPage pg;
+                    try {
+                        pg = (HeapPage) fetchPage(tid, pid, Permissions.READ_WRITE, null);
+                    } catch (DbException e) {
+                        throw new IOException("BufferPool: installVersions: " + e.getMessage(), e);
+                    }
+                    pg.latch().writeLock().lock();
+                    try {
+                        HeapPage old = null;
+                        if (c.keep) {
+                            old = committedCopy(pg);
+                        }
+                        synchronized (versions.stripe(pid)) {
+                            versions.install(pid, c, old);
+                        }
+                        ArrayList<TupleChange> inFlight = rowChanges.get(pid);
+                        if (inFlight != null) {
+                            inFlight.removeIf(change -> change.tid.equals(tid));
+                            if (inFlight.isEmpty()) {
+                                rowChanges.remove(pid);
+                            }
+                        }
+                    } catch (DbException e) {
+                        throw new IOException("BufferPool: installVersions: " + e.getMessage(), e);
+                    } finally {
+                        pg.latch().writeLock().unlock();
+                    }
+                }
+            }
+        } finally {
+            versions.endCommit(c);
+        }
+    }
+
+    // a running transaction's page is about to stop looking dirty: stash
+    // the committed image it replaces for snapshots
+    private void stash(TransactionId tid, Page p) {
+        if (!multiVersion) {
+            return;
+        }
+        synchronized (versions.stripe(p.getId())) {
+            versions.stash(p.getId(), p.getBeforeImage());
+        }
+        writtenBy.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(p.getId());
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other 
@@ -406,12 +1226,16 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        checkWritable(tid);
+        if (buffer(tid, new OptimisticState.Write(true, tableId, t))) {
+            return;
+        }
         DbFile tableFile = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> affected = tableFile.insertTuple(tid, t);
         for (Page newPg : affected) {
             newPg.markDirty(true, tid);
-            pgBufferPool.remove(newPg.getId());
-            pgBufferPool.put(newPg.getId(), newPg);
+            cachePage(newPg);
+            changed(tid, newPg.getId());
         }
     }
 
@@ -432,15 +1256,48 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        checkWritable(tid);
 
-        DbFile tableFile = Database
-                            .getCatalog()
-                            .getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId = t.getRecordId().getPageId().getTableId();
+        if (buffer(tid, new OptimisticState.Write(false, tableId, t))) {
+            return;
+        }
+        DbFile tableFile = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> affected = tableFile.deleteTuple(tid, t);
         for (Page newPg : affected) {
             newPg.markDirty(true, tid);
-            pgBufferPool.remove(newPg.getId());
-            pgBufferPool.put(newPg.getId(), newPg);
+            cachePage(newPg);
+            changed(tid, newPg.getId());
+        }
+    }
+
+    // buffer the write of an optimistic transaction until it validates;
+    // returns false if the write is to be applied now
+    private static boolean buffer(TransactionId tid, OptimisticState.Write w) {
+        if (tid == null || !tid.isOptimistic() || tid.optimistic.isValidating()) {
+            return false;
+        }
+        tid.optimistic.write(w);
+        return true;
+    }
+
+    private void changed(TransactionId tid, PageId pid) {
+        if (tid != null) {
+            changedBy.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+        }
+    }
+
+    private void flushed(TransactionId tid, PageId pid) {
+        flushedBy.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
+    /**
+     * Called by HeapFile when an insert of tid took the last empty slot of
+     * a page, so that the page is known to have room again if tid aborts.
+     */
+    void pageFilled(TransactionId tid, HeapPageId pid) {
+        if (tid != null) {
+            filledBy.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
         }
     }
 
@@ -448,13 +1305,22 @@ public class BufferPool {
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
+     *
+     * @throws IOException if a page cannot be written, or if the page
+     *   cleaner failed to write a page back since the last call; the
+     *   latter is thrown after all pages are written
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        Enumeration<PageId> it = pgBufferPool.keys();
-        while (it.hasMoreElements()) {
-            flushPage(it.nextElement());
+        for (Shard shard : shards) {
+            for (PageId pid : shard.pages.keySet()) {
+                flushPage(pid);
+            }
+        }
+        IOException failure = cleanerFailure.getAndSet(null);
+        if (failure != null) {
+            throw new IOException("page cleaner failed to write back a page", failure);
         }
     }
 
@@ -465,48 +1331,166 @@ public class BufferPool {
         
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
+
+        In NO-FORCE mode, committed changes to the page that are not on
+        disk yet are written out first, so they are not lost with it.
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        pgBufferPool.remove(pid);
+        Long lsn = pendingWrites.get(pid);
+        if (lsn != null) {
+            Page p = lookup(pid);
+            if (p != null) {
+                try {
+                    // the before image is the last committed version
+                    LogFile log = Database.getLogFile();
+                    long version = log.pageVersion(pid);
+                    log.forceTo(lsn);
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p.getBeforeImage());
+                    log.pageWritten(pid, version);
+                } catch (IOException e) {
+                    throw new RuntimeException("BufferPool: discardPage: cannot write committed page " + pid, e);
+                }
+            }
+            pendingWrites.remove(pid, lsn);
+        }
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            removePage(shard, pid, false);
+        }
+    }
+
+    // caller holds the shard's latch; evicted tells the policy whether it
+    // chose the page as a victim or the page was discarded
+    private boolean removePage(Shard shard, PageId pid, boolean evicted) {
+        if (shard.pages.remove(pid) != null) {
+            readImages.remove(pid);
+            numCached.decrementAndGet();
+            if (evicted) {
+                shard.policy.pageRemoved(pid);
+            } else {
+                shard.policy.pageDiscarded(pid);
+            }
+            return true;
+        }
+        return false;
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        if (pgBufferPool.containsKey(pid)) {
-            Page p = pgBufferPool.get(pid);
+        // no shard latch is held here: the log may call back into the pool
+        // (rollback discards pages) while holding its own monitor
+        Page p = lookup(pid);
+        if (p != null) {
             TransactionId dirtier = p.isDirty();
+            Long lsn = pendingWrites.get(pid);
             if (dirtier != null) {
                 /*
                     append an update record to the log, with
                     a before-image and after-image.
                 */
-                Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
-                Database.getLogFile().force();
+                stash(dirtier, p);
+                LogFile log = Database.getLogFile();
+                long end = log.logWrite(dirtier, p.getBeforeImage(), p);
+                long version = log.pageVersion(pid);
+                log.forceTo(end);
 
                 // then write back
                 DbFile tb = Database.getCatalog().getDatabaseFile(p.getId().getTableId());
                 p.markDirty(false, null);
                 tb.writePage(p);
+                log.pageWritten(pid, version);
+                flushed(dirtier, pid);
+            } else if (lsn != null) {
+                // committed or row changes: their log records must be on
+                // disk first; the latch keeps rows from changing meanwhile
+                Lock latch = p instanceof HeapPage ? ((HeapPage) p).latch().readLock() : null;
+                if (latch != null) {
+                    latch.lock();
+                }
+                try {
+                    lsn = pendingWrites.getOrDefault(pid, lsn);
+                    LogFile log = Database.getLogFile();
+                    long version = log.pageVersion(pid);
+                    log.forceTo(lsn);
+                    Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                    log.pageWritten(pid, version);
+                } finally {
+                    if (latch != null) {
+                        latch.unlock();
+                    }
+                }
+            }
+            if (lsn != null) {
+                pendingWrites.remove(pid, lsn);
             }
         }
     }
 
+    /**
+     * NO-FORCE commit: append an UPDATE record for every page tid dirtied
+     * and leave the page in the pool, remembering that it has to be
+     * written later.  The caller forces the log.
+     *
+     * @return true if any record was written
+     */
+    private boolean logPages(TransactionId tid, Collection<PageId> pids) throws IOException {
+        boolean logged = false;
+        for (PageId pid : pids) {
+            Page p = lookup(pid);
+            if (p != null && tid.equals(p.isDirty())) {
+                stash(tid, p);
+                long lsn = Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
+                // publish the pending write before the page looks clean, so
+                // a concurrent checkpoint sees one or the other
+                pendingWrites.put(pid, lsn);
+                p.markDirty(false, null);
+                logged = true;
+            }
+        }
+        return logged;
+    }
+
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
         ArrayList<PageId> page2flush = lockMgr.getLockList(tid);
         if (page2flush != null) {
-            for (PageId p : page2flush) {
-                flushPage(p);
+            if (stealNoForce) {
+                // NO-FORCE: log the pages, the commit record forces the log
+                logPages(tid, page2flush);
+                return;
+            }
+            // log every dirty page first, so that one force of the log
+            // covers all of them, then write the pages
+            ArrayList<Page> logged = new ArrayList<Page>();
+            long end = 0;
+            for (PageId pid : page2flush) {
+                Page p = lookup(pid);
+                if (p != null && tid.equals(p.isDirty())) {
+                    stash(tid, p);
+                    end = Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
+                    logged.add(p);
+                } else {
+                    flushPage(pid);
+                }
+            }
+            LogFile log = Database.getLogFile();
+            log.forceTo(end);
+            for (Page p : logged) {
+                long version = log.pageVersion(p.getId());
+                p.markDirty(false, null);
+                Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                log.pageWritten(p.getId(), version);
+                flushed(tid, p.getId());
             }
         }
     }
@@ -514,22 +1498,63 @@ public class BufferPool {
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is taken from the home shard if it has one, otherwise
+     * from the other shards in turn.
+     * <p>
+     * Clean pages are always preferred.  In STEAL mode, if there is none,
+     * a page with committed changes or one of tid's own dirty pages is
+     * written out (logging it first) and evicted.
      */
-    private synchronized void evictPage() throws DbException {
+    private void evictPage(TransactionId tid, Shard home) throws DbException {
         // some code goes here
         // not necessary for lab1
-        // randomly discard a page
-        for (Map.Entry<PageId, Page> entry : pgBufferPool.entrySet()) {
-            PageId pid = entry.getKey();
-            Page   p   = entry.getValue();
-            if (p.isDirty() == null) {
-                // dont need to flushpage since all page evicted are not dirty
-                // flushPage(pid);
-                discardPage(pid);
-                return;
+        int start = Arrays.asList(shards).indexOf(home);
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[(start + i) % shards.length];
+            synchronized (shard) {
+                PageId victim = shard.policy.chooseVictim(pid -> isClean(shard, pid));
+                if (victim != null) {
+                    removePage(shard, victim, true);
+                    return;
+                }
+            }
+        }
+        if (stealNoForce) {
+            for (int i = 0; i < shards.length; i++) {
+                Shard shard = shards[(start + i) % shards.length];
+                PageId victim;
+                synchronized (shard) {
+                    victim = shard.policy.chooseVictim(pid -> {
+                        Page p = shard.pages.get(pid);
+                        return p != null && (pendingWrites.containsKey(pid)
+                                || (tid != null && tid.equals(p.isDirty())));
+                    });
+                }
+                // write without the latch: flushing calls into the log
+                try {
+                    if (victim == null || !writeBack(victim, tid)) {
+                        continue;
+                    }
+                } catch (IOException e) {
+                    throw new DbException("BufferPool: evictPage: " + e.getMessage());
+                }
+                synchronized (shard) {
+                    if (isClean(shard, victim)) {
+                        removePage(shard, victim, true);
+                        return;
+                    }
+                }
             }
         }
         throw new DbException("BufferPool: evictPage: all pages are marked as dirty");
     }
 
+    // a page that can leave the pool without being written; pages with
+    // rows being changed stay, so there is only ever one copy of them
+    private boolean isClean(Shard shard, PageId pid) {
+        Page p = shard.pages.get(pid);
+        return p == null || (p.isDirty() == null && !pendingWrites.containsKey(pid)
+                             && !(p instanceof HeapPage && lockMgr.hasRowWriters(pid)));
+    }
+
 }
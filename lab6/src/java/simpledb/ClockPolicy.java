@@ -0,0 +1,88 @@
+package simpledb;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * ClockPolicy is the classic second-chance approximation of LRU.  Every
+ * resident page sits in a frame with a reference bit that is set on each
+ * hit; the clock hand sweeps the frames, clearing set bits and stopping at
+ * the first evictable page whose bit is already clear.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private static class Frame {
+        final PageId pid;
+        boolean referenced;
+
+        Frame(PageId pid) {
+            this.pid = pid;
+            this.referenced = true;
+        }
+    }
+
+    // frames in clock order, a null slot is a free frame
+    private final ArrayList<Frame> frames;
+    private final HashMap<PageId, Integer> slotOf;
+    private final ArrayDeque<Integer> freeSlots;
+    private int hand;
+
+    public ClockPolicy(int capacity) {
+        this.frames = new ArrayList<>(capacity);
+        this.slotOf = new HashMap<>(capacity);
+        this.freeSlots = new ArrayDeque<>();
+        this.hand = 0;
+    }
+
+    public void pageAdmitted(PageId pid) {
+        if (slotOf.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        int slot;
+        if (freeSlots.isEmpty()) {
+            slot = frames.size();
+            frames.add(new Frame(pid));
+        } else {
+            slot = freeSlots.poll();
+            frames.set(slot, new Frame(pid));
+        }
+        slotOf.put(pid, slot);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) {
+            frames.get(slot).referenced = true;
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) {
+            frames.set(slot, null);
+            freeSlots.add(slot);
+        }
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        int n = frames.size();
+        // two full sweeps: the first may only clear reference bits
+        for (int step = 0; step < 2 * n; step++) {
+            if (hand >= n) {
+                hand = 0;
+            }
+            Frame f = frames.get(hand);
+            hand++;
+            if (f == null) {
+                continue;
+            }
+            if (f.referenced) {
+                f.referenced = false;
+            } else if (evictable.test(f.pid)) {
+                return f.pid;
+            }
+        }
+        return null;
+    }
+}
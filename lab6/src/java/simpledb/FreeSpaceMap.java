@@ -0,0 +1,136 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records which pages of a HeapFile are full, so that an
+ * insert can go straight to a page with an empty slot instead of trying
+ * the pages of the file in turn.  The map has one bit per page and is kept
+ * in a file of its own next to the heap file, after a header with the
+ * number of heap pages the map covers.
+ * <p>
+ * The map is a hint.  An insert still checks the page the map sends it to
+ * and marks it full if it has no empty slot after all; pages the map does
+ * not cover are taken to have room.  A page is marked as having room
+ * again when a tuple is deleted from it or when the insert that filled it
+ * aborts; one whose insert is rolled back by recovery after a crash stays
+ * marked full until a tuple is deleted from it.  The map is
+ * rebuilt from the pages of the heap file if it is missing or covers a
+ * different number of pages than the heap file has, e.g. because pages
+ * were appended while the map was not loaded.
+ *
+ * @see HeapFile#insertTuple
+ */
+class FreeSpaceMap {
+
+    // bytes before the bits: the number of heap pages covered
+    private static final int HEADER_SIZE = 4;
+
+    private final HeapFile heapFile;
+    private final File file;
+    // bit i is set if page i is full; null until first used
+    private BitSet full;
+    // the number of heap pages the map covers
+    private int pages;
+
+    /**
+     * Creates the free space map of a heap file.  Nothing is read until
+     * the map is first used.
+     *
+     * @param heapFile the heap file whose pages the map covers
+     * @param file the file the map is kept in
+     */
+    FreeSpaceMap(HeapFile heapFile, File file) {
+        this.heapFile = heapFile;
+        this.file = file;
+    }
+
+    /**
+     * @return the number of the first page from pgNo on that is not known
+     *   to be full; may be beyond the end of the heap file
+     */
+    synchronized int firstFree(int pgNo) throws IOException {
+        load();
+        return full.nextClearBit(pgNo);
+    }
+
+    /**
+     * Record whether a page is full.  The map's file is written only if
+     * this changes the map.
+     */
+    synchronized void setFull(int pgNo, boolean isFull) throws IOException {
+        load();
+        if (full.get(pgNo) == isFull) {
+            return;
+        }
+        full.set(pgNo, isFull);
+        RandomAccessFile rf = new RandomAccessFile(file, "rw");
+        try {
+            // BitSet keeps bit i in bit i % 8 of byte i / 8, as the file does
+            byte[] bytes = full.get(pgNo / 8 * 8, pgNo / 8 * 8 + 8).toByteArray();
+            rf.seek(HEADER_SIZE + pgNo / 8);
+            rf.write(bytes.length == 0 ? 0 : bytes[0]);
+        } finally {
+            rf.close();
+        }
+    }
+
+    /**
+     * Called after a page of the heap file is written.  If the page was
+     * appended, the map covers it from now on, as a page with room.  The
+     * map's file is written only then, and only if the map is loaded;
+     * otherwise it is rebuilt when it is first used.
+     */
+    synchronized void pageWritten(int pgNo) throws IOException {
+        if (full == null || pgNo < pages) {
+            return;
+        }
+        pages = pgNo + 1;
+        RandomAccessFile rf = new RandomAccessFile(file, "rw");
+        try {
+            rf.writeInt(pages);
+        } finally {
+            rf.close();
+        }
+    }
+
+    // caller holds the monitor
+    private void load() throws IOException {
+        if (full != null) {
+            return;
+        }
+        int numPages = heapFile.numPages();
+        if (file.length() >= HEADER_SIZE) {
+            byte[] bytes = new byte[(int) file.length() - HEADER_SIZE];
+            int covered;
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                covered = in.readInt();
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+            if (covered == numPages) {
+                full = BitSet.valueOf(bytes);
+                pages = covered;
+                return;
+            }
+        }
+        full = new BitSet();
+        for (int pgNo = 0; pgNo < numPages; pgNo++) {
+            HeapPage pg = (HeapPage) heapFile.readPage(new HeapPageId(heapFile.getId(), pgNo));
+            if (pg.getNumEmptySlots() == 0) {
+                full.set(pgNo);
+            }
+        }
+        pages = numPages;
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(pages);
+            out.write(full.toByteArray());
+        } finally {
+            out.close();
+        }
+    }
+}
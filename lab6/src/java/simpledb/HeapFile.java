@@ -10,6 +10,15 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * By default transactions lock whole pages.  With row locking they lock
+ * the tuples they read or change instead, and take only intention locks on
+ * the pages, so transactions changing different rows of one page do not
+ * wait for each other; the page's latch is held only while slots are read
+ * or changed.  A scan does not see rows whose delete has not committed.
+ * <p>
+ * A FreeSpaceMap kept next to the file records which pages are full, so
+ * inserts go straight to a page with room and do not lock full pages.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -18,6 +27,8 @@ public class HeapFile implements DbFile {
 
     private final File dbFile;
     private final TupleDesc tupleDesc;
+    private volatile boolean rowLocking = false;
+    private final FreeSpaceMap freeSpace;
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -29,6 +40,15 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.dbFile = f;
         this.tupleDesc = td;
+        this.freeSpace = new FreeSpaceMap(this, freeSpaceMapFile(f));
+    }
+
+    /**
+     * Returns the file that the free space map of a heap file backed by f
+     * is kept in.  Whoever deletes or replaces f deletes this file too.
+     */
+    public static File freeSpaceMapFile(File f) {
+        return new File(f.getPath() + ".fsm");
     }
 
     /**
@@ -56,6 +76,19 @@ public class HeapFile implements DbFile {
         return dbFile.getAbsoluteFile().hashCode();
     }
 
+    /**
+     * Switch between page locking (the default) and row locking.  Set
+     * this before any transaction uses the table.
+     */
+    public void setRowLocking(boolean enabled) {
+        this.rowLocking = enabled;
+    }
+
+    /** @return true if transactions lock the rows of this file rather than its pages */
+    public boolean isRowLocking() {
+        return rowLocking;
+    }
+
     /**
      * Returns the TupleDesc of the table stored in this DbFile.
      * 
@@ -105,8 +138,13 @@ public class HeapFile implements DbFile {
         byte[] pgData = page.getPageData();
 
         RandomAccessFile dbfile = new RandomAccessFile(dbFile, "rws");
-        dbfile.skipBytes(pgNo * pageSize);
-        dbfile.write(pgData);
+        try {
+            dbfile.seek((long) pgNo * pageSize);
+            dbfile.write(pgData);
+        } finally {
+            dbfile.close();
+        }
+        freeSpace.pageWritten(pgNo);
     }
 
     /**
@@ -123,36 +161,94 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if (rowLocking) {
+            return insertRow(tid, t);
+        }
         ArrayList<Page> affected = new ArrayList<>(1);
-        int numPages = numPages();
+        BufferPool bp = Database.getBufferPool();
 
-        for (int pgNo = 0; pgNo <= numPages; pgNo++) {
+        for (int pgNo = pageWithRoom(0); ; pgNo = pageWithRoom(pgNo + 1)) {
             HeapPageId pid = new HeapPageId(getId(), pgNo);
-            HeapPage pg;
-            if (pgNo < numPages) {
-                pg = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            } else {
-                // pgNo = numpages -> we need add new page
-                pg = new HeapPage(pid, HeapPage.createEmptyPageData());
-            }
+            boolean held = bp.holdsLock(tid, pid);
+            HeapPage pg = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
 
             if (pg.getNumEmptySlots() > 0) {
                 // insert will update tuple when inserted
                 pg.insertTuple(t);
-                // writePage(pg);
-                if (pgNo < numPages) {
-                    pg.markDirty(true, tid);
-                    affected.add(pg);
-                } else {
-                    // should append the dbfile
-                    writePage(pg);
+                pg.markDirty(true, tid);
+                affected.add(pg);
+                if (pg.getNumEmptySlots() == 0) {
+                    freeSpace.setFull(pgNo, true);
+                    bp.pageFilled(tid, pid);
                 }
                 return affected;
             }
+            // the map was out of date; nothing was read from the page
+            freeSpace.setFull(pgNo, true);
+            if (!held) {
+                bp.releasePage(tid, pid);
+            }
+        }
+    }
 
+    // the number of the first page from pgNo on that the free space map
+    // does not know to be full.  If there is none, a page is appended
+    // empty and filled through the buffer pool, so that the insert is
+    // logged and can be rolled back like any other
+    private int pageWithRoom(int pgNo) throws IOException {
+        pgNo = freeSpace.firstFree(pgNo);
+        if (pgNo < numPages()) {
+            return pgNo;
+        }
+        synchronized (this) {
+            // another transaction may have appended one meanwhile
+            int numPages = numPages();
+            if (pgNo < numPages) {
+                return pgNo;
+            }
+            writePage(new HeapPage(new HeapPageId(getId(), numPages), HeapPage.createEmptyPageData()));
+            return numPages;
+        }
+    }
+
+    // insert under a row lock on a free slot; the page is changed in place
+    // and logged, so no pages are returned
+    private ArrayList<Page> insertRow(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!tupleDesc.equals(t.getTupleDesc())) {
+            throw new DbException("HeapFile: insertTuple: tupledesc is mismatch");
+        }
+        BufferPool bp = Database.getBufferPool();
+        for (int pgNo = pageWithRoom(0); ; pgNo = pageWithRoom(pgNo + 1)) {
+            HeapPageId pid = new HeapPageId(getId(), pgNo);
+            boolean held = bp.holdsLock(tid, pid);
+            HeapPage pg = (HeapPage) bp.getPageForRows(tid, pid, Permissions.READ_WRITE);
+            pg.latch().writeLock().lock();
+            try {
+                if (pg.getNumEmptySlots() == 0) {
+                    freeSpace.setFull(pgNo, true);
+                }
+                for (int slot = 0; slot < pg.getNumSlots(); slot++) {
+                    // an empty slot that another transaction has locked
+                    // was freed by a delete that may still roll back
+                    if (!pg.isSlotUsed(slot)
+                        && bp.tryLockTuple(tid, new RecordId(pid, slot), Permissions.READ_WRITE)) {
+                        bp.tupleChanged(tid, pg, slot, null, t);
+                        pg.setSlot(slot, t);
+                        if (pg.getNumEmptySlots() == 0) {
+                            freeSpace.setFull(pgNo, true);
+                            bp.pageFilled(tid, pid);
+                        }
+                        return new ArrayList<Page>();
+                    }
+                }
+            } finally {
+                pg.latch().writeLock().unlock();
+            }
+            if (!held) {
+                bp.releasePage(tid, pid);
+            }
         }
-        // otherwise create new page and insert
-        throw new DbException("HeapFile: InsertTuple: Tuple can not be added");
     }
 
     // see DbFile.java for javadocs
@@ -163,6 +259,10 @@ public class HeapFile implements DbFile {
         ArrayList<Page> affected = new ArrayList<>(1);
         RecordId rid = t.getRecordId();
         HeapPageId pid = (HeapPageId) rid.getPageId();
+        if (pid.getTableId() == getId() && rowLocking) {
+            deleteRow(tid, rid);
+            return affected;
+        }
         if (pid.getTableId() == getId()) {
             // int pgNo = pid.pageNumber();
             HeapPage pg = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
@@ -170,11 +270,92 @@ public class HeapFile implements DbFile {
             // writePage(pg);
             pg.markDirty(true, tid);
             affected.add(pg);
+            pageFreed(pid);
             return affected;
         }
         throw new DbException("HeapFile: deleteTuple: tuple.tableid != getId");
     }
 
+    // delete under a row lock; the page is changed in place and logged
+    private void deleteRow(TransactionId tid, RecordId rid)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        // lock before latching: never wait for a lock holding a latch
+        bp.lockTuple(tid, rid, Permissions.READ_WRITE);
+        HeapPage pg = (HeapPage) bp.getPageForRows(tid, rid.getPageId(), Permissions.READ_WRITE);
+        int slot = rid.tupleno();
+        pg.latch().writeLock().lock();
+        try {
+            Tuple before = pg.getTuple(slot);
+            if (before == null) {
+                throw new DbException("HeapFile: deleteTuple: tuple slot is empty");
+            }
+            bp.tupleChanged(tid, pg, slot, before, null);
+            pg.setSlot(slot, null);
+            pageFreed((HeapPageId) rid.getPageId());
+        } catch (IOException e) {
+            throw new DbException("HeapFile: deleteTuple: cannot log delete: " + e.getMessage());
+        } finally {
+            pg.latch().writeLock().unlock();
+        }
+    }
+
+    // a tuple was deleted from pid: inserts may use it again
+    private void pageFreed(HeapPageId pid) throws DbException {
+        try {
+            pageHasRoom(pid);
+        } catch (IOException e) {
+            throw new DbException("HeapFile: deleteTuple: cannot update free space map: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Record that a page may have an empty slot again, e.g. because the
+     * insert that filled it aborted.
+     */
+    void pageHasRoom(HeapPageId pid) throws IOException {
+        freeSpace.setFull(pid.pageNumber(), false);
+    }
+
+    // the tuples of a page, read under S locks on each of them; a slot
+    // emptied by a delete is skipped even if the delete has not committed
+    private Iterator<Tuple> lockRows(TransactionId tid, HeapPageId pid)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        HeapPage pg = (HeapPage) bp.getPageForRows(tid, pid, Permissions.READ_ONLY);
+        ArrayList<Integer> used = new ArrayList<Integer>();
+        pg.latch().readLock().lock();
+        try {
+            for (int slot = 0; slot < pg.getNumSlots(); slot++) {
+                if (pg.isSlotUsed(slot)) {
+                    used.add(slot);
+                }
+            }
+        } finally {
+            pg.latch().readLock().unlock();
+        }
+        for (int slot : used) {
+            bp.lockTuple(tid, new RecordId(pid, slot), Permissions.READ_ONLY);
+        }
+        // the locked rows cannot change any more; fetch the page again in
+        // case it left the pool while this transaction waited
+        pg = (HeapPage) bp.getPageForRows(tid, pid, Permissions.READ_ONLY);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>(used.size());
+        pg.latch().readLock().lock();
+        try {
+            for (int slot : used) {
+                Tuple t = pg.getTuple(slot);
+                // null if deleted by a transaction that committed meanwhile
+                if (t != null) {
+                    tuples.add(t);
+                }
+            }
+        } finally {
+            pg.latch().readLock().unlock();
+        }
+        return tuples.iterator();
+    }
+
     private class HeapFileIterator implements DbFileIterator {
 
         private Integer pgCursor;
@@ -182,17 +363,23 @@ public class HeapFile implements DbFile {
         private final TransactionId transactionId;
         private final int tableId;
         private final int numPages;
+        // private frames for scans larger than the pool can absorb
+        private final ScanRing ring;
 
-        public HeapFileIterator(TransactionId tid) {
+        public HeapFileIterator(TransactionId tid, ScanRing ring) {
             this.pgCursor = null;
             this.tupleIter = null;
             this.transactionId = tid;
             this.tableId = getId();
             this.numPages = numPages();
+            this.ring = ring;
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
+            if (ring != null) {
+                ring.clear();
+            }
             pgCursor = 0;
             tupleIter = getTupleIter(pgCursor);
         }
@@ -233,15 +420,22 @@ public class HeapFile implements DbFile {
         public void close() {
             pgCursor = null;
             tupleIter = null;
+            if (ring != null) {
+                ring.clear();
+            }
         }
 
         private Iterator<Tuple> getTupleIter(int pgNo)
                 throws TransactionAbortedException, DbException {
-            PageId pid = new HeapPageId(tableId, pgNo);
+            HeapPageId pid = new HeapPageId(tableId, pgNo);
+            if (rowLocking && !transactionId.isSnapshot()) {
+                // snapshots read committed rows without locking them
+                return lockRows(transactionId, pid);
+            }
             return ((HeapPage)
                     Database
                             .getBufferPool()
-                            .getPage(transactionId, pid, Permissions.READ_ONLY))
+                            .getPage(transactionId, pid, Permissions.READ_ONLY, ring))
                     .iterator();
         }
     }
@@ -249,7 +443,18 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(tid);
+        return iterator(tid, Database.getBufferPool().newScanRing(numPages()));
+    }
+
+    /**
+     * Returns an iterator over all the tuples stored in this HeapFile that
+     * reads pages missing from the BufferPool into the given ScanRing.
+     *
+     * @param tid the transaction the scan runs as a part of
+     * @param ring the scan's private frames, or null to read through the pool
+     */
+    public DbFileIterator iterator(TransactionId tid, ScanRing ring) {
+        return new HeapFileIterator(tid, ring);
     }
 
 }
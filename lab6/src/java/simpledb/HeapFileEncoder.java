@@ -106,6 +106,8 @@ public class HeapFileEncoder {
 
     BufferedReader br = new BufferedReader(new FileReader(inFile));
     FileOutputStream os = new FileOutputStream(outFile);
+    // a map left from an earlier file of the same name is out of date
+    HeapFile.freeSpaceMapFile(outFile).delete();
 
     // our numbers probably won't be much larger than 1024 digits
     char buf[] = new char[1024];
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.io.*;
 
 /**
@@ -22,6 +23,11 @@ public class HeapPage implements Page {
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
+    // short-term latch on the slots: held shared while they are read and
+    // exclusively while one is changed, so that transactions with row
+    // locks on the same page see it in a consistent state
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -160,6 +166,15 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
+        latch.readLock().lock();
+        try {
+            return writePageData();
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    private byte[] writePageData() {
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -247,13 +262,18 @@ public class HeapPage implements Page {
         assert t != null;
         RecordId recToDelete = t.getRecordId();
         if (recToDelete != null && pid.equals(recToDelete.pageId)) {
-            for (int i = 0; i < numSlots; i++) {
-                if (isSlotUsed(i) && t.getRecordId().equals(tuples[i].getRecordId())) {
-                    markSlotUsed(i, false);
-                    // t.setRecordId(null);
-                    tuples[i] = null;
-                    return;
+            latch.writeLock().lock();
+            try {
+                for (int i = 0; i < numSlots; i++) {
+                    if (isSlotUsed(i) && t.getRecordId().equals(tuples[i].getRecordId())) {
+                        markSlotUsed(i, false);
+                        // t.setRecordId(null);
+                        tuples[i] = null;
+                        return;
+                    }
                 }
+            } finally {
+                latch.writeLock().unlock();
             }
             throw new DbException("deleteTuple: Error: tuple slot is empty");
         }
@@ -272,20 +292,53 @@ public class HeapPage implements Page {
         // not necessary for lab1
         assert t != null;
         if (td.equals(t.getTupleDesc())) {
-            for (int i = 0; i < numSlots; i++) {
-                if (!isSlotUsed(i)) {
-                    // insert and update header
-                    markSlotUsed(i, true);
-                    t.setRecordId(new RecordId(pid, i));
-                    tuples[i] = t;
-                    return;
+            latch.writeLock().lock();
+            try {
+                for (int i = 0; i < numSlots; i++) {
+                    if (!isSlotUsed(i)) {
+                        // insert and update header
+                        setSlot(i, t);
+                        return;
+                    }
                 }
+            } finally {
+                latch.writeLock().unlock();
             }
             throw new DbException("insertTuple: ERROR: no tuple is inserted");
         }
         throw new DbException("insertTuple: no empty slots or tupledesc is mismatch");
     }
 
+    /**
+     * @return the latch on this page's slots; row-locking HeapFiles hold
+     *   it while they read or change slots
+     */
+    ReentrantReadWriteLock latch() {
+        return latch;
+    }
+
+    /** @return the tuple in slot i, or null if the slot is empty */
+    Tuple getTuple(int i) {
+        return isSlotUsed(i) ? tuples[i] : null;
+    }
+
+    /**
+     * Put t in slot i, or empty the slot if t is null.  The caller holds
+     * the write latch (or has the page to itself, as recovery does).
+     */
+    void setSlot(int i, Tuple t) {
+        markSlotUsed(i, t != null);
+        if (t != null) {
+            t.setRecordId(new RecordId(pid, i));
+        }
+        tuples[i] = t;
+    }
+
+    /** @return the number of slots on this page */
+    int getNumSlots() {
+        return numSlots;
+    }
+
     // private boolean dirty;
     private TransactionId dirtier;
     /**
@@ -364,10 +417,15 @@ public class HeapPage implements Page {
         private final Iterator<Tuple> iter;
         public HeapPageTupleIterator() {
             ArrayList<Tuple> tupleArrayList = new ArrayList<Tuple>(numSlots);
-            for (int i = 0; i < numSlots; i++) {
-                if (isSlotUsed(i)) {
-                    tupleArrayList.add(i, tuples[i]);
+            latch.readLock().lock();
+            try {
+                for (int i = 0; i < numSlots; i++) {
+                    if (isSlotUsed(i)) {
+                        tupleArrayList.add(tuples[i]);
+                    }
                 }
+            } finally {
+                latch.readLock().unlock();
             }
             iter = tupleArrayList.iterator();
         }
@@ -0,0 +1,69 @@
+package simpledb;
+
+/**
+ * A KeyId names a key value of a B+ tree file for key-range locking.  A
+ * lock on a key covers every tuple with that key and the gap between it
+ * and the next smaller key in the file.  The end of the file has a KeyId
+ * of its own, whose lock covers the gap after the largest key.
+ *
+ * @see BTreeFile#setKeyLocking
+ */
+public class KeyId {
+
+    private final int tableId;
+    private final Field key;
+
+    /**
+     * Creates a new KeyId for a key of the specified table.
+     *
+     * @param tableId
+     *            the table the key belongs to
+     * @param key
+     *            the key, or null for the end of the table
+     */
+    public KeyId(int tableId, Field key) {
+        this.tableId = tableId;
+        this.key = key;
+    }
+
+    /**
+     * @return the table this KeyId belongs to.
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the key this KeyId names, or null for the end of the table.
+     */
+    public Field getKey() {
+        return key;
+    }
+
+    /**
+     * Two KeyId objects are considered equal if they name the same key of
+     * the same table.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof KeyId) {
+            KeyId kid = (KeyId) o;
+            if (kid.tableId != tableId) {
+                return false;
+            }
+            return key == null ? kid.key == null
+                    : kid.key != null && key.getType() == kid.key.getType() && key.equals(kid.key);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * tableId + (key == null ? 0 : key.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return "KeyId(" + tableId + ", " + (key == null ? "end" : key.toString()) + ")";
+    }
+}
@@ -0,0 +1,959 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * LockManager keeps the page and table locks of transactions.  Every
+ * locked page or table has an entry with its holders and a FIFO queue of
+ * waiting requests.  Entries are spread over stripes, each with its own
+ * latch, so locking different pages rarely contends.
+ * <p>
+ * Locking is multi-granular.  Before a transaction locks a page it takes
+ * an intention lock on the page's table: IS for an S page lock and IX
+ * for an X one.  A table lock in S, SIX or X mode covers the pages under
+ * it, so no page locks are taken for them.  Once a transaction holds more
+ * page locks on a table than the escalation threshold, they are replaced
+ * by one S or X table lock, if that can be granted without waiting.  A
+ * large scan or bulk delete then takes a constant number of lock-table
+ * entries.
+ * <p>
+ * Tables that use row locking add a third level: a transaction locks a
+ * tuple, by its RecordId, in S or X mode after taking an IS or IX lock on
+ * its page (and on the table).  Row locks are not escalated; a page or
+ * table lock that covers a row makes its row lock unnecessary.
+ * <p>
+ * B+ tree files with key locking lock key ranges instead, by KeyId, in S
+ * or X mode under an IS or IX lock on the table.  A key lock covers the
+ * key and the gap below it, so a scan that locks the keys it returns and
+ * the key after its range keeps inserts out of the range.  Key locks are
+ * not escalated either.
+ * <p>
+ * A request that cannot be granted waits in the page's queue, parked.
+ * When holders leave, the requests at the head of the queue that are now
+ * compatible are granted in order and only their threads are unparked.
+ * A new request also waits if others are queued ahead of it, so writers
+ * are not starved by a stream of readers; an upgrade from S to X, whose
+ * holder blocks everyone behind it, goes to the head of the queue.
+ * <p>
+ * Deadlocks are found with a wait-for graph: a transaction waits for the
+ * holders of the page it is queued on and for the conflicting requests
+ * ahead of it.  Each time a request has to wait, the graph is searched
+ * for a cycle through it and the youngest transaction on the cycle is
+ * aborted at once.  The timeout only remains as a backstop.  With the
+ * TIMEOUT policy there is no graph, and a waiter aborts after a random
+ * time instead.
+ * <p>
+ * The WAIT_DIE and WOUND_WAIT policies prevent deadlocks instead, using
+ * the transaction id as its age.  They only let transactions wait for
+ * younger ones (wait-die) or for older ones (wound-wait), so there can
+ * be no cycle.  Under wait-die a younger requester aborts rather than
+ * wait.  Under wound-wait an older requester wounds the younger
+ * transactions in its way: a wounded transaction that is waiting aborts
+ * at once, and one that is running aborts at its next lock request.
+ */
+public class LockManager {
+    /**
+     * Lock modes.  Tuples are locked in S or X mode; pages and tables also
+     * in the intention modes IS, IX and SIX (S plus IX).
+     */
+    public enum LockType {
+        ISLock, IXLock, SLock, SIXLock, XLock;
+
+        private static final boolean[][] COMPATIBLE = {
+            //  IS     IX     S      SIX    X
+            {true,  true,  true,  true,  false}, // IS
+            {true,  true,  false, false, false}, // IX
+            {true,  false, true,  false, false}, // S
+            {true,  false, false, false, false}, // SIX
+            {false, false, false, false, false}, // X
+        };
+
+        /** @return true if two transactions may hold this and other at once */
+        public boolean compatibleWith(LockType other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return the weakest mode at least as strong as this and other */
+        public LockType sup(LockType other) {
+            if ((this == IXLock && other == SLock) || (this == SLock && other == IXLock)) {
+                return SIXLock;
+            }
+            return ordinal() >= other.ordinal() ? this : other;
+        }
+
+        /** @return the lock to take on the parent before a lock of this mode */
+        LockType intention() {
+            return this == SLock || this == ISLock ? ISLock : IXLock;
+        }
+    }
+
+    /** How deadlocks are resolved. */
+    public enum DeadlockPolicy {
+        /** abort waiters after a random timeout */
+        TIMEOUT,
+        /** abort the youngest transaction on a wait-for cycle */
+        DETECT,
+        /** a requester younger than a transaction in its way aborts */
+        WAIT_DIE,
+        /** a requester older than a transaction in its way aborts that one */
+        WOUND_WAIT
+    }
+
+    /** Why a lock request was aborted. */
+    public enum AbortReason {
+        TIMEOUT, DEADLOCK, DIE, WOUND
+    }
+
+    /** Number of stripes the lock table is split into. */
+    static final int NUM_STRIPES = 64;
+
+    /** Default number of page locks on a table after which they escalate. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    // a request waiting in a queue; key is a RecordId, a PageId, or the
+    // Integer id of a table
+    private static class Request {
+        final TransactionId tid;
+        final Object key;
+        final LockType type;
+        final Thread thread;
+        volatile boolean granted = false;
+        volatile AbortReason aborted = null; // set when cancelled
+
+        Request(TransactionId tid, Object key, LockType type) {
+            this.tid = tid;
+            this.key = key;
+            this.type = type;
+            this.thread = Thread.currentThread();
+        }
+    }
+
+    // the lock on one tuple, page or table
+    private static class LockEntry {
+        final LinkedHashMap<TransactionId, LockType> holders = new LinkedHashMap<TransactionId, LockType>(4);
+        // number of holders in each mode
+        final int[] counts = new int[LockType.values().length];
+        final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+
+        boolean holds(TransactionId tid) {
+            return holders.containsKey(tid);
+        }
+
+        // whether tid could hold the lock in mode type, ignoring the queue
+        boolean compatible(TransactionId tid, LockType type) {
+            LockType held = holders.get(tid);
+            LockType want = held == null ? type : held.sup(type);
+            for (LockType m : LockType.values()) {
+                int others = counts[m.ordinal()] - (held == m ? 1 : 0);
+                if (others > 0 && !want.compatibleWith(m)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean covers(TransactionId tid, LockType type) {
+            LockType held = holders.get(tid);
+            return held != null && held.sup(type) == held;
+        }
+
+        boolean isEmpty() {
+            return holders.isEmpty() && queue.isEmpty();
+        }
+    }
+
+    // a latch and the entries that hash to it
+    private static class Stripe {
+        final HashMap<Object, LockEntry> locks = new HashMap<Object, LockEntry>();
+    }
+
+    // what one transaction holds; latched by itself
+    private static class TxnLocks {
+        // pages locked, directly or through a table lock
+        final LinkedHashSet<PageId> pages = new LinkedHashSet<PageId>();
+        // pages with a page lock of their own
+        final HashSet<PageId> locked = new HashSet<PageId>();
+        // number of page locks held on each table
+        final HashMap<Integer, Integer> pageLocks = new HashMap<Integer, Integer>();
+        // modes of the table locks held
+        final HashMap<Integer, LockType> tables = new HashMap<Integer, LockType>();
+        // tuples with a row lock
+        final HashSet<RecordId> tuples = new HashSet<RecordId>();
+        // keys with a key lock
+        final HashSet<KeyId> keys = new HashSet<KeyId>();
+        // number of key locks held on each table
+        final HashMap<Integer, Integer> keyLocks = new HashMap<Integer, Integer>();
+
+        // whether the table lock on tableId makes a page or row lock of
+        // mode type unnecessary
+        boolean tableCovers(Integer tableId, LockType type) {
+            LockType held = tables.get(tableId);
+            return held == LockType.XLock
+                || ((type == LockType.SLock || type == LockType.ISLock)
+                    && (held == LockType.SLock || held == LockType.SIXLock));
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final Random rand = new Random();
+    private final ConcurrentHashMap<TransactionId, TxnLocks> transactionTable;
+    // the request each blocked transaction waits on: the wait-for graph's
+    // vertices, whose edges are read from the lock table when searched
+    private final ConcurrentHashMap<TransactionId, Request> waiting = new ConcurrentHashMap<>();
+    // transactions wounded by older ones under WOUND_WAIT
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+    private volatile DeadlockPolicy policy = DeadlockPolicy.DETECT;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    private final AtomicLong[] aborts = new AtomicLong[AbortReason.values().length];
+    private final AtomicLong escalations = new AtomicLong(0);
+
+    public LockManager(int lockTabCap, int transTabCap) {
+        stripes = new Stripe[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.transactionTable = new ConcurrentHashMap<>(transTabCap);
+        for (int i = 0; i < aborts.length; i++) {
+            aborts[i] = new AtomicLong(0);
+        }
+    }
+
+    /** Set how deadlocks are resolved for requests made after this call. */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        this.policy = policy;
+    }
+
+    public DeadlockPolicy getDeadlockPolicy() {
+        return policy;
+    }
+
+    /**
+     * Set the number of page locks a transaction may hold on one table
+     * before they are escalated to a table lock.
+     */
+    public void setEscalationThreshold(int threshold) {
+        this.escalationThreshold = threshold;
+    }
+
+    /** @return the number of lock requests aborted for the given reason */
+    public long getAbortCount(AbortReason reason) {
+        return aborts[reason.ordinal()].get();
+    }
+
+    /** @return the number of times page locks were escalated to a table lock */
+    public long getEscalationCount() {
+        return escalations.get();
+    }
+
+    private Stripe stripeOf(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return stripes[Math.floorMod(h ^ (h >>> 16), NUM_STRIPES)];
+    }
+
+    /** @return true if tid holds a lock on pid, or on its table in S, SIX or X mode */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        TxnLocks t = transactionTable.get(tid);
+        if (t == null) {
+            return false;
+        }
+        synchronized (t) {
+            return t.pages.contains(pid);
+        }
+    }
+
+    /** @return true if tid holds a row lock on rid */
+    public boolean holdsTupleLock(TransactionId tid, RecordId rid) {
+        TxnLocks t = transactionTable.get(tid);
+        if (t == null) {
+            return false;
+        }
+        synchronized (t) {
+            return t.tuples.contains(rid);
+        }
+    }
+
+    /** @return true if tid holds a key lock on kid */
+    public boolean holdsKeyLock(TransactionId tid, KeyId kid) {
+        TxnLocks t = transactionTable.get(tid);
+        if (t == null) {
+            return false;
+        }
+        synchronized (t) {
+            return t.keys.contains(kid);
+        }
+    }
+
+    /**
+     * @return true if some transaction holds pid in IX or SIX mode, i.e.
+     *   may be changing rows on it
+     */
+    public boolean hasRowWriters(PageId pid) {
+        Stripe stripe = stripeOf(pid);
+        synchronized (stripe) {
+            LockEntry e = stripe.locks.get(pid);
+            return e != null
+                && e.counts[LockType.IXLock.ordinal()] + e.counts[LockType.SIXLock.ordinal()] > 0;
+        }
+    }
+
+    /**
+     * @return true if a transaction other than tid holds pid in X, IX or
+     *   SIX mode, or its table in X mode, i.e. may be changing the page
+     */
+    public boolean hasOtherWriter(TransactionId tid, PageId pid) {
+        Stripe stripe = stripeOf(pid);
+        synchronized (stripe) {
+            LockEntry e = stripe.locks.get(pid);
+            if (e != null) {
+                for (Map.Entry<TransactionId, LockType> h : e.holders.entrySet()) {
+                    LockType m = h.getValue();
+                    if (m != LockType.SLock && m != LockType.ISLock && !h.getKey().equals(tid)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        Integer tableId = pid.getTableId();
+        stripe = stripeOf(tableId);
+        synchronized (stripe) {
+            LockEntry e = stripe.locks.get(tableId);
+            if (e != null) {
+                for (Map.Entry<TransactionId, LockType> h : e.holders.entrySet()) {
+                    if (h.getValue() == LockType.XLock && !h.getKey().equals(tid)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /** @return the mode tid holds the table lock on tableId in, or null */
+    public LockType getTableLock(TransactionId tid, int tableId) {
+        TxnLocks t = transactionTable.get(tid);
+        if (t == null) {
+            return null;
+        }
+        synchronized (t) {
+            return t.tables.get(tableId);
+        }
+    }
+
+    // tid's entry in the transaction table, latched, for f to update
+    private void updateTransactionTable(TransactionId tid, Consumer<TxnLocks> f) {
+        while (true) {
+            TxnLocks t = transactionTable.computeIfAbsent(tid, k -> new TxnLocks());
+            synchronized (t) {
+                // the entry may have been dropped meanwhile
+                if (transactionTable.get(tid) == t) {
+                    f.accept(t);
+                    return;
+                }
+            }
+        }
+    }
+
+    // make tid a holder of e in mode type; must hold the stripe latch
+    private void grant(LockEntry e, Object key, TransactionId tid, LockType type) {
+        LockType held = e.holders.get(tid);
+        LockType mode = held == null ? type : held.sup(type);
+        if (held != null) {
+            e.counts[held.ordinal()]--;
+        }
+        e.counts[mode.ordinal()]++;
+        e.holders.put(tid, mode);
+        if (key instanceof RecordId) {
+            if (held == null) {
+                updateTransactionTable(tid, t -> t.tuples.add((RecordId) key));
+            }
+        } else if (key instanceof KeyId) {
+            if (held == null) {
+                KeyId kid = (KeyId) key;
+                updateTransactionTable(tid, t -> {
+                    t.keys.add(kid);
+                    t.keyLocks.merge(kid.getTableId(), 1, Integer::sum);
+                });
+            }
+        } else if (key instanceof PageId) {
+            if (held == null) {
+                PageId pid = (PageId) key;
+                updateTransactionTable(tid, t -> {
+                    t.pages.add(pid);
+                    t.locked.add(pid);
+                    t.pageLocks.merge(pid.getTableId(), 1, Integer::sum);
+                });
+            }
+        } else {
+            updateTransactionTable(tid, t -> t.tables.put((Integer) key, mode));
+        }
+    }
+
+    // grant the requests at the head of the queue that have become
+    // compatible, and wake their threads; must hold the stripe latch
+    private void grantWaiters(LockEntry e, Object key) {
+        Request r;
+        while ((r = e.queue.peekFirst()) != null && e.compatible(r.tid, r.type)) {
+            e.queue.pollFirst();
+            grant(e, key, r.tid, r.type);
+            r.granted = true;
+            LockSupport.unpark(r.thread);
+        }
+    }
+
+    // the transactions r waits for: the holders of its page or table and
+    // the requests queued ahead of it, where they conflict with r
+    private List<TransactionId> blockers(Request r) {
+        ArrayList<TransactionId> result = new ArrayList<TransactionId>();
+        Stripe stripe = stripeOf(r.key);
+        synchronized (stripe) {
+            LockEntry e = stripe.locks.get(r.key);
+            if (e == null || r.granted || r.aborted != null) {
+                return result;
+            }
+            LockType held = e.holders.get(r.tid);
+            LockType want = held == null ? r.type : held.sup(r.type);
+            for (Map.Entry<TransactionId, LockType> h : e.holders.entrySet()) {
+                if (!h.getKey().equals(r.tid) && !want.compatibleWith(h.getValue())) {
+                    result.add(h.getKey());
+                }
+            }
+            for (Request q : e.queue) {
+                if (q == r) {
+                    break;
+                }
+                if (!q.tid.equals(r.tid) && !r.type.compatibleWith(q.type)) {
+                    result.add(q.tid);
+                }
+            }
+        }
+        return result;
+    }
+
+    // depth-first search for a path of waits from r back to start.tid;
+    // path holds the requests on the current path
+    private boolean findCycle(Request r, Request start, Set<TransactionId> visited,
+                              ArrayList<Request> path) {
+        path.add(r);
+        for (TransactionId b : blockers(r)) {
+            if (b.equals(start.tid)) {
+                return true;
+            }
+            if (visited.add(b)) {
+                Request next = waiting.get(b);
+                if (next != null && findCycle(next, start, visited, path)) {
+                    return true;
+                }
+            }
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    // look for a cycle of waits through r and abort its youngest member
+    private void detectDeadlock(Request r) {
+        ArrayList<Request> path = new ArrayList<Request>();
+        if (!findCycle(r, r, new HashSet<TransactionId>(), path)) {
+            return;
+        }
+        Request victim = r;
+        for (Request q : path) {
+            if (q.tid.getId() > victim.tid.getId()) {
+                victim = q;
+            }
+        }
+        cancel(victim, AbortReason.DEADLOCK);
+    }
+
+    // the requests queued behind r
+    private List<Request> queuedBehind(Request r) {
+        ArrayList<Request> result = new ArrayList<Request>();
+        Stripe stripe = stripeOf(r.key);
+        synchronized (stripe) {
+            LockEntry e = stripe.locks.get(r.key);
+            if (e == null) {
+                return result;
+            }
+            boolean behind = false;
+            for (Request q : e.queue) {
+                if (behind) {
+                    result.add(q);
+                }
+                behind |= q == r;
+            }
+        }
+        return result;
+    }
+
+    // make sure the waiter r waiting for blocker is allowed by the policy
+    private void prevent(Request r, TransactionId blocker) {
+        boolean older = r.tid.getId() < blocker.getId();
+        if (policy == DeadlockPolicy.WAIT_DIE && !older) {
+            cancel(r, AbortReason.DIE);
+        } else if (policy == DeadlockPolicy.WOUND_WAIT && older) {
+            wound(blocker);
+        }
+    }
+
+    // abort tid now if it is waiting, or at its next lock request
+    private void wound(TransactionId tid) {
+        wounded.add(tid);
+        Request w = waiting.get(tid);
+        if (w != null) {
+            cancel(w, AbortReason.WOUND);
+        } else if (!transactionTable.containsKey(tid)) {
+            // finished meanwhile
+            wounded.remove(tid);
+        }
+    }
+
+    // take a waiting request out of its queue and wake it to abort
+    private void cancel(Request r, AbortReason reason) {
+        Stripe stripe = stripeOf(r.key);
+        synchronized (stripe) {
+            if (r.granted || r.aborted != null) {
+                return;
+            }
+            LockEntry e = stripe.locks.get(r.key);
+            r.aborted = reason;
+            e.queue.remove(r);
+            // requests behind this one may be grantable now
+            grantWaiters(e, r.key);
+            if (e.isEmpty()) {
+                stripe.locks.remove(r.key);
+            }
+        }
+        LockSupport.unpark(r.thread);
+    }
+
+    private void checkWounded(TransactionId tid) throws TransactionAbortedException {
+        if (wounded.contains(tid)) {
+            aborts[AbortReason.WOUND.ordinal()].incrementAndGet();
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * Acquire a page lock, waiting in the queues of the page and its table
+     * if necessary.  An intention lock is taken on the table first, unless
+     * a table lock already covers the page.
+     *
+     * @param maxTimeout the waiter aborts after this many milliseconds; with
+     *   the TIMEOUT policy, after a random time of up to this
+     * @throws TransactionAbortedException if the transaction was chosen as
+     *   a deadlock victim, died or was wounded, or the wait timed out
+     */
+    public void acquireLock(TransactionId tid, PageId pid, LockType reqLock, int maxTimeout)
+            throws TransactionAbortedException {
+        checkWounded(tid);
+        Integer tableId = pid.getTableId();
+        if (coveredByTable(tid, pid, reqLock)) {
+            return;
+        }
+        lock(tid, tableId, reqLock.intention(), maxTimeout);
+        lock(tid, pid, reqLock, maxTimeout);
+        escalate(tid, tableId);
+    }
+
+    /**
+     * Acquire a table lock, waiting in the table's queue if necessary.
+     * An S, SIX or X table lock covers the table's pages.
+     *
+     * @see #acquireLock(TransactionId, PageId, LockType, int)
+     */
+    public void acquireTableLock(TransactionId tid, int tableId, LockType reqLock, int maxTimeout)
+            throws TransactionAbortedException {
+        checkWounded(tid);
+        lock(tid, tableId, reqLock, maxTimeout);
+    }
+
+    /**
+     * Acquire a row lock, waiting if necessary.  Intention locks are taken
+     * on the tuple's page and table first, unless a page or table lock
+     * already covers the tuple.
+     *
+     * @see #acquireLock(TransactionId, PageId, LockType, int)
+     */
+    public void acquireTupleLock(TransactionId tid, RecordId rid, LockType reqLock, int maxTimeout)
+            throws TransactionAbortedException {
+        checkWounded(tid);
+        PageId pid = rid.getPageId();
+        if (coveredByTable(tid, pid, reqLock) || coveredByPage(tid, pid, reqLock)) {
+            return;
+        }
+        acquireLock(tid, pid, reqLock.intention(), maxTimeout);
+        lock(tid, rid, reqLock, maxTimeout);
+    }
+
+    /**
+     * Acquire a key lock, waiting if necessary.  An intention lock is taken
+     * on the table first, unless a table lock already covers the key.
+     *
+     * @see #acquireLock(TransactionId, PageId, LockType, int)
+     */
+    public void acquireKeyLock(TransactionId tid, KeyId kid, LockType reqLock, int maxTimeout)
+            throws TransactionAbortedException {
+        checkWounded(tid);
+        Integer tableId = kid.getTableId();
+        TxnLocks t = transactionTable.get(tid);
+        if (t != null) {
+            synchronized (t) {
+                if (t.tableCovers(tableId, reqLock)) {
+                    return;
+                }
+            }
+        }
+        lock(tid, tableId, reqLock.intention(), maxTimeout);
+        lock(tid, kid, reqLock, maxTimeout);
+    }
+
+    /**
+     * Grant the key lock if that is possible without waiting.
+     *
+     * @return true if tid now holds reqLock (or a stronger lock) on kid
+     */
+    public boolean tryAcquireKeyLock(TransactionId tid, KeyId kid, LockType reqLock) {
+        Integer tableId = kid.getTableId();
+        TxnLocks t = transactionTable.get(tid);
+        if (t != null) {
+            synchronized (t) {
+                if (t.tableCovers(tableId, reqLock)) {
+                    return true;
+                }
+            }
+        }
+        if (!tryLock(tid, tableId, reqLock.intention())) {
+            return false;
+        }
+        if (!tryLock(tid, kid, reqLock)) {
+            releaseUnusedIntention(tid, tableId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Release tid's lock on kid before the transaction ends, e.g. an
+     * insert's lock on the key after it, which is only needed until the
+     * new key is in place.
+     */
+    public void releaseKeyLock(TransactionId tid, KeyId kid) {
+        TxnLocks t = transactionTable.get(tid);
+        if (t == null) {
+            return;
+        }
+        Integer tableId = kid.getTableId();
+        boolean locked;
+        synchronized (t) {
+            locked = t.keys.remove(kid);
+            if (locked && t.keyLocks.merge(tableId, -1, Integer::sum) == 0) {
+                t.keyLocks.remove(tableId);
+            }
+        }
+        if (locked) {
+            release(tid, kid);
+            releaseUnusedIntention(tid, tableId);
+        }
+    }
+
+    /**
+     * Grant the row lock if that is possible without waiting.
+     *
+     * @return true if tid now holds reqLock (or a stronger lock) on rid
+     */
+    public boolean tryAcquireTupleLock(TransactionId tid, RecordId rid, LockType reqLock) {
+        PageId pid = rid.getPageId();
+        if (coveredByTable(tid, pid, reqLock) || coveredByPage(tid, pid, reqLock)) {
+            return true;
+        }
+        if (!tryAcquireLock(tid, pid, reqLock.intention())) {
+            return false;
+        }
+        // the intention lock on the page stays: it is not worth counting
+        // row locks per page to drop it
+        return tryLock(tid, rid, reqLock);
+    }
+
+    // whether tid's page lock on pid covers a row lock of mode type
+    private boolean coveredByPage(TransactionId tid, PageId pid, LockType type) {
+        Stripe stripe = stripeOf(pid);
+        synchronized (stripe) {
+            LockEntry e = stripe.locks.get(pid);
+            if (e == null) {
+                return false;
+            }
+            LockType held = e.holders.get(tid);
+            return held == LockType.XLock
+                || (type == LockType.SLock && (held == LockType.SLock || held == LockType.SIXLock));
+        }
+    }
+
+    // if tid's table lock covers a page lock of mode type on pid, note the
+    // page as locked
+    private boolean coveredByTable(TransactionId tid, PageId pid, LockType type) {
+        TxnLocks t = transactionTable.get(tid);
+        if (t == null) {
+            return false;
+        }
+        synchronized (t) {
+            if (t.tableCovers(pid.getTableId(), type)) {
+                t.pages.add(pid);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // replace tid's page locks on a table by one table lock, once there
+    // are too many of them and the table lock is free to take
+    private void escalate(TransactionId tid, Integer tableId) {
+        TxnLocks t = transactionTable.get(tid);
+        if (t == null) {
+            return;
+        }
+        LockType held;
+        synchronized (t) {
+            if (t.pageLocks.getOrDefault(tableId, 0) <= escalationThreshold) {
+                return;
+            }
+            held = t.tables.get(tableId);
+        }
+        LockType target = held == LockType.ISLock ? LockType.SLock : LockType.XLock;
+        if (!tryLock(tid, tableId, target)) {
+            return;
+        }
+        escalations.incrementAndGet();
+        ArrayList<PageId> covered = new ArrayList<PageId>();
+        synchronized (t) {
+            Iterator<PageId> it = t.locked.iterator();
+            while (it.hasNext()) {
+                PageId pid = it.next();
+                if (pid.getTableId() == tableId) {
+                    covered.add(pid);
+                    it.remove();
+                }
+            }
+            t.pageLocks.remove(tableId);
+        }
+        for (PageId pid : covered) {
+            release(tid, pid);
+        }
+    }
+
+    // acquire the lock on key, waiting if necessary
+    private void lock(TransactionId tid, Object key, LockType reqLock, int maxTimeout)
+            throws TransactionAbortedException {
+        Stripe stripe = stripeOf(key);
+        LockEntry e;
+        Request r;
+        boolean upgrade;
+        synchronized (stripe) {
+            e = stripe.locks.get(key);
+            if (e == null) {
+                e = new LockEntry();
+                stripe.locks.put(key, e);
+            }
+            if (e.covers(tid, reqLock)
+                || (e.queue.isEmpty() && e.compatible(tid, reqLock))) {
+                grant(e, key, tid, reqLock);
+                return;
+            }
+            r = new Request(tid, key, reqLock);
+            upgrade = e.holds(tid);
+            if (upgrade) {
+                // an upgrade: everyone behind it waits for tid anyway
+                e.queue.addFirst(r);
+            } else {
+                e.queue.addLast(r);
+            }
+            // an upgrade by the only holder can go ahead at once
+            grantWaiters(e, key);
+            if (r.granted) {
+                return;
+            }
+            waiting.put(tid, r);
+        }
+
+        long timeout = maxTimeout;
+        switch (policy) {
+        case TIMEOUT:
+            synchronized (rand) {
+                timeout = rand.nextInt(maxTimeout + 1);
+            }
+            break;
+        case DETECT:
+            detectDeadlock(r);
+            break;
+        default:
+            if (wounded.contains(tid)) {
+                // wounded while enqueueing
+                cancel(r, AbortReason.WOUND);
+            }
+            for (TransactionId b : blockers(r)) {
+                prevent(r, b);
+            }
+            if (upgrade) {
+                // the requests behind now wait for tid as well
+                for (Request q : queuedBehind(r)) {
+                    prevent(q, tid);
+                }
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        try {
+            while (!r.granted) {
+                if (r.aborted != null) {
+                    aborts[r.aborted.ordinal()].incrementAndGet();
+                    throw new TransactionAbortedException();
+                }
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    cancel(r, AbortReason.TIMEOUT);
+                    continue;
+                }
+                LockSupport.parkNanos(this, left);
+            }
+        } finally {
+            waiting.remove(tid, r);
+        }
+    }
+
+    /**
+     * Grant the page lock if that is possible without waiting.
+     *
+     * @return true if tid now holds reqLock (or a stronger lock) on pid
+     */
+    public boolean tryAcquireLock(TransactionId tid, PageId pid, LockType reqLock) {
+        Integer tableId = pid.getTableId();
+        if (coveredByTable(tid, pid, reqLock)) {
+            return true;
+        }
+        if (!tryLock(tid, tableId, reqLock.intention())) {
+            return false;
+        }
+        if (!tryLock(tid, pid, reqLock)) {
+            releaseUnusedIntention(tid, tableId);
+            return false;
+        }
+        return true;
+    }
+
+    // grant the lock on key if that is possible without waiting
+    private boolean tryLock(TransactionId tid, Object key, LockType reqLock) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            LockEntry e = stripe.locks.get(key);
+            if (e == null) {
+                e = new LockEntry();
+                stripe.locks.put(key, e);
+            }
+            if (e.covers(tid, reqLock)
+                || (e.queue.isEmpty() && e.compatible(tid, reqLock))) {
+                grant(e, key, tid, reqLock);
+                return true;
+            }
+            if (e.isEmpty()) {
+                stripe.locks.remove(key);
+            }
+            return false;
+        }
+    }
+
+    // drop tid's lock on key and grant what that allows; the caller
+    // updates the transaction table
+    private void release(TransactionId tid, Object key) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            LockEntry e = stripe.locks.get(key);
+            if (e == null) {
+                return;
+            }
+            LockType held = e.holders.remove(tid);
+            if (held == null) {
+                return;
+            }
+            e.counts[held.ordinal()]--;
+            grantWaiters(e, key);
+            if (e.isEmpty()) {
+                stripe.locks.remove(key);
+            }
+        }
+    }
+
+    // drop tid's intention lock on a table it holds no page or key locks on
+    private void releaseUnusedIntention(TransactionId tid, Integer tableId) {
+        TxnLocks t = transactionTable.get(tid);
+        if (t == null) {
+            return;
+        }
+        synchronized (t) {
+            LockType held = t.tables.get(tableId);
+            if (t.pageLocks.containsKey(tableId) || t.keyLocks.containsKey(tableId)
+                || (held != LockType.ISLock && held != LockType.IXLock)) {
+                return;
+            }
+            t.tables.remove(tableId);
+        }
+        release(tid, tableId);
+    }
+
+    /**
+     * Release tid's lock on pid before the transaction ends.  Its intention
+     * lock on the table goes too once it holds no other page locks there.
+     */
+    public void releaseLock(TransactionId tid, PageId pid) {
+        TxnLocks t = transactionTable.get(tid);
+        if (t == null) {
+            return;
+        }
+        Integer tableId = pid.getTableId();
+        boolean locked;
+        synchronized (t) {
+            t.pages.remove(pid);
+            locked = t.locked.remove(pid);
+            if (locked && t.pageLocks.merge(tableId, -1, Integer::sum) == 0) {
+                t.pageLocks.remove(tableId);
+            }
+        }
+        if (locked) {
+            release(tid, pid);
+            releaseUnusedIntention(tid, tableId);
+        }
+    }
+
+    public void releaseLocksOnTransaction(TransactionId tid) {
+        wounded.remove(tid);
+        TxnLocks t = transactionTable.remove(tid);
+        if (t == null) {
+            return;
+        }
+        ArrayList<Object> keys;
+        synchronized (t) {
+            keys = new ArrayList<Object>(t.tuples);
+            keys.addAll(t.keys);
+            keys.addAll(t.locked);
+            keys.addAll(t.tables.keySet());
+        }
+        for (Object key : keys) {
+            release(tid, key);
+        }
+    }
+
+    /**
+     * @return the pages tid holds locks on, directly or through a table
+     *   lock, or null if there are none
+     */
+    public ArrayList<PageId> getLockList(TransactionId tid) {
+        TxnLocks t = transactionTable.get(tid);
+        if (t == null) {
+            return null;
+        }
+        synchronized (t) {
+            return t.pages.isEmpty() ? null : new ArrayList<PageId>(t.pages);
+        }
+    }
+}
@@ -4,8 +4,9 @@ package simpledb;
 import com.sun.xml.internal.ws.policy.privateutil.PolicyUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.*;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -16,24 +17,54 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+Log records are appended under this object's monitor.  Inside it, the
+log takes the monitor of its LogBuffer (when appending to or draining
+the buffer), the group commit lock (only to look at or join the group
+state; the log is never forced while holding it), and BufferPool shard
+latches (when rollback and recovery discard pages).  None of those is
+ever held while calling back into the log: the BufferPool does not hold
+a shard latch while it logs or forces pages, and a group leader forces
+the log after releasing the group lock.  The order is therefore
 
 <p>
 <pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
+    LogFile monitor  -&gt;  LogBuffer / group lock / shard latch
+</pre>
 
-       ..
+Checkpoints are fuzzy and do not touch the BufferPool at all.  Abort,
+rollback and recovery, which change pages behind the BufferPool's back,
+additionally hold the BufferPool's own monitor around the LogFile
+monitor, so that they do not run while {@link BufferPool#setStealNoForce}
+switches buffer management modes.
 
-       }
-    }
-</pre>
+<u> Group commit: </u>
+<p>
+
+By default every commit forces the log on its own.  With group commit
+enabled ({@link #setGroupCommit}), a transaction that needs the log on
+disk waits for a short window so that commits of concurrent transactions
+can share one force: the first waiter becomes the leader of a group,
+waits until the window expires or the group is full, and forces the log
+on behalf of every record appended so far.  Group waits never happen
+while holding this object's monitor, and the leader forces the log
+after it stops holding the group's lock, so commits arriving meanwhile
+gather for the next group.  A force for the WAL rule, before a page is
+written, joins a group only if commits are already waiting; otherwise
+it forces the log at once instead of waiting out the window.
+
+<u> Checkpoints: </u>
+<p>
+
+Checkpoints are fuzzy: they neither flush the BufferPool nor lock it.
+Instead the log keeps a dirty page table with, for every page that has
+log records not yet written to its file, the offset of the oldest such
+record (its recLSN.)  The BufferPool reports page writes with
+{@link #pageWritten}.  A checkpoint record stores the dirty page table
+along with the active transactions, and recovery starts redo at the
+smallest recLSN it finds there, skipping records of pages that were
+already written.  {@link #startCheckpoints} takes checkpoints
+periodically in the background, so redo work stays bounded however long
+the server runs.
 */
 
 /**
@@ -41,42 +72,78 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is one logical file stored in fixed-size segment files
+next to the log file (see LogSegments); offsets below are positions in
+that logical file, and do not change when old segments are deleted.
+
+<li> The log file itself holds the offset of the last written
+checkpoint, or -1 if there are no checkpoints, followed by the segment
+size.  The first long integer of the logical file is unused.
 
 <li> All additional data in the log consists of log records.  Log
-records are variable length.
+records are variable length, and may span segments.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, a long integer
+transaction id, and a long integer offset of the previous record of the
+same transaction (or -1 for its first record.)  These offsets chain a
+transaction's records together, so rollback visits only the records of
+the transaction being rolled back.
 
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA, TUPLE,
+BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  A serialized page starts
+with its type: a one-byte tag from PageTypes, or tag 0 followed by the
+class name for unregistered classes.  Page ids are written the same way,
+followed by an integer count and the id's integers.
+
+<li>DELTA RECORDS are a compact form of UPDATE records, written when
+only a small part of the page changed.  They consist of the page type
+and page id, followed by the byte ranges in which the before and after
+images differ, with the bytes of both images (see PageDelta.)  Redo and
+undo apply the ranges to the page's image on disk.
+
+<li>TUPLE RECORDS log the change of one slot of a HeapPage by a
+transaction holding row locks, where several transactions may change the
+same page.  They consist of the page type and page id, the integer slot,
+and the tuple in the slot before and after the change, each a boolean
+(false for an empty slot) followed by the serialized fields.  A
+transaction that aborts undoes its row changes in the BufferPool before
+its ABORT record, logging each undo as another TUPLE record, so rollback
+of an aborted transaction skips TUPLE records; only transactions that
+were still running at a crash have them undone by recovery.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+as a long integer transaction id, a long integer first record offset and
+a long integer last record offset for each active transaction.  This is
+followed by the dirty page table: an integer count of pages, and for each
+page its id (as in UPDATE records) and the long integer offset of its oldest unwritten record.
 
 </ul>
 
+<p> Records are serialized into an in-memory log buffer and appended to
+the segments through their FileChannels in large writes, when the buffer
+fills up or the log is forced.  Anything that reads the log drains the
+buffer first.  Truncation after a checkpoint deletes the segments that
+lie entirely before the oldest record recovery may need.
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final LogSegments segments;
+    // reads the log; drain the buffer before using it
+    private final LogSegments.Input reader;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,16 +151,157 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int TUPLE_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_PREV_RECORD = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** Size at which the log buffer is written to the file. */
+    static final int LOG_BUFFER_SIZE = 64 * 1024;
+    /** Default size of the log's segment files. */
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
     long currentOffset = -1;//protected by this
+    // records appended after fileEnd, not written to the file yet
+    private final LogBuffer buffer = new LogBuffer(LOG_BUFFER_SIZE); //protected by this
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private long fileEnd = 0; //protected by this
+    // segment size of the next new log
+    private int newSegmentSize = DEFAULT_SEGMENT_SIZE; //protected by this
+    // everything before this offset is known to be on disk
+    volatile long forcedOffset = 0;
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // offset of the most recent record of each live transaction
+    HashMap<Long,Long> tidToLastLogRecord = new HashMap<Long,Long>();
+
+    /** Default time a group commit leader waits for more commits. */
+    public static final long DEFAULT_GROUP_COMMIT_WINDOW_US = 1000;
+    /** Default number of commits that closes a group early. */
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 8;
+
+    volatile boolean groupCommit = false;
+    volatile long groupCommitWindowNanos = DEFAULT_GROUP_COMMIT_WINDOW_US * 1000;
+    volatile int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;
+    // protects the group state below; may be taken while holding this,
+    // but the log is never forced while holding it
+    private final Object groupLock = new Object();
+    private int groupWaiters = 0;
+    private boolean groupLeader = false;
+    private volatile long numForces = 0;
+    volatile boolean deltaRecords = true;
+    volatile boolean pageTags = true;
+
+    // an entry of the dirty page table
+    private static class DirtyPage {
+        long recLSN;   // offset of the oldest record not written to the page's file
+        long version;  // stamp of the newest record, see pageVersion
+        DirtyPage(long recLSN) {
+            this.recLSN = recLSN;
+        }
+    }
+    // pages with log records that may not be in their files yet
+    private final HashMap<PageId, DirtyPage> dirtyPages = new HashMap<PageId, DirtyPage>(); //protected by this
+    private long nextVersion = 0; //protected by this
+    private Checkpointer checkpointer = null; //protected by this
+    private LogFlusher flusher = null; //protected by this
+    // the first force of the log flusher that failed; set once
+    private volatile IOException flushFailure = null;
+    private volatile long numAsyncCommits = 0;
+    private volatile long numCheckpoints = 0;
+    private volatile long numRedone = 0;
+
+    /** Default interval at which asynchronous commits are forced. */
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 100;
+    volatile long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+
+    /** Default number of threads recover() redoes pages with. */
+    public static final int DEFAULT_REDO_THREADS = Runtime.getRuntime().availableProcessors();
+    volatile int redoThreads = DEFAULT_REDO_THREADS;
+
+    // runs redo work on a set of threads; all work for one page goes to
+    // the same thread, so each page sees its records in log order
+    private static class ParallelRedo {
+        // wait for outstanding work every so often, to bound memory
+        static final int MAX_PENDING = 4096;
+
+        private final ExecutorService[] workers;
+        private final ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
+
+        ParallelRedo(int numThreads) {
+            workers = new ExecutorService[numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                workers[i] = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "redo");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+
+        void submit(PageId pid, Callable<Void> work) throws IOException {
+            if (workers.length == 1) {
+                // no point in handing work to a single other thread
+                try {
+                    work.call();
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                return;
+            }
+            pending.add(workers[Math.floorMod(pid.hashCode(), workers.length)].submit(work));
+            if (pending.size() >= MAX_PENDING) {
+                await();
+            }
+        }
+
+        // wait until all submitted work is done
+        void await() throws IOException {
+            try {
+                for (Future<?> f : pending) {
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted during redo");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("redo failed", e.getCause());
+            } finally {
+                pending.clear();
+            }
+        }
+
+        void shutdown() {
+            for (ExecutorService w : workers) {
+                w.shutdownNow();
+            }
+        }
+    }
+
+    // a byte array output stream that can hand its contents to the log
+    // segments without copying them
+    private static class LogBuffer extends ByteArrayOutputStream {
+        LogBuffer(int size) {
+            super(size);
+        }
+
+        // write the buffer to the log at position pos and empty it
+        long drainTo(LogSegments log, long pos) throws IOException {
+            pos = log.write(ByteBuffer.wrap(buf, 0, count), pos);
+            reset();
+            return pos;
+        }
+    }
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -104,11 +312,12 @@ public class LogFile {
         do it, while if someone starts adding log file entries, then first
         throw out the initial log file contents.
 
-        @param f The log file's name
+        @param f The log file's name; the segments are stored next to it
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, DEFAULT_SEGMENT_SIZE);
+        reader = segments.input();
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -129,17 +338,260 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.reset(newSegmentSize);
+            buffer.reset();
+            fileEnd = segments.length();
+            currentOffset = fileEnd;
+            forcedOffset = 0;
+        }
+    }
+
+    // offset just past the last record appended, including the buffer
+    private long end() {
+        return fileEnd + buffer.size();
+    }
+
+    // start a record for tid, linking it to the transaction's previous
+    // record; must hold this
+    private void beginRecord(int type, long tid) throws IOException {
+        Long prev = tidToLastLogRecord.put(tid, currentOffset);
+        out.writeInt(type);
+        out.writeLong(tid);
+        out.writeLong(prev == null ? NO_PREV_RECORD : prev);
+    }
+
+    // a record has been appended to the buffer
+    private void endRecord() throws IOException {
+        currentOffset = end();
+        if (buffer.size() >= LOG_BUFFER_SIZE) {
+            drain();
+        }
+    }
+
+    // write buffered records to the file; must hold this
+    private void drain() throws IOException {
+        if (buffer.size() > 0) {
+            fileEnd = buffer.drainTo(segments, fileEnd);
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** Turn group commit on or off.  Commits already waiting for a
+        group are not affected.
+    */
+    public void setGroupCommit(boolean enabled) {
+        groupCommit = enabled;
+    }
+
+    public boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    /** Configure the group commit window.
+        @param windowMicros how long a group leader waits for more commits
+        @param maxGroupSize number of waiting commits that closes the
+        group before the window expires
+    */
+    public void setGroupCommitWindow(long windowMicros, int maxGroupSize) {
+        if (windowMicros < 0 || maxGroupSize < 1) {
+            throw new IllegalArgumentException("bad group commit window "
+                                               + windowMicros + "us / " + maxGroupSize);
+        }
+        groupCommitWindowNanos = windowMicros * 1000;
+        groupCommitSize = maxGroupSize;
+    }
+
+    /** Choose between DELTA records (the default) and full page images
+        for page updates.  Either kind can be recovered.
+    */
+    public void setDeltaRecords(boolean enabled) {
+        deltaRecords = enabled;
+    }
+
+    /** Choose between naming page and page id types by their tags in
+        PageTypes (the default) and by class name, which builds them
+        through reflection.  Either kind can be recovered.
+    */
+    public void setPageTags(boolean enabled) {
+        pageTags = enabled;
+    }
+
+    /** @return the number of times the log has been forced to disk */
+    public long getForceCount() {
+        return numForces;
+    }
+
+    /** @return the number of checkpoints taken */
+    public long getCheckpointCount() {
+        return numCheckpoints;
+    }
+
+    /** @return the number of records the last call to recover() redid */
+    public long getRedoCount() {
+        return numRedone;
+    }
+
+    /** Set the number of threads recover() redoes pages with; 1 redoes
+        them in the recovering thread. */
+    public void setRedoThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("need at least one redo thread");
+        }
+        redoThreads = numThreads;
+    }
+
+    /** Set the size of the segment files of a new log.  It takes effect
+        when the log is next started afresh (on the first append without
+        a call to recover()); an existing log keeps the size it was
+        written with.
+    */
+    public synchronized void setSegmentSize(int bytes) {
+        if (bytes < LOG_BUFFER_SIZE) {
+            throw new IllegalArgumentException("segment size " + bytes + " is smaller than the log buffer");
+        }
+        newSegmentSize = bytes;
+    }
+
+    /** @return the number of segment files the log occupies */
+    public synchronized int getNumSegments() {
+        return segments.getNumSegments();
+    }
+
+    /** @return the number of pages in the dirty page table */
+    public synchronized int getNumDirtyPages() {
+        return dirtyPages.size();
+    }
+
+    /** Stamp of the page's newest log record, to be passed to
+        {@link #pageWritten} once an image of the page taken after this
+        call is in the page's file.
+        @return the stamp, or -1 if the page has no unwritten records
+    */
+    public synchronized long pageVersion(PageId pid) {
+        DirtyPage dp = dirtyPages.get(pid);
+        return dp == null ? -1 : dp.version;
+    }
+
+    /** Tell the log that an image of the page containing every record
+        up to the given stamp has been written to the page's file.  The
+        page leaves the dirty page table unless it was logged again in
+        the meantime.
+        @param version a stamp returned by {@link #pageVersion}
+    */
+    public synchronized void pageWritten(PageId pid, long version) {
+        DirtyPage dp = dirtyPages.get(pid);
+        if (dp != null && dp.version == version) {
+            dirtyPages.remove(pid);
+        }
+    }
+
+    /** Set how often the log flusher forces asynchronous commits to
+        disk; this bounds the commits a crash can lose.  The flusher
+        starts with the first asynchronous commit.
+    */
+    public void setFlushInterval(long intervalMs) {
+        if (intervalMs < 1) {
+            throw new IllegalArgumentException("bad flush interval " + intervalMs + "ms");
+        }
+        flushIntervalMs = intervalMs;
+    }
+
+    /** @return the number of commits logged without waiting for a force */
+    public long getAsyncCommitCount() {
+        return numAsyncCommits;
+    }
+
+    /** Stop the log flusher without forcing the log.  The next
+        asynchronous commit starts it again. */
+    public synchronized void stopLogFlusher() {
+        if (flusher != null) {
+            flusher.shutdown = true;
+            flusher.interrupt();
+            flusher = null;
+        }
+    }
+
+    // forces asynchronous commits until stopped or until this log is
+    // replaced
+    private class LogFlusher extends Thread {
+        volatile boolean shutdown = false;
+
+        LogFlusher() {
+            super("log-flusher");
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (!shutdown && Database.getLogFile() == LogFile.this) {
+                try {
+                    Thread.sleep(flushIntervalMs);
+                    synchronized (LogFile.this) {
+                        if (!shutdown && Database.getLogFile() == LogFile.this
+                            && currentOffset > forcedOffset) {
+                            force();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                } catch (IOException e) {
+                    // the commits it was forcing have returned already;
+                    // the commits after them report it
+                    synchronized (LogFile.this) {
+                        if (flushFailure == null) {
+                            flushFailure = e;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** Take a checkpoint every intervalMs milliseconds in a background
+        thread, replacing any running checkpointer. */
+    public synchronized void startCheckpoints(long intervalMs) {
+        stopCheckpoints();
+        checkpointer = new Checkpointer(intervalMs);
+        checkpointer.start();
+    }
+
+    /** Stop taking background checkpoints. */
+    public synchronized void stopCheckpoints() {
+        if (checkpointer != null) {
+            checkpointer.shutdown = true;
+            checkpointer.interrupt();
+            checkpointer = null;
+        }
+    }
+
+    // takes fuzzy checkpoints until stopped or until this log is replaced
+    private class Checkpointer extends Thread {
+        final long intervalMs;
+        volatile boolean shutdown = false;
+
+        Checkpointer(long intervalMs) {
+            super("checkpointer");
+            this.intervalMs = intervalMs;
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (!shutdown && Database.getLogFile() == LogFile.this) {
+                try {
+                    Thread.sleep(intervalMs);
+                    if (!shutdown) {
+                        logCheckpoint();
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -162,34 +614,67 @@ public class LogFile {
                 rollback(tid);
 
                 preAppend();
-                // long it = raf.getFilePointer();
-                // raf.seek(currentOffset);
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                beginRecord(ABORT_RECORD, tid.getId());
+                out.writeLong(currentOffset);
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  With group commit enabled, the force
+        may be shared with other committing transactions.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        logCommit(tid, true);
+    }
+
+    /** Write a commit record for the specified tid.  A durable commit
+        forces the log as {@link #logCommit(TransactionId)} does; an
+        asynchronous one returns as soon as the record is in the log
+        buffer and leaves it to the log flusher (see
+        {@link #setFlushInterval}), so a crash may lose the commit.
+        Either way the pages the transaction wrote are only on disk if
+        their log records are, so a lost commit is rolled back cleanly.
+        Once the log flusher has failed to force the log, every commit
+        fails, since asynchronous commits before it may have been lost.
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        @param tid The committing transaction.
+        @param durable false to return before the record is on disk
+        @throws IOException if the log flusher failed, before the commit
+          record is written
+    */
+    public void logCommit(TransactionId tid, boolean durable) throws IOException {
+        long end;
+        synchronized (this) {
+            if (flushFailure != null) {
+                throw new IOException("log flusher failed; asynchronous commits may be lost", flushFailure);
+            }
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            beginRecord(COMMIT_RECORD, tid.getId());
+            out.writeLong(currentOffset);
+            endRecord();
+            end = currentOffset;
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+            if (!durable) {
+                numAsyncCommits++;
+                if (flusher == null) {
+                    flusher = new LogFlusher();
+                    flusher.start();
+                }
+                return;
+            }
+        }
+        forceCommit(end);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -197,108 +682,260 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the log position just past the record; the record is
+        durable once {@link #forceTo} has been called with it.  Positions
+        stay valid when the log is truncated.
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + end());
         preAppend();
-        /* update record conists of
-
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        long begin = raf.getFilePointer();
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        DirtyPage dp = dirtyPages.get(after.getId());
+        if (dp == null) {
+            dp = new DirtyPage(currentOffset);
+            dirtyPages.put(after.getId(), dp);
+        }
+        dp.version = ++nextVersion;
+        byte[] afterData = after.getPageData();
+        PageDelta delta = null;
+        if (deltaRecords && before.getClass() == after.getClass()) {
+            delta = PageDelta.diff(before.getPageData(), afterData);
+            if (delta != null && delta.serializedSize() >= 2 * afterData.length) {
+                delta = null;
+            }
+        }
+        if (delta != null) {
+            /* delta record consists of
+
+               record type
+               transaction id
+               previous record of the transaction
+               changed ranges (see writeDelta)
+               start offset
+            */
+            beginRecord(DELTA_RECORD, tid.getId());
+            writeDelta(out, new DeltaRecord(PageTypes.typeOf(after), after.getId(), delta));
+        } else {
+            /* update record conists of
+
+               record type
+               transaction id
+               previous record of the transaction
+               before page data (see writePageData)
+               after page data
+               start offset
+            */
+            beginRecord(UPDATE_RECORD, tid.getId());
+
+            writePageData(out,before);
+            writePageData(out,after);
+        }
+        out.writeLong(currentOffset);
+        endRecord();
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return currentOffset;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
+    void writePageData(DataOutput raf, Page p) throws IOException{
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
+        // page type (see PageTypes)
+        // page id
         // page class bytes
         // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
+        boolean tagged = pageTags;
+        PageTypes.writePageType(raf, PageTypes.typeOf(p), tagged);
+        PageTypes.writePageId(raf, p.getId(), tagged);
         byte[] pageData = p.getPageData();
         raf.writeInt(pageData.length);
         raf.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    Page readPageData(DataInput raf) throws IOException {
+        PageTypes.PageType type = PageTypes.readPageType(raf);
+        PageId pid = readPageId(raf);
+
+        int pageSize = raf.readInt();
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
+
+        //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+        return type.newPage(pid, pageData);
+    }
+
+    PageId readPageId(DataInput raf) throws IOException {
+        return PageTypes.readPageId(raf);
+    }
+
+    void writePageId(DataOutput raf, PageId pid) throws IOException {
+        PageTypes.writePageId(raf, pid, pageTags);
+    }
+
+    // the id of the page an UPDATE or DELTA record applies to; both
+    // start with the page type followed by the page id
+    PageId readRecordPageId(DataInput raf) throws IOException {
+        PageTypes.readPageType(raf);
+        return readPageId(raf);
+    }
+
+    // a DELTA record body: the page it applies to and the changed bytes
+    static class DeltaRecord {
+        final PageTypes.PageType type;
+        final PageId pid;
+        final PageDelta delta;
+
+        DeltaRecord(PageTypes.PageType type, PageId pid, PageDelta delta) {
+            this.type = type;
+            this.pid = pid;
+            this.delta = delta;
+        }
+    }
+
+    void writeDelta(DataOutput raf, DeltaRecord d) throws IOException {
+        //delta data is:
+        // page type
+        // page id
+        // the changed ranges (see PageDelta.write)
+        boolean tagged = pageTags;
+        PageTypes.writePageType(raf, d.type, tagged);
+        PageTypes.writePageId(raf, d.pid, tagged);
+        d.delta.write(raf);
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    DeltaRecord readDelta(DataInput raf) throws IOException {
+        PageTypes.PageType type = PageTypes.readPageType(raf);
+        PageId pid = readPageId(raf);
+        return new DeltaRecord(type, pid, PageDelta.read(raf));
+    }
 
+    /** Apply a DELTA record to the page's image on disk and write the
+        result back, discarding any cached copy of the page.
+        @param redo true to install the after image, false the before image
+    */
+    private void applyDelta(DeltaRecord d, boolean redo) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(d.pid.getTableId());
+        byte[] base;
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            base = file.readPage(d.pid).getPageData();
+        } catch (IllegalArgumentException | NoSuchElementException e) {
+            // the page was never written: it started out empty
+            base = null;
+        }
+        file.writePage(d.type.newPage(d.pid, d.delta.apply(base, redo)));
+        Database.getBufferPool().discardPage(d.pid);
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** Write a TUPLE record for a change to one slot of a HeapPage by a
+        transaction with row locks.  The caller holds the page's write
+        latch, so that records of the same slot are logged in the order
+        the changes are made.
+        @param tid The transaction changing the slot
+        @param page The page the slot is on
+        @param slot The slot
+        @param before The tuple in the slot before the change, or null
+        @param after The tuple in the slot after the change, or null
+        @return the log position just past the record, as for {@link #logWrite}
+    */
+    public synchronized long logTupleChange(TransactionId tid, HeapPage page, int slot,
+                                            Tuple before, Tuple after)
+        throws IOException {
+        preAppend();
+        DirtyPage dp = dirtyPages.get(page.getId());
+        if (dp == null) {
+            dp = new DirtyPage(currentOffset);
+            dirtyPages.put(page.getId(), dp);
+        }
+        dp.version = ++nextVersion;
+        /* tuple record consists of
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+           record type
+           transaction id
+           previous record of the transaction
+           page type and page id
+           slot
+           before tuple (see writeTuple)
+           after tuple
+           start offset
+        */
+        beginRecord(TUPLE_RECORD, tid.getId());
+        boolean tagged = pageTags;
+        PageTypes.writePageType(out, PageTypes.typeOf(page), tagged);
+        PageTypes.writePageId(out, page.getId(), tagged);
+        out.writeInt(slot);
+        writeTuple(out, before);
+        writeTuple(out, after);
+        out.writeLong(currentOffset);
+        endRecord();
+        return currentOffset;
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    private static void writeTuple(DataOutputStream dos, Tuple t) throws IOException {
+        dos.writeBoolean(t != null);
+        if (t != null) {
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                t.getField(i).serialize(dos);
+            }
+        }
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    private static Tuple readTuple(DataInputStream dis, TupleDesc td) throws IOException {
+        if (!dis.readBoolean()) {
+            return null;
+        }
+        Tuple t = new Tuple(td);
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                t.setField(i, td.getFieldType(i).parse(dis));
+            }
+        } catch (java.text.ParseException e) {
+            throw new IOException("cannot parse logged tuple", e);
+        }
+        return t;
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    // a TUPLE record body: the slot changed and its contents before and after
+    static class TupleRecord {
+        final PageId pid;
+        final int slot;
+        final Tuple before;
+        final Tuple after;
+
+        TupleRecord(PageId pid, int slot, Tuple before, Tuple after) {
+            this.pid = pid;
+            this.slot = slot;
+            this.before = before;
+            this.after = after;
         }
-        return newPage;
+    }
+
+    TupleRecord readTupleRecord(DataInputStream dis) throws IOException {
+        PageId pid = readRecordPageId(dis);
+        int slot = dis.readInt();
+        TupleDesc td = Database.getCatalog().getTupleDesc(pid.getTableId());
+        Tuple before = readTuple(dis, td);
+        Tuple after = readTuple(dis, td);
+        return new TupleRecord(pid, slot, before, after);
+    }
 
+    /** Apply a TUPLE record to the page's image on disk and write the
+        result back, discarding any cached copy of the page.
+        @param redo true to install the after tuple, false the before tuple
+    */
+    private void applyTuple(TupleRecord r, boolean redo) throws IOException {
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(r.pid.getTableId());
+        HeapPage page;
+        try {
+            page = (HeapPage) file.readPage(r.pid);
+        } catch (IllegalArgumentException | NoSuchElementException e) {
+            // the page was never written: it started out empty
+            page = new HeapPage((HeapPageId) r.pid, HeapPage.createEmptyPageData());
+        }
+        page.setSlot(r.slot, redo ? r.after : r.before);
+        file.writePage(page);
+        Database.getBufferPool().discardPage(r.pid);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -313,150 +950,115 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(BEGIN_RECORD, tid.getId());
+        out.writeLong(currentOffset);
+        endRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The
+        checkpoint is fuzzy: it records the active transactions and the
+        dirty page table, and does not flush or lock the BufferPool.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset = end();
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+            out.writeLong(NO_PREV_RECORD);
+
+            //write list of outstanding transactions
+            out.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                out.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                out.writeLong(tidToFirstLogRecord.get(key));
+                out.writeLong(tidToLastLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, DirtyPage> e : dirtyPages.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(e.getValue().recLSN);
             }
+            out.writeLong(currentOffset);
+            endRecord();
+
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            force();
+            segments.writeCheckpoint(startCpOffset);
+            numCheckpoints++;
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
+        consumption.  Only whole segments before the oldest record that
+        recovery or rollback may still read are deleted, so the live part
+        of the log is never rewritten and positions stay valid.
+        @return the number of segments deleted
+    */
+    public synchronized int logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        drain();
+        long cpLoc = segments.readCheckpoint();
 
         long minLogRecord = cpLoc;
 
         if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
+            reader.seek(cpLoc);
+            int cpType = reader.readInt();
             @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            long cpTid = reader.readLong();
+            reader.readLong(); // no previous record
 
             if (cpType != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
+            int numOutstanding = reader.readInt();
 
             for (int i = 0; i < numOutstanding; i++) {
                 @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
+                long tid = reader.readLong();
+                long firstLogRecord = reader.readLong();
+                reader.readLong(); // last record
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+            // redo starts at the oldest unwritten record
+            int numDirty = reader.readInt();
+            for (int i = 0; i < numDirty; i++) {
+                readPageId(reader);
+                long recLSN = reader.readLong();
+                if (recLSN < minLogRecord) {
+                    minLogRecord = recLSN;
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
             }
+        } else {
+            // without a checkpoint recovery reads the whole log
+            return 0;
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
+        // we can truncate everything before minLogRecord
+        int deleted = segments.truncate(minLogRecord);
+        Debug.log("TRUNCATING LOG; NEW START : " + segments.start() + " DELETED SEGMENTS: " + deleted);
         //print();
+        return deleted;
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -473,55 +1075,76 @@ public class LogFile {
             synchronized(this) {
                 // preAppend();
                 // some code goes here
-                rollbackInternal(tid.getId());
+                // the BufferPool has undone the transaction's row changes
+                rollbackInternal(tid.getId(), false);
 
             }
         }
     }
 
-    private void rollbackInternal(long tid)throws NoSuchElementException, IOException {
+    private void rollbackInternal(long tid, boolean undoTuples)throws NoSuchElementException, IOException {
         // assume when rollbackInternal are called the transaction cant be commited status
-        Long begin = tidToFirstLogRecord.get(tid);
-        // if (begin > raf.getFilePointer() || raf.getFilePointer() - LONG_SIZE < 0) {
-        //     return;
-        // }
-        // start with last one
-        raf.seek(raf.length() - LONG_SIZE);
-        long logPtr = raf.readLong();
-        while (begin < logPtr) {
-            // backword scanning
-            // Long logPtr = raf.readLong();
-            raf.seek(logPtr);
-            int type = raf.readInt();
-            long record_tid;
+        Long last = tidToLastLogRecord.get(tid);
+        rollbackChain(tid, last == null ? NO_PREV_RECORD : last, null, undoTuples);
+    }
+
+    // undo the records of tid, following its chain from logPtr; with a
+    // dirty page table, only records that recovery redid are undone.
+    // TUPLE records are only undone for a transaction that did not get
+    // to undo its row changes itself
+    private void rollbackChain(long tid, long logPtr, Map<PageId, Long> redone,
+                               boolean undoTuples) throws IOException {
+        // follow the transaction's own chain of records, newest first
+        drain();
+        while (logPtr != NO_PREV_RECORD) {
+            reader.seek(logPtr);
+            int type = reader.readInt();
+            long record_tid = reader.readLong();
+            if (record_tid != tid) {
+                throw new IOException("rollback: record at " + logPtr + " belongs to transaction "
+                                      + record_tid + ", not " + tid);
+            }
+            long prev = reader.readLong();
+            if ((type == UPDATE_RECORD || type == DELTA_RECORD) && redone != null) {
+                long recordStart = logPtr;
+                long body = reader.getFilePointer();
+                boolean skip = !needsRedo(redone, readRecordPageId(reader), recordStart);
+                reader.seek(body);
+                if (skip) {
+                    logPtr = prev;
+                    continue;
+                }
+            }
             switch (type) {
                 case UPDATE_RECORD:
-                    record_tid = raf.readLong();
-                    if (record_tid == tid) {
-                        Page before = this.readPageData(raf);
-                        Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
-                        Database.getBufferPool().discardPage(before.getId());
-                        break;
+                    Page before = this.readPageData(reader);
+                    Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
+                    Database.getBufferPool().discardPage(before.getId());
+                    // discarding also wrote any committed state the
+                    // pool held, so the file is up to date
+                    dirtyPages.remove(before.getId());
+                    break;
+                case DELTA_RECORD:
+                    DeltaRecord d = readDelta(reader);
+                    applyDelta(d, false);
+                    dirtyPages.remove(d.pid);
+                    break;
+                case TUPLE_RECORD:
+                    if (undoTuples) {
+                        applyTuple(readTupleRecord(reader), false);
                     }
+                    break;
                 default:
                     break;
-                /*
-                    case ABORT_RECORD:
-                           break;
-                    case COMMIT_RECORD:
-                            break;
-                    case BEGIN_RECORD:
-                            break;
-                    case CHECKPOINT_RECORD:
-                            break;
-                         */
-                }
-
-            raf.seek(logPtr - LONG_SIZE);
-            logPtr = raf.readLong();
+            }
+            logPtr = prev;
         }
-        // restore
-        raf.seek(currentOffset);
+    }
+
+    // whether recovery must redo the record at offset for page pid
+    private static boolean needsRedo(Map<PageId, Long> dirty, PageId pid, long offset) {
+        Long recLSN = dirty.get(pid);
+        return recLSN != null && offset >= recLSN;
     }
 
     /** Shutdown the logging system, writing out whatever state
@@ -530,8 +1153,12 @@ public class LogFile {
     */
     public synchronized void shutdown() {
         try {
+            stopCheckpoints();
+            stopLogFlusher();
+            // write everything out so that the checkpoint leaves nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            segments.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -547,16 +1174,17 @@ public class LogFile {
             synchronized (this) {
                 this.recoveryUndecided = false;
                 // some code goes here
-                currentOffset = raf.length();
-                if (currentOffset - LONG_SIZE > 0) {
-                    // raf.seek(raf.getFilePointer() - LONG_SIZE);
-                    // long iter = raf.readLong();
+                drain();
+                fileEnd = segments.length();
+                currentOffset = fileEnd;
+                if (currentOffset > segments.start()) {
+                    // reader.seek(reader.getFilePointer() - LONG_SIZE);
+                    // long iter = reader.readLong();
                     // start of the log file;
-                    raf.seek(currentOffset - LONG_SIZE);
-                    long iter = raf.readLong();
+                    reader.seek(currentOffset - LONG_SIZE);
+                    long iter = reader.readLong();
 
-                    raf.seek(0);
-                    long lastCheckPoint = raf.readLong();
+                    long lastCheckPoint = segments.readCheckpoint();
                     if (lastCheckPoint == -1L) {
                         // No checkpoint
                         lastCheckPoint = LONG_SIZE;
@@ -564,40 +1192,55 @@ public class LogFile {
 
                     Set<Long> transactions = new HashSet<>();
                     Set<Long> commits = new HashSet<>();
+                    // pages that may miss logged updates, with the offset
+                    // of the oldest record that may be missing
+                    Map<PageId, Long> dirty = new HashMap<>();
                     // find check point
                     // analyse stage
 
                     // backward start from last record
                     while (iter >= lastCheckPoint) {
-                        raf.seek(iter);
-                        int type = raf.readInt();
+                        reader.seek(iter);
+                        int type = reader.readInt();
                         long record_tid;
                         switch (type) {
                             case UPDATE_RECORD:
+                            case DELTA_RECORD:
+                            case TUPLE_RECORD:
+                                // written after the checkpoint: redo from here
+                                reader.seek(reader.getFilePointer() + 2 * LONG_SIZE);
+                                dirty.merge(readRecordPageId(reader), iter, Math::min);
                                 break;
                             case ABORT_RECORD:
                                 break;
                             case COMMIT_RECORD:
-                                record_tid = raf.readLong();
+                                record_tid = reader.readLong();
                                 commits.add(record_tid);
                                 break;
                             case BEGIN_RECORD:
-                                record_tid = raf.readLong();
+                                record_tid = reader.readLong();
                                 transactions.add(record_tid);
                                 break;
                             case CHECKPOINT_RECORD:
                                 // checkPoint = iter;
                                 assert lastCheckPoint == iter;
                                 // format
-                                raf.seek(raf.getFilePointer() + LONG_SIZE);
+                                reader.seek(reader.getFilePointer() + 2 * LONG_SIZE);
 
-                                int numActiveTransactions = raf.readInt();
+                                int numActiveTransactions = reader.readInt();
                                 for (int i = 0; i < numActiveTransactions; ++i) {
                                     // add active transactions
-                                    record_tid = raf.readLong();
-                                    long first_pos = raf.readLong();
+                                    record_tid = reader.readLong();
+                                    long first_pos = reader.readLong();
+                                    long last_pos = reader.readLong();
                                     transactions.add(record_tid);
                                     tidToFirstLogRecord.put(record_tid, first_pos);
+                                    tidToLastLogRecord.put(record_tid, last_pos);
+                                }
+                                int numDirty = reader.readInt();
+                                for (int i = 0; i < numDirty; ++i) {
+                                    PageId pid = readPageId(reader);
+                                    dirty.merge(pid, reader.readLong(), Math::min);
                                 }
                                 break;
                             default:
@@ -607,69 +1250,109 @@ public class LogFile {
                         }
                         // assume log are correct
                         if (iter > LONG_SIZE) {
-                            raf.seek(iter - LONG_SIZE);
-                            iter = raf.readLong();
+                            reader.seek(iter - LONG_SIZE);
+                            iter = reader.readLong();
                         } else {
                             iter = -1;
                         }
                     }
 
                     // redo
-                    // forward direction start from last checkpoint
+                    // forward direction, from the oldest record a page
+                    // may miss; records of pages known to be written are
+                    // skipped
                     iter = lastCheckPoint;
+                    for (long recLSN : dirty.values()) {
+                        iter = Math.min(iter, recLSN);
+                    }
+                    numRedone = 0;
+                    ParallelRedo redo = new ParallelRedo(redoThreads);
+                    try {
                     while (iter < currentOffset) {
                         // System.out.println(iter);
-                        raf.seek(iter);
-                        int type = raf.readInt();
-                        long record_tid;
+                        reader.seek(iter);
+                        int type = reader.readInt();
+                        long record_tid = reader.readLong();
+                        long prev = reader.readLong(); // previous record of the transaction
                         switch (type) {
                             case UPDATE_RECORD:
                                 // redo
-                                // raf.readInt();
-                                raf.seek(raf.getFilePointer() + LONG_SIZE);
-                                Page before = this.readPageData(raf);
-                                Page after = this.readPageData(raf);
-                                Database.getCatalog().getDatabaseFile(after.getId().getTableId()).writePage(after);
-                                Database.getBufferPool().discardPage(after.getId());
-
-                                iter = raf.getFilePointer();
+                                Page before = this.readPageData(reader);
+                                Page after = this.readPageData(reader);
+                                if (needsRedo(dirty, after.getId(), iter)) {
+                                    redo.submit(after.getId(), () -> {
+                                        Database.getCatalog().getDatabaseFile(after.getId().getTableId()).writePage(after);
+                                        Database.getBufferPool().discardPage(after.getId());
+                                        return null;
+                                    });
+                                    numRedone++;
+                                }
+                                tidToLastLogRecord.put(record_tid, iter);
+
+                                iter = reader.getFilePointer();
                                 break;
-                            case ABORT_RECORD:
-                                // redo
-                                record_tid = raf.readLong();
-                                if (tidToFirstLogRecord.get(record_tid) == null) {
-                                    throw new IOException("ABORT: transaction " + record_tid + "is not live");
+                            case DELTA_RECORD:
+                                // redo onto the page image on disk
+                                DeltaRecord delta = readDelta(reader);
+                                if (needsRedo(dirty, delta.pid, iter)) {
+                                    redo.submit(delta.pid, () -> {
+                                        applyDelta(delta, true);
+                                        return null;
+                                    });
+                                    numRedone++;
                                 }
+                                tidToLastLogRecord.put(record_tid, iter);
 
-                                // #####################
-                                iter = raf.getFilePointer();
-                                // must before roollbackInternal
+                                iter = reader.getFilePointer();
+                                break;
+                            case TUPLE_RECORD:
+                                // redo onto the page image on disk
+                                TupleRecord tuple = readTupleRecord(reader);
+                                if (needsRedo(dirty, tuple.pid, iter)) {
+                                    redo.submit(tuple.pid, () -> {
+                                        applyTuple(tuple, true);
+                                        return null;
+                                    });
+                                    numRedone++;
+                                }
+                                tidToLastLogRecord.put(record_tid, iter);
 
-                                rollbackInternal(record_tid);
+                                iter = reader.getFilePointer();
+                                break;
+                            case ABORT_RECORD:
+                                // the rollback wrote its pages before this
+                                // record; only what redo reapplied needs
+                                // to be undone again
+                                iter = reader.getFilePointer();
+                                // undo sees the pages after all earlier redo
+                                redo.await();
+                                rollbackChain(record_tid, prev, dirty, false);
                                 transactions.remove(record_tid);
+                                tidToFirstLogRecord.remove(record_tid);
+                                tidToLastLogRecord.remove(record_tid);
                                 break;
                             case COMMIT_RECORD:
                                 // nothing;
-                                record_tid = raf.readLong();
-                                // raf.seek(raf.getFilePointer() + LONG_SIZE);
                                 tidToFirstLogRecord.remove(record_tid);
-                                iter = raf.getFilePointer();
+                                tidToLastLogRecord.remove(record_tid);
+                                iter = reader.getFilePointer();
                                 break;
                             case BEGIN_RECORD:
                                 // nothing;
-                                record_tid = raf.readLong();
                                 tidToFirstLogRecord.put(record_tid, iter);
-                                iter = raf.getFilePointer();
-                                // raf.seek(raf.getFilePointer() + INT_SIZE);
+                                tidToLastLogRecord.put(record_tid, iter);
+                                iter = reader.getFilePointer();
                                 break;
                             case CHECKPOINT_RECORD:
                                 // do nothing
-                                assert lastCheckPoint == iter;
-                                // format
-                                raf.seek(raf.getFilePointer() + LONG_SIZE);
-
-                                int numActiveTransactions = raf.readInt();
-                                iter = raf.getFilePointer() + numActiveTransactions * LONG_SIZE * 2;
+                                int numActiveTransactions = reader.readInt();
+                                reader.seek(reader.getFilePointer() + numActiveTransactions * LONG_SIZE * 3);
+                                int numDirty = reader.readInt();
+                                for (int i = 0; i < numDirty; ++i) {
+                                    readPageId(reader);
+                                    reader.readLong();
+                                }
+                                iter = reader.getFilePointer();
                                 break;
                             default:
                                 System.out.println("type: " + type);
@@ -678,12 +1361,20 @@ public class LogFile {
                         // skip the offset  to next log record ()
                         iter += LONG_SIZE;
                     }
+                    redo.await();
+                    } finally {
+                        redo.shutdown();
+                    }
 
                     // undo
                     for (Long tid : transactions) {
                         if (!commits.contains(tid)) {
                             assert tidToFirstLogRecord.containsKey(tid);
-                            rollbackInternal(tid);
+                            rollbackInternal(tid, true);
+                            // no longer live: later checkpoints must not
+                            // list it, nor log truncation keep its records
+                            tidToFirstLogRecord.remove(tid);
+                            tidToLastLogRecord.remove(tid);
                         }
                     }
                 }
@@ -697,7 +1388,97 @@ public class LogFile {
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        drain();
+        segments.force();
+        forcedOffset = currentOffset;
+        numForces++;
+    }
+
+    /** Make sure the log is on disk at least up to the given offset,
+        forcing it only if that part has not been forced yet.  Used to
+        follow the WAL rule before a page is written.  With group commit
+        this shares a force with the commits waiting for one, but does
+        not wait for a group to gather if none are.
+        @param offset a log offset returned by {@link #logWrite}
+    */
+    public void forceTo(long offset) throws IOException {
+        if (offset <= forcedOffset) {
+            return;
+        }
+        boolean commitsWaiting;
+        synchronized (groupLock) {
+            commitsWaiting = groupWaiters > 0;
+        }
+        // a thread inside the log (e.g. rollback discarding pages) cannot
+        // wait for a group leader, which needs the monitor to force
+        if (groupCommit && commitsWaiting && !Thread.holdsLock(this)) {
+            groupForce(offset);
+        } else {
+            force();
+        }
+    }
+
+    // make a commit durable, as part of a group with group commit
+    private void forceCommit(long offset) throws IOException {
+        if (offset <= forcedOffset) {
+            return;
+        }
+        if (groupCommit && !Thread.holdsLock(this)) {
+            groupForce(offset);
+        } else {
+            force();
+        }
+    }
+
+    // wait until the log is forced up to offset, forcing it as the
+    // leader of a group if no other thread is doing so
+    private void groupForce(long offset) throws IOException {
+        synchronized (groupLock) {
+            groupWaiters++;
+            if (groupWaiters >= groupCommitSize) {
+                groupLock.notifyAll();
+            }
+        }
+        try {
+            while (offset > forcedOffset) {
+                boolean lead = false;
+                try {
+                    synchronized (groupLock) {
+                        if (offset <= forcedOffset) {
+                            break;
+                        }
+                        if (groupLeader) {
+                            groupLock.wait();
+                            continue;
+                        }
+                        groupLeader = lead = true;
+                        long deadline = System.nanoTime() + groupCommitWindowNanos;
+                        long left;
+                        while (groupWaiters < groupCommitSize
+                               && (left = deadline - System.nanoTime()) > 0) {
+                            groupLock.wait(left / 1000000, (int) (left % 1000000));
+                        }
+                    }
+                    // without groupLock: commits that arrive during the
+                    // force wait for the next group instead of the lock
+                    force();
+                } finally {
+                    if (lead) {
+                        synchronized (groupLock) {
+                            groupLeader = false;
+                            groupLock.notifyAll();
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for group commit");
+        } finally {
+            synchronized (groupLock) {
+                groupWaiters--;
+            }
+        }
     }
 
 }
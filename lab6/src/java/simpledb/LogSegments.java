@@ -0,0 +1,314 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogSegments stores the log as a sequence of fixed-size segment files
+ * plus a small control file.  Log positions are offsets into one logical
+ * file: position p lives in segment p / segmentSize, at offset
+ * p % segmentSize of that segment's file.  Positions never change, so
+ * truncating the front of the log just deletes the segments that lie
+ * entirely before the oldest record still needed, without copying the
+ * rest of the log.
+ * <p>
+ * The control file holds the offset of the last checkpoint (or -1) and
+ * the segment size the log was written with.  Segment n is named after
+ * the control file with ".n" appended.  The first {@link LogFile#LONG_SIZE}
+ * positions of the log are reserved (they used to hold the checkpoint
+ * offset), so the first record starts at the same position as in an
+ * unsegmented log.
+ * <p>
+ * Segments grow as records are appended and are not preallocated, so the
+ * end of the log is the end of the last segment.  Callers synchronize
+ * access; LogFile only uses this class while holding its monitor.
+ *
+ * @see LogFile
+ */
+class LogSegments {
+
+    // bytes read from a segment at a time
+    private static final int READ_BLOCK_SIZE = 8192;
+
+    private final File control;
+    private final RandomAccessFile controlFile;
+    private int segmentSize;
+    // open segments, by index
+    private final TreeMap<Long, FileChannel> segments = new TreeMap<Long, FileChannel>();
+    // segments written since the last force
+    private final Set<Long> unforced = new HashSet<Long>();
+    private final Input input = new Input(new Cursor());
+
+    /**
+     * Open the log stored in the given control file and its segments.
+     * @param defaultSegmentSize the segment size, if the control file
+     *   does not record one yet
+     */
+    LogSegments(File control, int defaultSegmentSize) throws IOException {
+        this.control = control;
+        controlFile = new RandomAccessFile(control, "rw");
+        segmentSize = defaultSegmentSize;
+        if (controlFile.length() >= LogFile.LONG_SIZE + LogFile.INT_SIZE) {
+            controlFile.seek(LogFile.LONG_SIZE);
+            segmentSize = controlFile.readInt();
+        }
+        for (long index : existingSegments()) {
+            segments.put(index, open(index));
+        }
+    }
+
+    private File segmentFile(long index) {
+        return new File(control.getPath() + "." + index);
+    }
+
+    // indices of the segment files on disk
+    private List<Long> existingSegments() {
+        ArrayList<Long> found = new ArrayList<Long>();
+        File dir = control.getAbsoluteFile().getParentFile();
+        String prefix = control.getName() + ".";
+        String[] names = dir.list();
+        if (names == null) {
+            return found;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix)) {
+                try {
+                    found.add(Long.parseLong(name.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        return found;
+    }
+
+    private FileChannel open(long index) throws IOException {
+        return new RandomAccessFile(segmentFile(index), "rw").getChannel();
+    }
+
+    private FileChannel segment(long index) throws IOException {
+        FileChannel ch = segments.get(index);
+        if (ch == null) {
+            ch = open(index);
+            segments.put(index, ch);
+        }
+        return ch;
+    }
+
+    /** @return the size of the segment files */
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the number of segment files the log occupies */
+    int getNumSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Throw the log away and start a new, empty one.
+     * @param newSegmentSize the segment size of the new log
+     */
+    void reset(int newSegmentSize) throws IOException {
+        for (FileChannel ch : segments.values()) {
+            ch.close();
+        }
+        segments.clear();
+        unforced.clear();
+        for (long index : existingSegments()) {
+            segmentFile(index).delete();
+        }
+        segmentSize = newSegmentSize;
+        controlFile.setLength(0);
+        controlFile.writeLong(LogFile.NO_CHECKPOINT_ID);
+        controlFile.writeInt(segmentSize);
+        controlFile.getChannel().force(true);
+        input.cursor.invalidate();
+    }
+
+    /** @return the offset of the last checkpoint, or -1 if there is none */
+    long readCheckpoint() throws IOException {
+        if (controlFile.length() < LogFile.LONG_SIZE) {
+            return LogFile.NO_CHECKPOINT_ID;
+        }
+        controlFile.seek(0);
+        return controlFile.readLong();
+    }
+
+    /** Record the offset of the last checkpoint and force it to disk. */
+    void writeCheckpoint(long offset) throws IOException {
+        controlFile.seek(0);
+        controlFile.writeLong(offset);
+        controlFile.writeInt(segmentSize);
+        controlFile.getChannel().force(true);
+    }
+
+    /** @return the first position that has not been truncated */
+    long start() {
+        if (segments.isEmpty()) {
+            return LogFile.LONG_SIZE;
+        }
+        return Math.max(LogFile.LONG_SIZE, segments.firstKey() * segmentSize);
+    }
+
+    /** @return the position just past the end of the log */
+    long length() throws IOException {
+        if (segments.isEmpty()) {
+            return LogFile.LONG_SIZE;
+        }
+        Map.Entry<Long, FileChannel> last = segments.lastEntry();
+        return Math.max(LogFile.LONG_SIZE, last.getKey() * segmentSize + last.getValue().size());
+    }
+
+    /**
+     * Write the bytes of bb at position pos, spreading them over as many
+     * segments as needed.
+     * @return the position just past the bytes written
+     */
+    long write(ByteBuffer bb, long pos) throws IOException {
+        input.cursor.invalidate();
+        while (bb.hasRemaining()) {
+            long index = pos / segmentSize;
+            long offset = pos % segmentSize;
+            int n = (int) Math.min(bb.remaining(), segmentSize - offset);
+            ByteBuffer part = bb.slice();
+            part.limit(n);
+            FileChannel ch = segment(index);
+            while (part.hasRemaining()) {
+                offset += ch.write(part, offset);
+            }
+            unforced.add(index);
+            bb.position(bb.position() + n);
+            pos += n;
+        }
+        return pos;
+    }
+
+    /** Force every segment written since the last force to disk. */
+    void force() throws IOException {
+        for (long index : unforced) {
+            FileChannel ch = segments.get(index);
+            if (ch != null) {
+                ch.force(true);
+            }
+        }
+        unforced.clear();
+    }
+
+    /**
+     * Delete the segments that end at or before pos.  The segment holding
+     * the end of the log is always kept.
+     * @return the number of segments deleted
+     */
+    int truncate(long pos) throws IOException {
+        long first = pos / segmentSize;
+        int deleted = 0;
+        while (segments.size() > 1 && segments.firstKey() < first) {
+            long index = segments.firstKey();
+            segments.remove(index).close();
+            unforced.remove(index);
+            segmentFile(index).delete();
+            deleted++;
+        }
+        if (deleted > 0) {
+            input.cursor.invalidate();
+        }
+        return deleted;
+    }
+
+    /** Close all files. */
+    void close() throws IOException {
+        for (FileChannel ch : segments.values()) {
+            ch.close();
+        }
+        segments.clear();
+        controlFile.close();
+    }
+
+    /** @return a stream reading the log from its current position; see
+        {@link Input#seek} */
+    Input input() {
+        return input;
+    }
+
+    /** A DataInput over the log that can be positioned anywhere in it. */
+    class Input extends DataInputStream {
+        private final Cursor cursor;
+
+        private Input(Cursor cursor) {
+            super(cursor);
+            this.cursor = cursor;
+        }
+
+        void seek(long pos) {
+            cursor.pos = pos;
+        }
+
+        long getFilePointer() {
+            return cursor.pos;
+        }
+    }
+
+    // reads the log through a block buffer that never spans segments
+    private class Cursor extends InputStream {
+        long pos = 0;
+        private final byte[] block = new byte[READ_BLOCK_SIZE];
+        private long blockStart = 0;
+        private int blockLength = 0;
+
+        void invalidate() {
+            blockLength = 0;
+        }
+
+        // make the block hold pos; false at the end of the log
+        private boolean fill() throws IOException {
+            if (pos >= blockStart && pos < blockStart + blockLength) {
+                return true;
+            }
+            blockLength = 0;
+            if (pos < start()) {
+                throw new IOException("log position " + pos + " has been truncated");
+            }
+            long index = pos / segmentSize;
+            long offset = pos % segmentSize;
+            FileChannel ch = segments.get(index);
+            if (ch == null) {
+                return false;
+            }
+            int n = (int) Math.min(block.length, segmentSize - offset);
+            ByteBuffer bb = ByteBuffer.wrap(block, 0, n);
+            while (bb.hasRemaining()) {
+                if (ch.read(bb, offset + bb.position()) < 0) {
+                    break;
+                }
+            }
+            blockStart = pos;
+            blockLength = bb.position();
+            return blockLength > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return block[(int) (pos++ - blockStart)] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = (int) Math.min(len, blockStart + blockLength - pos);
+            System.arraycopy(block, (int) (pos - blockStart), b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * LruKPolicy implements LRU-K (O'Neil, O'Neil and Weikum).  The policy
+ * remembers the times of the last K references to every page and evicts
+ * the page whose K-th most recent reference lies furthest in the past.
+ * Pages referenced fewer than K times have an infinite backward distance
+ * and go first, oldest reference first, so a page touched once by a scan
+ * never displaces a page that is used repeatedly.
+ * <p>
+ * Reference history is retained for a bounded number of recently evicted
+ * pages, so a page that comes back soon after eviction keeps its history.
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private final int retainedCapacity;
+    private long clock;
+
+    // PageId -> last K reference times, most recent last
+    private final HashMap<PageId, long[]> resident;
+    private final LinkedHashMap<PageId, long[]> retained;
+
+    public LruKPolicy(int capacity, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("LruKPolicy: k must be positive");
+        }
+        this.k = k;
+        this.retainedCapacity = Math.max(capacity, 1);
+        this.clock = 0;
+        this.resident = new HashMap<>(capacity);
+        this.retained = new LinkedHashMap<PageId, long[]>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageId, long[]> eldest) {
+                return size() > retainedCapacity;
+            }
+        };
+    }
+
+    private void reference(long[] history) {
+        System.arraycopy(history, 1, history, 0, k - 1);
+        history[k - 1] = ++clock;
+    }
+
+    public void pageAdmitted(PageId pid) {
+        long[] history = resident.get(pid);
+        if (history == null) {
+            history = retained.remove(pid);
+        }
+        if (history == null) {
+            // 0 marks "never referenced"
+            history = new long[k];
+        }
+        reference(history);
+        resident.put(pid, history);
+    }
+
+    public void pageAccessed(PageId pid) {
+        long[] history = resident.get(pid);
+        if (history != null) {
+            reference(history);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        long[] history = resident.remove(pid);
+        if (history != null) {
+            retained.put(pid, history);
+        }
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        long victimKth = Long.MAX_VALUE;
+        long victimLast = Long.MAX_VALUE;
+        for (Map.Entry<PageId, long[]> entry : resident.entrySet()) {
+            long[] history = entry.getValue();
+            // the K-th most recent reference, 0 if there were fewer than K
+            long kth = history[0];
+            long last = history[k - 1];
+            if (kth < victimKth || (kth == victimKth && last < victimLast)) {
+                if (evictable.test(entry.getKey())) {
+                    victim = entry.getKey();
+                    victimKth = kth;
+                    victimLast = last;
+                }
+            }
+        }
+        return victim;
+    }
+}
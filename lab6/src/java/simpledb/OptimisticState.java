@@ -0,0 +1,58 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * OptimisticState is what an optimistic transaction collects while it runs:
+ * the pages it read, each with the version it had when first read, and the
+ * inserts and deletes it has not applied yet.  Both are checked and applied
+ * when the transaction validates.
+ *
+ * @see Transaction#setOptimistic
+ * @see BufferPool#validate
+ */
+class OptimisticState {
+
+    /** A buffered insert or delete. */
+    static class Write {
+        final boolean insert;
+        final int tableId;
+        final Tuple tuple;
+
+        Write(boolean insert, int tableId, Tuple tuple) {
+            this.insert = insert;
+            this.tableId = tableId;
+            this.tuple = tuple;
+        }
+    }
+
+    // PageId -> version of the page when the transaction first read it
+    private final HashMap<PageId, Long> reads = new HashMap<PageId, Long>();
+    private final ArrayList<Write> writes = new ArrayList<Write>();
+    // set once validation begins: from then on the transaction locks
+    private volatile boolean validating = false;
+
+    synchronized void read(PageId pid, long version) {
+        reads.putIfAbsent(pid, version);
+    }
+
+    synchronized void write(Write w) {
+        writes.add(w);
+    }
+
+    synchronized Map<PageId, Long> getReads() {
+        return new HashMap<PageId, Long>(reads);
+    }
+
+    synchronized List<Write> getWrites() {
+        return new ArrayList<Write>(writes);
+    }
+
+    boolean isValidating() {
+        return validating;
+    }
+
+    void setValidating() {
+        validating = true;
+    }
+}
@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * PageDelta is the set of byte ranges in which two images of a page
+ * differ, together with the bytes of both images in those ranges.  It is
+ * the body of a DELTA log record: applying it forward (redo) installs the
+ * after image's bytes, applying it backward (undo) the before image's,
+ * and both are idempotent, so a delta may be applied to a page any
+ * number of times.
+ * <p>
+ * The delta works on serialized page data, so it is independent of the
+ * page format; a change to one tuple slot of a HeapPage or
+ * BTreeLeafPage usually yields a few short ranges (the header bit and
+ * the tuple's bytes.)
+ *
+ * @see LogFile#logWrite
+ */
+class PageDelta {
+
+    /** Unchanged runs shorter than this are folded into the surrounding ranges. */
+    static final int MERGE_GAP = 4;
+
+    private final int pageSize;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(int pageSize, int[] offsets, byte[][] before, byte[][] after) {
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Compute the delta between two images of a page.
+     * @return the delta, or null if the images differ in size
+     */
+    static PageDelta diff(byte[] b, byte[] a) {
+        if (b.length != a.length) {
+            return null;
+        }
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend the range across short unchanged runs
+            for (int j = end; j < a.length && j < end + MERGE_GAP; j++) {
+                if (a[j] != b[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[]{start, end});
+            i = end;
+        }
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0];
+            int end = ranges.get(r)[1];
+            offsets[r] = start;
+            before[r] = Arrays.copyOfRange(b, start, end);
+            after[r] = Arrays.copyOfRange(a, start, end);
+        }
+        return new PageDelta(a.length, offsets, before, after);
+    }
+
+    /** @return the number of changed ranges */
+    int getNumRanges() {
+        return offsets.length;
+    }
+
+    /** @return the number of bytes {@link #write} produces */
+    int serializedSize() {
+        int size = 2 * LogFile.INT_SIZE;
+        for (byte[] r : after) {
+            size += 2 * LogFile.INT_SIZE + 2 * r.length;
+        }
+        return size;
+    }
+
+    /**
+     * Apply the delta to a copy of a page image.
+     * @param base the current image of the page; may be null if the page
+     *   does not exist yet, in which case an all-zero page is assumed
+     * @param redo true to install the after image, false the before image
+     * @return the new page image
+     */
+    byte[] apply(byte[] base, boolean redo) {
+        byte[] data = base == null ? new byte[pageSize] : Arrays.copyOf(base, pageSize);
+        byte[][] src = redo ? after : before;
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(src[r], 0, data, offsets[r], src[r].length);
+        }
+        return data;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(pageSize);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        int pageSize = in.readInt();
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            before[r] = new byte[len];
+            after[r] = new byte[len];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pageSize, offsets, before, after);
+    }
+}
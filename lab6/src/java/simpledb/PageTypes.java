@@ -0,0 +1,182 @@
+package simpledb;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * PageTypes maps the Page and PageId implementations to small integer
+ * tags, so that log records can name a page's type in one byte and
+ * rebuild pages and ids through a factory method instead of by
+ * reflection.
+ * <p>
+ * Tag 0 means the record names the class instead: it is followed by the
+ * class name, and the page or id is built reflectively from its first
+ * declared constructor.  Implementations that are not registered here
+ * are always logged that way.
+ *
+ * @see LogFile#writePageData
+ */
+class PageTypes {
+
+    /** Tag of types that are named by class. */
+    static final int BY_CLASS_NAME = 0;
+
+    /** The type of a page: how to build one from a page id and its data. */
+    static abstract class PageType {
+        final int tag;
+        final String className;
+
+        PageType(int tag, String className) {
+            this.tag = tag;
+            this.className = className;
+        }
+
+        abstract Page newPage(PageId pid, byte[] data) throws IOException;
+    }
+
+    // builds pages of an unregistered class through reflection
+    private static class ReflectivePageType extends PageType {
+        ReflectivePageType(String className) {
+            super(BY_CLASS_NAME, className);
+        }
+
+        Page newPage(PageId pid, byte[] data) throws IOException {
+            try {
+                Class<?> pageClass = Class.forName(className);
+                Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+                return (Page) pageConsts[0].newInstance(pid, data);
+            } catch (ClassNotFoundException | InstantiationException
+                     | IllegalAccessException | InvocationTargetException
+                     | IllegalArgumentException e) {
+                throw new IOException("cannot create page of class " + className, e);
+            }
+        }
+    }
+
+    // builds pages from a constructor taking the id and the data
+    private interface PageFactory {
+        Page newPage(PageId pid, byte[] data) throws IOException;
+    }
+
+    // builds ids from their serialized integers
+    private interface IdFactory {
+        PageId newId(int[] args);
+    }
+
+    private static final PageType[] pageTypes = new PageType[16];
+    private static final Map<Class<?>, PageType> pageTypeByClass = new HashMap<Class<?>, PageType>();
+    private static final IdFactory[] idFactories = new IdFactory[16];
+    private static final Map<Class<?>, Integer> idTagByClass = new HashMap<Class<?>, Integer>();
+
+    static {
+        registerPage(1, HeapPage.class, (pid, data) -> new HeapPage((HeapPageId) pid, data));
+        registerPage(2, BTreeLeafPage.class,
+                     (pid, data) -> new BTreeLeafPage((BTreePageId) pid, data, keyField(pid)));
+        registerPage(3, BTreeInternalPage.class,
+                     (pid, data) -> new BTreeInternalPage((BTreePageId) pid, data, keyField(pid)));
+        registerPage(4, BTreeHeaderPage.class, (pid, data) -> new BTreeHeaderPage((BTreePageId) pid, data));
+        registerPage(5, BTreeRootPtrPage.class, (pid, data) -> new BTreeRootPtrPage((BTreePageId) pid, data));
+
+        registerId(1, HeapPageId.class, args -> new HeapPageId(args[0], args[1]));
+        registerId(2, BTreePageId.class, args -> new BTreePageId(args[0], args[1], args[2]));
+    }
+
+    private static void registerPage(int tag, Class<? extends Page> pageClass, PageFactory factory) {
+        PageType type = new PageType(tag, pageClass.getName()) {
+            Page newPage(PageId pid, byte[] data) throws IOException {
+                return factory.newPage(pid, data);
+            }
+        };
+        pageTypes[tag] = type;
+        pageTypeByClass.put(pageClass, type);
+    }
+
+    private static void registerId(int tag, Class<? extends PageId> idClass, IdFactory factory) {
+        idFactories[tag] = factory;
+        idTagByClass.put(idClass, tag);
+    }
+
+    // B+ tree leaf and internal pages need the key field of their file
+    private static int keyField(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+    }
+
+    /** @return the type of the given page */
+    static PageType typeOf(Page p) {
+        PageType type = pageTypeByClass.get(p.getClass());
+        return type != null ? type : new ReflectivePageType(p.getClass().getName());
+    }
+
+    /**
+     * Write a page type.
+     * @param tagged false to name the type by class even if it has a tag
+     */
+    static void writePageType(DataOutput out, PageType type, boolean tagged) throws IOException {
+        if (tagged && type.tag != BY_CLASS_NAME) {
+            out.writeByte(type.tag);
+        } else {
+            out.writeByte(BY_CLASS_NAME);
+            out.writeUTF(type.className);
+        }
+    }
+
+    static PageType readPageType(DataInput in) throws IOException {
+        int tag = in.readUnsignedByte();
+        if (tag == BY_CLASS_NAME) {
+            return new ReflectivePageType(in.readUTF());
+        }
+        if (tag >= pageTypes.length || pageTypes[tag] == null) {
+            throw new IOException("unknown page type " + tag);
+        }
+        return pageTypes[tag];
+    }
+
+    /**
+     * Write a page id: its type, the number of integers it serializes to
+     * and the integers.
+     * @param tagged false to name the id's type by class even if it has a tag
+     */
+    static void writePageId(DataOutput out, PageId pid, boolean tagged) throws IOException {
+        Integer tag = tagged ? idTagByClass.get(pid.getClass()) : null;
+        if (tag != null) {
+            out.writeByte(tag);
+        } else {
+            out.writeByte(BY_CLASS_NAME);
+            out.writeUTF(pid.getClass().getName());
+        }
+        int pageInfo[] = pid.serialize();
+        out.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            out.writeInt(pageInfo[i]);
+        }
+    }
+
+    static PageId readPageId(DataInput in) throws IOException {
+        int tag = in.readUnsignedByte();
+        String idClassName = tag == BY_CLASS_NAME ? in.readUTF() : null;
+        int[] args = new int[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readInt();
+        }
+        if (tag != BY_CLASS_NAME) {
+            if (tag >= idFactories.length || idFactories[tag] == null) {
+                throw new IOException("unknown page id type " + tag);
+            }
+            return idFactories[tag].newId(args);
+        }
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+            Object idArgs[] = new Object[args.length];
+            for (int i = 0; i < args.length; i++) {
+                idArgs[i] = args[i];
+            }
+            return (PageId) idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InstantiationException
+                 | IllegalAccessException | InvocationTargetException
+                 | IllegalArgumentException e) {
+            throw new IOException("cannot create page id of class " + idClassName, e);
+        }
+    }
+}
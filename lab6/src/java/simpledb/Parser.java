@@ -511,7 +511,8 @@ public class Parser {
                 handleTransactStatement((ZTransactStmt) s);
             else {
                 if (!this.inUserTrans) {
-                    curtrans = new Transaction();
+                    // a lone SELECT needs no log records or commit flush
+                    curtrans = new Transaction(s instanceof ZQuery);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
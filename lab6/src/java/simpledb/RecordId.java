@@ -69,9 +69,8 @@ public class RecordId implements Serializable {
     @Override
     public int hashCode() {
         // some code goes here
-        return String.valueOf(pageId.hashCode())
-                .concat(String.valueOf(tupleNo))
-                .hashCode();
+        // cheap: row locks hash a RecordId on every request
+        return 31 * pageId.hashCode() + tupleNo;
     }
 
 }
@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up
+ * when it needs a free frame.  The BufferPool reports every admission,
+ * hit and removal to the policy, and asks it for a victim when the pool
+ * is full.
+ * <p>
+ * Implementations are not required to be thread safe; the BufferPool
+ * serializes all calls into a given policy instance.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /** The replacement policies a BufferPool can be constructed with. */
+    enum Type {
+        CLOCK, LRU_K, TWO_Q;
+
+        /**
+         * Create a new, empty policy of this type.
+         *
+         * @param capacity the number of frames the policy manages
+         */
+        public ReplacementPolicy create(int capacity) {
+            switch (this) {
+                case LRU_K:
+                    return new LruKPolicy(capacity, LruKPolicy.DEFAULT_K);
+                case TWO_Q:
+                    return new TwoQPolicy(capacity);
+                case CLOCK:
+                default:
+                    return new ClockPolicy(capacity);
+            }
+        }
+    }
+
+    /**
+     * A page was read from disk (or created) and is now resident.
+     *
+     * @param pid the id of the admitted page
+     */
+    void pageAdmitted(PageId pid);
+
+    /**
+     * A resident page was requested again.
+     *
+     * @param pid the id of the accessed page
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * A page chosen as a victim left the pool.
+     *
+     * @param pid the id of the removed page
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * A page left the pool because it was discarded explicitly, e.g. when
+     * a transaction aborted, rather than evicted.  By default the policy
+     * treats it like an eviction.
+     *
+     * @param pid the id of the discarded page
+     */
+    default void pageDiscarded(PageId pid) {
+        pageRemoved(pid);
+    }
+
+    /**
+     * Pick the page that should leave the pool next.  The page is not
+     * removed from the policy until {@link #pageRemoved} is called.
+     *
+     * @param evictable tells whether a resident page may be evicted (e.g.
+     *   it is not dirty)
+     * @return the id of the victim page, or null if no page is evictable
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+}
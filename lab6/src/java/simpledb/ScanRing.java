@@ -0,0 +1,57 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ScanRing is a small, private set of page frames used by one large
+ * sequential scan.  Pages the scan reads from disk are kept in the ring
+ * instead of being admitted into the shared BufferPool, and the oldest
+ * frame is recycled once the ring is full, so a scan over a table much
+ * larger than the pool does not evict every other transaction's working
+ * set.
+ * <p>
+ * A ring only ever holds clean pages read under a READ_ONLY lock of its
+ * scan's transaction, so its contents stay valid for the lifetime of the
+ * scan.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, ScanRing)
+ */
+public class ScanRing {
+
+    /** Number of frames in a ring. */
+    public static final int DEFAULT_FRAMES = 16;
+
+    private final int numFrames;
+    // oldest frame first
+    private final LinkedHashMap<PageId, Page> frames;
+
+    public ScanRing(int numFrames) {
+        this.numFrames = Math.max(1, numFrames);
+        this.frames = new LinkedHashMap<>(this.numFrames);
+    }
+
+    /** @return the ring's copy of the page, or null if it is not in the ring */
+    synchronized Page get(PageId pid) {
+        return frames.get(pid);
+    }
+
+    /** Place a page into the ring, recycling the oldest frame if needed. */
+    synchronized void put(Page pg) {
+        if (!frames.containsKey(pg.getId()) && frames.size() >= numFrames) {
+            Iterator<PageId> it = frames.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+        frames.put(pg.getId(), pg);
+    }
+
+    /** Drop all frames, e.g. when the scan is rewound or closed. */
+    public synchronized void clear() {
+        frames.clear();
+    }
+
+    /** @return the number of frames currently in use */
+    public synchronized int size() {
+        return frames.size();
+    }
+}
@@ -95,10 +95,12 @@ public class TableStats {
         // some code goes here
         this.ioCostPerPage = ioCostPerPage;
         TransactionId tid = new TransactionId();
-        SeqScan scan = new SeqScan(tid, tableid, "");
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        // statistics scans read every page once; keep them out of the shared pool
+        DbFileIterator scan = file.iterator(tid, new ScanRing(ScanRing.DEFAULT_FRAMES));
 
-        this.numFields = scan.getTupleDesc().numFields();
-        this.numPages = ((HeapFile) Database.getCatalog().getDatabaseFile(tableid)).numPages();
+        this.numFields = file.getTupleDesc().numFields();
+        this.numPages = file.numPages();
         int maxs[] = new int[numFields];
         int mins[] = new int[numFields];
         // unsafe should convert based on type
@@ -129,7 +131,7 @@ public class TableStats {
             }
 
             for (int i = 0; i < numFields; ++i) {
-                if (scan.getTupleDesc().getFieldType(i) == Type.INT_TYPE) {
+                if (file.getTupleDesc().getFieldType(i) == Type.INT_TYPE) {
                     HisStats[i] = new IntHistogram(NUM_HIST_BINS, mins[i], maxs[i]);
                 } else {
                     // String type
@@ -10,14 +10,95 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private volatile boolean asyncCommit = false;
+    private volatile boolean snapshot = false;
 
     public Transaction() {
-        tid = new TransactionId();
+        this(false);
+    }
+
+    /** Create a transaction.  A read-only transaction writes no log
+        records, so starting and finishing it costs no log I/O; it may
+        only get pages READ_ONLY, and finishing it just releases its
+        shared locks.
+        @param readOnly true for a read-only transaction
+    */
+    public Transaction(boolean readOnly) {
+        tid = new TransactionId(readOnly);
+    }
+
+    public boolean isReadOnly() {
+        return tid.isReadOnly();
+    }
+
+    /** Make a read-only transaction read a snapshot of the database as
+        of its start, without taking locks: it never waits for writers and
+        writers never wait for it.  Needs a BufferPool that keeps page
+        versions (see {@link BufferPool#setMultiVersion}); set this before
+        start().
+        @throws IllegalStateException if the transaction is not read-only,
+            or is optimistic
+    */
+    public void setSnapshot(boolean snapshot) {
+        if (snapshot && !tid.isReadOnly()) {
+            throw new IllegalStateException("only read-only transactions can read a snapshot");
+        }
+        if (snapshot && tid.isOptimistic()) {
+            throw new IllegalStateException("an optimistic transaction cannot read a snapshot");
+        }
+        this.snapshot = snapshot;
+    }
+
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /** Make the transaction optimistic: it reads committed pages without
+        locking them and buffers its inserts and deletes; at commit it
+        applies its writes under locks, then validates that no page it read
+        has changed since.  Its reads do not see its own buffered writes,
+        and it cannot read tables with row locking.  Set this before
+        start().
+        @throws IllegalStateException if the transaction reads a snapshot
+    */
+    public void setOptimistic(boolean optimistic) {
+        if (optimistic && snapshot) {
+            throw new IllegalStateException("a snapshot transaction cannot be optimistic");
+        }
+        tid.optimistic = optimistic ? new OptimisticState() : null;
+    }
+
+    public boolean isOptimistic() {
+        return tid.isOptimistic();
+    }
+
+    /** Validate an optimistic transaction and apply its buffered writes;
+        it can then commit without conflicts.  Does nothing for other
+        transactions.  If validation fails the transaction is aborted.
+        @throws TransactionAbortedException if a page the transaction read
+            has changed or is being changed, or applying a write aborted
+    */
+    public void validate() throws TransactionAbortedException, DbException, IOException {
+        if (!started || !tid.isOptimistic() || tid.optimistic.isValidating()) {
+            return;
+        }
+        try {
+            Database.getBufferPool().validate(tid);
+        } catch (TransactionAbortedException | DbException | IOException e) {
+            abort();
+            throw e;
+        }
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (tid.isReadOnly()) {
+            if (snapshot) {
+                Database.getBufferPool().beginSnapshot(tid);
+            }
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,8 +110,32 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
+    /** With asynchronous commit, commit() returns as soon as the commit
+        record is in the log buffer instead of waiting for the log to be
+        forced.  A crash within the log flush interval (see
+        {@link LogFile#setFlushInterval}) may then lose the transaction,
+        but never leaves it half applied.  Pages the BufferPool writes at
+        commit (when it is not in STEAL/NO-FORCE mode) still force their
+        log records first.
+    */
+    public void setAsyncCommit(boolean async) {
+        asyncCommit = async;
+    }
+
+    public boolean isAsyncCommit() {
+        return asyncCommit;
+    }
+
+    /** Finish the transaction.  An optimistic transaction that has not
+        validated yet does so first; if that fails it is aborted and an
+        IOException is thrown.
+    */
     public void commit() throws IOException {
+        try {
+            validate();
+        } catch (TransactionAbortedException | DbException e) {
+            throw new IOException("transaction " + tid.getId() + " failed validation", e);
+        }
         transactionComplete(false);
     }
 
@@ -42,14 +147,23 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
+        if (started && tid.isReadOnly()) {
+            // nothing to log, write or undo
+            Database.getBufferPool().releaseSharedLocks(tid);
+            started = false;
+            return;
+        }
+
         if (started) {
             //write commit / abort records
             if (abort) {
+                // row changes are undone in the pool, logged before the abort
+                Database.getBufferPool().undoTupleChanges(tid);
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
                 //write all the dirty pages for this transaction out
                 Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
+                Database.getLogFile().logCommit(tid, !asyncCommit);
             }
 
             try {
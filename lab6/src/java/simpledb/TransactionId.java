@@ -12,16 +12,47 @@ public class TransactionId implements Serializable {
 
     static AtomicLong counter = new AtomicLong(0);
     final long myid;
+    final boolean readOnly;
+    // timestamp of the snapshot the transaction reads, or -1
+    volatile long snapshot = -1;
+    // reads and buffered writes of an optimistic transaction, or null
+    transient volatile OptimisticState optimistic = null;
 
     public TransactionId() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly true for a transaction that may only read pages
+     */
+    public TransactionId(boolean readOnly) {
         myid = counter.getAndIncrement();
+        this.readOnly = readOnly;
     }
 
     public long getId() {
         return myid;
     }
 
+    /** @return true if the transaction may only read pages */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /** @return true if the transaction reads a snapshot instead of locking pages */
+    public boolean isSnapshot() {
+        return snapshot >= 0;
+    }
+
+    /** @return true if the transaction validates at commit instead of locking as it goes */
+    public boolean isOptimistic() {
+        return optimistic != null;
+    }
+
     public boolean equals(Object tid) {
+        if (!(tid instanceof TransactionId)) {
+            return false;
+        }
         return ((TransactionId) tid).myid == myid;
     }
 
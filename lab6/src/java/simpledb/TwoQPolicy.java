@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * TwoQPolicy implements the full 2Q algorithm (Johnson and Shasha).  Pages
+ * seen for the first time enter a small FIFO queue (A1in).  When they fall
+ * out of it only their ids are remembered in a ghost queue (A1out); a page
+ * that is requested again while its id is still in A1out is considered hot
+ * and admitted into the main LRU queue (Am).  One-time scan pages therefore
+ * cycle through A1in without disturbing Am.  Only pages the policy evicted
+ * are remembered in A1out: a page that was discarded, e.g. on an abort, and
+ * is read again has not proven to be hot.
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+
+    // share of the frames reserved for A1in, and size of A1out, as
+    // suggested in the paper
+    private static final double KIN_FRACTION = 0.25;
+    private static final double KOUT_FRACTION = 0.5;
+
+    private final int kin;
+    private final int kout;
+
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    // least recently used first
+    private final LinkedHashSet<PageId> am;
+
+    public TwoQPolicy(int capacity) {
+        this.kin = Math.max(1, (int) (capacity * KIN_FRACTION));
+        this.kout = Math.max(1, (int) (capacity * KOUT_FRACTION));
+        this.a1in = new LinkedHashSet<>();
+        this.a1out = new LinkedHashSet<>();
+        this.am = new LinkedHashSet<>();
+    }
+
+    public void pageAdmitted(PageId pid) {
+        if (a1in.contains(pid) || am.contains(pid)) {
+            pageAccessed(pid);
+        } else if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        // hits in A1in are deliberately ignored; they are likely correlated
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    @Override
+    public void pageDiscarded(PageId pid) {
+        if (!a1in.remove(pid)) {
+            am.remove(pid);
+        }
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = firstEvictable(a1in, evictable);
+            if (victim == null) {
+                victim = firstEvictable(am, evictable);
+            }
+        } else {
+            victim = firstEvictable(am, evictable);
+            if (victim == null) {
+                victim = firstEvictable(a1in, evictable);
+            }
+        }
+        return victim;
+    }
+
+    private static PageId firstEvictable(Collection<PageId> queue, Predicate<PageId> evictable) {
+        for (PageId pid : queue) {
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,234 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the committed images of pages that snapshot
+ * transactions may still read after writers have changed the pages.
+ * <p>
+ * Commits that change pages are numbered by a logical clock.  A snapshot
+ * sees exactly the commits numbered up to its own timestamp, the value of
+ * the clock when it began.  For every page the store records the commit
+ * that produced its current committed state and, while snapshots that
+ * started earlier are running, the older committed images, each with the
+ * range of timestamps it is visible to.  While a writer has pages out of
+ * the BufferPool's before images (written early, or stolen), the store
+ * also holds the committed image they replaced.
+ * <p>
+ * Entries are latched by stripes, like the lock table.  A snapshot begins
+ * only after every commit numbered before it has installed its pages, so
+ * it never sees half a commit.  Images are dropped as soon as no running
+ * snapshot can see them.
+ *
+ * @see BufferPool#beginSnapshot
+ */
+class VersionStore {
+
+    /** Number of stripes the entries are latched by. */
+    static final int NUM_STRIPES = 64;
+
+    // a committed image of a page, visible to the snapshots in [from, to)
+    private static class Version {
+        final Page image;
+        final long from;
+        final long to;
+
+        Version(Page image, long from, long to) {
+            this.image = image;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    // what the store knows about one page; latched by its stripe
+    private static class Entry {
+        // the commit that produced the current committed state
+        long lastCommit = 0;
+        // the committed image while a running writer's changes to the page
+        // may be on disk or in its before image; null otherwise
+        Page pending = null;
+        // older committed images, oldest first
+        final ArrayList<Version> versions = new ArrayList<Version>(2);
+    }
+
+    /** A commit in progress: its timestamp and whether to keep old images. */
+    static class Commit {
+        final long ts;
+        final boolean keep;
+
+        Commit(long ts, boolean keep) {
+            this.ts = ts;
+            this.keep = keep;
+        }
+    }
+
+    private final Object[] stripes = new Object[NUM_STRIPES];
+    private final ConcurrentHashMap<PageId, Entry> entries = new ConcurrentHashMap<PageId, Entry>();
+
+    private long clock = 0; // protected by this
+    // timestamps of the running snapshots, with their number
+    private final TreeMap<Long, Integer> active = new TreeMap<Long, Integer>(); // protected by this
+    // commits that have a timestamp but have not installed their pages
+    private final TreeSet<Long> committing = new TreeSet<Long>(); // protected by this
+
+    VersionStore() {
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /** @return the latch of the page's entry */
+    Object stripe(PageId pid) {
+        int h = pid.hashCode() * 0x9E3779B9;
+        return stripes[Math.floorMod(h ^ (h >>> 16), NUM_STRIPES)];
+    }
+
+    /**
+     * Register a snapshot of everything committed so far, waiting for
+     * commits that are installing their pages.
+     *
+     * @return the snapshot's timestamp
+     */
+    synchronized long beginSnapshot() {
+        long s = clock;
+        // registered first, so commits numbered after s keep old images
+        active.merge(s, 1, Integer::sum);
+        boolean interrupted = false;
+        while (!committing.isEmpty() && committing.first() <= s) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return s;
+    }
+
+    /** Unregister a snapshot and drop the images no snapshot can see any more. */
+    void endSnapshot(long s) {
+        TreeSet<Long> running;
+        long horizon;
+        synchronized (this) {
+            if (active.merge(s, -1, Integer::sum) == 0) {
+                active.remove(s);
+            }
+            running = new TreeSet<Long>(active.keySet());
+            // snapshots that begin during the sweep have timestamps >= horizon
+            horizon = clock;
+        }
+        long oldest = running.isEmpty() ? horizon : running.first();
+        for (Map.Entry<PageId, Entry> me : entries.entrySet()) {
+            synchronized (stripe(me.getKey())) {
+                Entry e = me.getValue();
+                e.versions.removeIf(v -> v.to <= horizon && !visible(running, v));
+                if (e.versions.isEmpty() && e.pending == null && oldest >= e.lastCommit) {
+                    entries.remove(me.getKey(), e);
+                }
+            }
+        }
+    }
+
+    // whether a snapshot in running can see v
+    private static boolean visible(TreeSet<Long> running, Version v) {
+        Long s = running.ceiling(v.from);
+        return s != null && s < v.to;
+    }
+
+    /** @return the number of running snapshots */
+    synchronized int getNumSnapshots() {
+        int n = 0;
+        for (int count : active.values()) {
+            n += count;
+        }
+        return n;
+    }
+
+    /** @return the number of old page images kept */
+    int getNumVersions() {
+        int n = 0;
+        for (Map.Entry<PageId, Entry> me : entries.entrySet()) {
+            synchronized (stripe(me.getKey())) {
+                n += me.getValue().versions.size();
+            }
+        }
+        return n;
+    }
+
+    /** Number the next commit; it must be finished with {@link #endCommit}. */
+    synchronized Commit beginCommit() {
+        long ts = ++clock;
+        committing.add(ts);
+        return new Commit(ts, !active.isEmpty());
+    }
+
+    /** The commit has installed all its pages. */
+    synchronized void endCommit(Commit c) {
+        committing.remove(c.ts);
+        notifyAll();
+    }
+
+    /**
+     * Remember the committed image of a page that a running writer is
+     * about to write out; the first image stashed is kept.  Must hold the
+     * page's stripe.
+     */
+    void stash(PageId pid, Page committed) {
+        Entry e = entries.computeIfAbsent(pid, k -> new Entry());
+        if (e.pending == null) {
+            e.pending = committed;
+        }
+    }
+
+    /** The writer of the page aborted; must hold the page's stripe. */
+    void abort(PageId pid) {
+        Entry e = entries.get(pid);
+        if (e != null) {
+            e.pending = null;
+        }
+    }
+
+    /**
+     * A commit changed the page.  Must hold the page's stripe.
+     *
+     * @param old the committed image before the commit, or null for the
+     *   image stashed by {@link #stash}
+     */
+    void install(PageId pid, Commit c, Page old) {
+        if (!c.keep) {
+            // every snapshot that can still begin sees the commit
+            entries.remove(pid);
+            return;
+        }
+        Entry e = entries.computeIfAbsent(pid, k -> new Entry());
+        e.versions.add(new Version(old != null ? old : e.pending, e.lastCommit, c.ts));
+        e.pending = null;
+        e.lastCommit = c.ts;
+    }
+
+    /**
+     * @return the committed image snapshot s sees of the page, or null if
+     *   that is the current committed state; must hold the page's stripe
+     * @throws DbException if the image was dropped, i.e. s is not a
+     *   running snapshot
+     */
+    Page read(PageId pid, long s) throws DbException {
+        Entry e = entries.get(pid);
+        if (e == null) {
+            return null;
+        }
+        if (e.lastCommit > s) {
+            for (int i = e.versions.size() - 1; i >= 0; i--) {
+                Version v = e.versions.get(i);
+                if (v.from <= s && s < v.to) {
+                    return v.image;
+                }
+            }
+            throw new DbException("no version of " + pid + " for snapshot " + s);
+        }
+        return e.pending;
+    }
+}
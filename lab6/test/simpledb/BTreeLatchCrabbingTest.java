@@ -0,0 +1,114 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.BTreeUtility.BTreeWriter;
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class BTreeLatchCrabbingTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private BufferPool bp;
+	private BTreeFile bf;
+	private BTreePageId rootPtrId;
+	private BTreePageId rootId;
+
+	private static final int POLL_INTERVAL = 100;
+	private static final int MAX_WAIT = 5000;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// a packed B+ tree with 100 full leaf pages under an internal root
+		bf = BTreeUtility.createRandomBTreeFile(2, 50200, null, null, 0);
+		bp = Database.resetBufferPool(500);
+		tid = new TransactionId();
+
+		rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		TransactionId t = new TransactionId();
+		rootId = ((BTreeRootPtrPage) bp.getPage(t, rootPtrId, Permissions.READ_ONLY)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		bp.transactionComplete(t);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		bp.transactionComplete(tid);
+	}
+
+	// look up the first tuple with a key of at least key; returns its leaf page
+	private PageId lookup(TransactionId tid, int key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid,
+				new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(key)));
+		it.open();
+		assertTrue(it.hasNext());
+		PageId pid = it.next().getRecordId().getPageId();
+		it.close();
+		return pid;
+	}
+
+	/**
+	 * A lookup keeps its lock on the leaf page only
+	 */
+	@Test
+	public void lookupLocksOnlyLeaf() throws Exception {
+		PageId leafId = lookup(tid, 0);
+		assertTrue(bp.holdsLock(tid, leafId));
+		assertFalse(bp.holdsLock(tid, rootId));
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+	}
+
+	/**
+	 * An insert into a leaf with an empty slot keeps its lock on the leaf
+	 * page only; one that splits the leaf keeps the parent it changes
+	 */
+	@Test
+	public void insertLocksChangedPages() throws Exception {
+		int key = BTreeUtility.MAX_RAND_VALUE / 2;
+		// the leaves are full: this splits one
+		bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+		assertTrue(bp.holdsLock(tid, rootId));
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		bp.transactionComplete(tid);
+
+		tid = new TransactionId();
+		bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+		assertTrue(bp.holdsLock(tid, lookup(tid, key)));
+		assertFalse(bp.holdsLock(tid, rootId));
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+	}
+
+	/**
+	 * A transaction that has read a leaf page does not keep another one
+	 * from splitting a different leaf page under the same root
+	 */
+	@Test
+	public void readerDoesNotBlockSplit() throws Exception {
+		lookup(tid, 0);
+
+		BTreeWriter writer = new BTreeWriter(new TransactionId(), bf,
+				BTreeUtility.MAX_RAND_VALUE - 1, 1);
+		writer.start();
+		int waited = 0;
+		while (!writer.succeeded() && writer.getError() == null && waited < MAX_WAIT) {
+			Thread.sleep(POLL_INTERVAL);
+			waited += POLL_INTERVAL;
+		}
+		assertTrue(writer.succeeded());
+		bp.transactionComplete(writer.tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchCrabbingTest.class);
+	}
+
+}
@@ -8,6 +8,7 @@ import simpledb.BTreeUtility.BTreeWriter;
 import simpledb.Predicate.Op;
 import simpledb.systemtest.SimpleDbTestBase;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 
 import static org.junit.Assert.*;
@@ -32,10 +33,20 @@ public class BTreeNextKeyLockingTest extends SimpleDbTestBase {
 
 	@Test
 	public void nextKeyLockingTestLessThan() throws Exception {
+		lessThan(false);
+	}
+
+	@Test
+	public void keyLockingTestLessThan() throws Exception {
+		lessThan(true);
+	}
+
+	private void lessThan(boolean keyLocking) throws Exception {
 		
 		// This should create a B+ tree with 100 leaf pages
 		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
 				null, null, 0);
+		bigFile.setKeyLocking(keyLocking);
 
 		// get a key from the middle of the root page
 		BTreePageId rootPtrPid = new BTreePageId(bigFile.getId(), 0, BTreePageId.ROOT_PTR);
@@ -135,9 +146,19 @@ public class BTreeNextKeyLockingTest extends SimpleDbTestBase {
 
 	@Test
 	public void nextKeyLockingTestGreaterThan() throws Exception {
+		greaterThan(false);
+	}
+
+	@Test
+	public void keyLockingTestGreaterThan() throws Exception {
+		greaterThan(true);
+	}
+
+	private void greaterThan(boolean keyLocking) throws Exception {
 		// This should create a B+ tree with 100 leaf pages
 		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
 				null, null, 0);
+		bigFile.setKeyLocking(keyLocking);
 
 		// get a key from the middle of the root page
 		BTreePageId rootPtrPid = new BTreePageId(bigFile.getId(), 0, BTreePageId.ROOT_PTR);
@@ -235,6 +256,160 @@ public class BTreeNextKeyLockingTest extends SimpleDbTestBase {
 		bw1 = null;
 	}
 
+	/**
+	 * With key locking, a search does not keep inserts out of other key ranges
+	 * of the leaf page it read, only out of its own
+	 */
+	@Test
+	public void keyLockingTestOtherRangeOfLeaf() throws Exception {
+		// This should create a B+ tree with 100 leaf pages
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
+				null, null, 0);
+		bigFile.setKeyLocking(true);
+
+		// the distinct keys at the start of the first leaf page, with their counts
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		ArrayList<Integer> counts = new ArrayList<Integer>();
+		DbFileIterator fit = bigFile.iterator(tid);
+		fit.open();
+		PageId leafId = null;
+		for(int i = 0; i < 300; i++) {
+			Tuple t = fit.next();
+			if(leafId == null) {
+				leafId = t.getRecordId().getPageId();
+			}
+			assertEquals(leafId, t.getRecordId().getPageId());
+			int key = ((IntField) t.getField(0)).getValue();
+			if(!keys.isEmpty() && keys.get(keys.size() - 1) == key) {
+				counts.set(counts.size() - 1, counts.get(counts.size() - 1) + 1);
+			}
+			else {
+				keys.add(key);
+				counts.add(1);
+			}
+		}
+		fit.close();
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		int mid = keys.size() / 2;
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(keys.get(mid)));
+		fit = bigFile.indexIterator(tid, ipred);
+		fit.open();
+		int found = 0;
+		while(fit.hasNext()) {
+			fit.next();
+			found++;
+		}
+		fit.close();
+		assertEquals((int) counts.get(mid), found);
+		assertFalse(Database.getBufferPool().holdsLock(tid, leafId));
+
+		// a key near the start of the same leaf page can be inserted
+		TransactionId tid1 = new TransactionId();
+		BTreeWriter bw1 = new BTreeWriter(tid1, bigFile, keys.get(1), counts.get(1) + 1);
+		bw1.start();
+
+		// the key that was searched for cannot
+		TransactionId tid2 = new TransactionId();
+		BTreeWriter bw2 = new BTreeWriter(tid2, bigFile, keys.get(mid), counts.get(mid) + 1);
+		bw2.start();
+
+		for(int waited = 0; !bw1.succeeded() && waited < 50; waited++) {
+			Thread.sleep(POLL_INTERVAL);
+		}
+		assertTrue(bw1.succeeded());
+		Database.getBufferPool().transactionComplete(tid1);
+		assertFalse(bw2.succeeded());
+
+		// the search sees no phantoms
+		fit = bigFile.indexIterator(tid, ipred);
+		fit.open();
+		int foundAfter = 0;
+		while(fit.hasNext()) {
+			fit.next();
+			foundAfter++;
+		}
+		fit.close();
+		assertEquals(found, foundAfter);
+
+		// now let the insert happen
+		Database.getBufferPool().transactionComplete(tid);
+		while(!bw2.succeeded()) {
+			assertNull(bw2.getError());
+			Thread.sleep(POLL_INTERVAL);
+		}
+		Database.getBufferPool().transactionComplete(tid2);
+	}
+
+	/**
+	 * With key locking, a delete that waits for the key lock of a search does
+	 * not hold the leaf page meanwhile, so the search can read the page again
+	 */
+	@Test
+	public void keyLockingDeleteWaitsWithoutLeaf() throws Exception {
+		// This should create a B+ tree with 100 leaf pages
+		final BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
+				null, null, 0);
+		bigFile.setKeyLocking(true);
+
+		// a tuple in the middle of the first leaf page
+		DbFileIterator fit = bigFile.iterator(tid);
+		fit.open();
+		PageId leafId = fit.next().getRecordId().getPageId();
+		Tuple victim = null;
+		for(int i = 0; i < 200; i++) {
+			victim = fit.next();
+		}
+		fit.close();
+		assertEquals(leafId, victim.getRecordId().getPageId());
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, victim.getField(0));
+		int found = count(bigFile, ipred);
+
+		final TransactionId tid2 = new TransactionId();
+		final Tuple toDelete = victim;
+		final Exception[] error = new Exception[1];
+		Thread deleter = new Thread() {
+			public void run() {
+				try {
+					Database.getBufferPool().deleteTuple(tid2, toDelete);
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		deleter.start();
+		deleter.join(POLL_INTERVAL * 5);
+		assertTrue(deleter.isAlive());
+		assertFalse(Database.getBufferPool().holdsLock(tid2, leafId));
+
+		// the search reads the leaf page again and still sees the tuple
+		assertEquals(found, count(bigFile, ipred));
+
+		// now let the delete happen
+		Database.getBufferPool().transactionComplete(tid);
+		deleter.join();
+		assertNull(error[0]);
+		Database.getBufferPool().transactionComplete(tid2);
+		tid = new TransactionId();
+		assertEquals(found - 1, count(bigFile, ipred));
+	}
+
+	private int count(BTreeFile bf, IndexPredicate ipred) throws Exception {
+		DbFileIterator fit = bf.indexIterator(tid, ipred);
+		fit.open();
+		int found = 0;
+		while(fit.hasNext()) {
+			fit.next();
+			found++;
+		}
+		fit.close();
+		return found;
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,166 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolShardTest extends SimpleDbTestBase {
+    private static final int FILE_PAGES = 32;
+
+    private HeapFile hf;
+
+    // a heap file with slow reads, counting how often each page is read
+    class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger(0);
+
+        public SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * FILE_PAGES, null, null);
+    }
+
+    /**
+     * The default shard count grows with the pool and is bounded
+     */
+    @Test
+    public void defaultShards() {
+        assertEquals(1, new BufferPool(10).getNumShards());
+        assertEquals(BufferPool.MAX_SHARDS, new BufferPool(100000).getNumShards());
+    }
+
+    /**
+     * Capacity is shared by all shards: a pool with more shards than
+     * pages still caches as many pages as it has frames
+     */
+    @Test
+    public void capacityIsGlobal() throws Exception {
+        BufferPool bp = new BufferPool(8, BufferPool.DEFAULT_POLICY, 16);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 8; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        for (int i = 0; i < 8; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        assertEquals(8, bp.getHitCount());
+
+        // one more page forces exactly one eviction
+        bp.getPage(tid, new HeapPageId(hf.getId(), 8), Permissions.READ_ONLY);
+        bp.resetStats();
+        for (int i = 0; i <= 8; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        assertTrue(bp.getMissCount() >= 1);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Concurrent readers on a sharded pool read every page from disk once
+     */
+    @Test
+    public void concurrentReaders() throws Exception {
+        final BufferPool bp = new BufferPool(2 * FILE_PAGES, BufferPool.DEFAULT_POLICY, 4);
+        final int numThreads = 8;
+        final CyclicBarrier start = new CyclicBarrier(numThreads);
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numThreads; t++) {
+            Thread th = new Thread() {
+                public void run() {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        start.await();
+                        for (int i = 0; i < FILE_PAGES; i++) {
+                            HeapPageId pid = new HeapPageId(hf.getId(), i);
+                            assertEquals(pid, bp.getPage(tid, pid, Permissions.READ_ONLY).getId());
+                        }
+                        bp.transactionComplete(tid);
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads.add(th);
+            th.start();
+        }
+        for (Thread th : threads) {
+            th.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(FILE_PAGES, bp.getMissCount());
+        assertEquals(FILE_PAGES * (numThreads - 1), bp.getHitCount());
+    }
+
+    /**
+     * Transactions missing on the same page at once share one disk read
+     */
+    @Test
+    public void concurrentMissesShareOneRead() throws Exception {
+        final SlowHeapFile slow = new SlowHeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(slow, SystemTestUtil.getUUID());
+        final BufferPool bp = new BufferPool(FILE_PAGES, BufferPool.DEFAULT_POLICY, 4);
+        final HeapPageId pid = new HeapPageId(slow.getId(), 0);
+        final int numThreads = 8;
+        final CyclicBarrier start = new CyclicBarrier(numThreads);
+        final Page[] seen = new Page[numThreads];
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numThreads; t++) {
+            final int slot = t;
+            Thread th = new Thread() {
+                public void run() {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        start.await();
+                        seen[slot] = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                        bp.transactionComplete(tid);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads.add(th);
+            th.start();
+        }
+        for (Thread th : threads) {
+            th.join();
+        }
+        assertEquals(1, slow.reads.get());
+        assertEquals(1, bp.getMissCount());
+        for (Page p : seen) {
+            assertSame(seen[0], p);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolShardTest.class);
+    }
+}
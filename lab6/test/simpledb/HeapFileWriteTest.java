@@ -5,7 +5,11 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -46,6 +50,105 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    // fill the first two pages and commit
+    private void fillTwoPages() throws Exception {
+        for (int i = 0; i < 2 * 504; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+    }
+
+    /**
+     * An insert goes straight to a page with room, without locking the
+     * full pages before it
+     */
+    @Test
+    public void insertSkipsFullPages() throws Exception {
+        fillTwoPages();
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(0, 2));
+        assertEquals(3, empty.numPages());
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 1)));
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 2)));
+    }
+
+    /**
+     * A delete gives its page back to inserts
+     */
+    @Test
+    public void insertAfterDelete() throws Exception {
+        fillTwoPages();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        Database.getBufferPool().deleteTuple(tid, it.next());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(0, 2));
+        assertEquals(2, empty.numPages());
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 1)));
+    }
+
+    /**
+     * A page filled by an insert that aborts has room again
+     */
+    @Test
+    public void abortedInsertLeavesRoom() throws Exception {
+        for (int i = 0; i < 503; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(0, 2));
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(0, 2));
+        assertEquals(1, empty.numPages());
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+    }
+
+    /**
+     * The free space map is kept on disk and used by the next HeapFile
+     * opened on the same file
+     */
+    @Test
+    public void freeSpaceMapPersists() throws Exception {
+        fillTwoPages();
+        assertTrue(new File(empty.getFile().getPath() + ".fsm").exists());
+        Database.reset();
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, reopened.getId(), Utility.getHeapTuple(0, 2));
+        assertEquals(3, reopened.numPages());
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(reopened.getId(), 0)));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(reopened.getId(), 1)));
+    }
+
+    /**
+     * A map that does not cover all pages of the heap file, because pages
+     * were appended while it was not loaded, is rebuilt
+     */
+    @Test
+    public void staleFreeSpaceMapRebuilt() throws Exception {
+        fillTwoPages();
+        Database.reset();
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        // append a full page and empty page 0 behind the map's back
+        HeapPage full = (HeapPage) reopened.readPage(new HeapPageId(reopened.getId(), 1));
+        reopened.writePage(new HeapPage(new HeapPageId(reopened.getId(), 2), full.getPageData()));
+        reopened.writePage(new HeapPage(new HeapPageId(reopened.getId(), 0), HeapPage.createEmptyPageData()));
+
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, reopened.getId(), Utility.getHeapTuple(0, 2));
+        assertEquals(3, reopened.numPages());
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(reopened.getId(), 0)));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.BTreeUtility.BTreeReader;
+import simpledb.BTreeUtility.BTreeWriter;
+
+/**
+ * Compares transaction throughput under each deadlock policy when many
+ * threads read and insert a few hot keys of a B+ tree.  Every transaction
+ * searches one key and then inserts another, so transactions often
+ * upgrade and deadlock on the same leaf pages.  Run with
+ * <pre>
+ *   java -cp bin/src:bin/test:lib/* simpledb.LockContentionBenchmark [threads] [seconds] [hot keys]
+ * </pre>
+ */
+public class LockContentionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int hotKeys = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, null, null, 0);
+        Database.getBufferPool().flushAllPages();
+
+        // the helpers print the stack trace of every abort
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new ByteArrayOutputStream() {
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        System.out.println("policy\tcommits/s\taborts/s\ttimeout\tdeadlock\tdie\twound");
+        try {
+            for (LockManager.DeadlockPolicy policy : LockManager.DeadlockPolicy.values()) {
+                BufferPool bp = Database.resetBufferPool(500);
+                bp.setDeadlockPolicy(policy);
+                long[] counts = run(bf, threads, seconds, hotKeys);
+                StringBuilder line = new StringBuilder(policy.toString());
+                line.append("\t").append(counts[0] / seconds);
+                line.append("\t").append(counts[1] / seconds);
+                for (LockManager.AbortReason reason : LockManager.AbortReason.values()) {
+                    line.append("\t").append(bp.getAbortCount(reason));
+                }
+                System.out.println(line);
+            }
+        } finally {
+            System.setErr(err);
+        }
+    }
+
+    // run transactions on all threads for the given time; returns the
+    // number of commits and of aborts
+    static long[] run(BTreeFile bf, int threads, int seconds, int hotKeys) throws Exception {
+        final AtomicLong commits = new AtomicLong(0);
+        final AtomicLong aborts = new AtomicLong(0);
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        final int spacing = BTreeUtility.MAX_RAND_VALUE / hotKeys;
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    Random rand = new Random();
+                    while (System.currentTimeMillis() < end) {
+                        TransactionId tid = new TransactionId();
+                        int read = rand.nextInt(hotKeys) * spacing;
+                        int write = rand.nextInt(hotKeys) * spacing;
+
+                        // both helpers abort the transaction if they fail
+                        BTreeReader reader = new BTreeReader(tid, bf, new IntField(read), 0);
+                        reader.run();
+                        if (reader.getError() != null) {
+                            aborts.incrementAndGet();
+                            continue;
+                        }
+                        BTreeWriter writer = new BTreeWriter(tid, bf, write, 1);
+                        writer.run();
+                        if (writer.getError() != null) {
+                            aborts.incrementAndGet();
+                            continue;
+                        }
+                        try {
+                            Database.getBufferPool().transactionComplete(tid, true);
+                            commits.incrementAndGet();
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        return new long[]{commits.get(), aborts.get()};
+    }
+}
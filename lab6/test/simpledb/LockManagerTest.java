@@ -0,0 +1,418 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest {
+  // waits time out at random up to the limit; make a short one unlikely
+  private static final int LONG_WAIT = Integer.MAX_VALUE - 1;
+
+  private LockManager lm;
+  private PageId p0, p1;
+  private TransactionId tid1, tid2, tid3;
+
+  @Before public void setUp() {
+    lm = new LockManager(16, 16);
+    p0 = new HeapPageId(1, 0);
+    p1 = new HeapPageId(1, 1);
+    tid1 = new TransactionId();
+    tid2 = new TransactionId();
+    tid3 = new TransactionId();
+  }
+
+  // acquires a lock in its own thread: on pid, or on table 1 if pid is null
+  private class Acquirer extends Thread {
+    final TransactionId tid;
+    final PageId pid;
+    final LockManager.LockType type;
+    final int timeout;
+    volatile boolean acquired = false;
+    volatile boolean aborted = false;
+
+    Acquirer(TransactionId tid, PageId pid, LockManager.LockType type, int timeout) {
+      this.tid = tid;
+      this.pid = pid;
+      this.type = type;
+      this.timeout = timeout;
+      setDaemon(true);
+      start();
+    }
+
+    public void run() {
+      try {
+        if (pid == null) {
+          lm.acquireTableLock(tid, 1, type, timeout);
+        } else {
+          lm.acquireLock(tid, pid, type, timeout);
+        }
+        acquired = true;
+      } catch (TransactionAbortedException e) {
+        aborted = true;
+      }
+    }
+  }
+
+  private static void pause() throws InterruptedException {
+    Thread.sleep(100);
+  }
+
+  /**
+   * A shared request queues behind a waiting writer instead of
+   * overtaking it, and waiters are granted in order
+   */
+  @Test public void fifo() throws Exception {
+    lm.acquireLock(tid1, p0, LockManager.LockType.SLock, LONG_WAIT);
+    Acquirer writer = new Acquirer(tid2, p0, LockManager.LockType.XLock, LONG_WAIT);
+    pause();
+    Acquirer reader = new Acquirer(tid3, p0, LockManager.LockType.SLock, LONG_WAIT);
+    pause();
+    assertFalse(writer.acquired);
+    assertFalse(reader.acquired);
+
+    lm.releaseLocksOnTransaction(tid1);
+    writer.join(1000);
+    assertTrue(writer.acquired);
+    pause();
+    assertFalse(reader.acquired);
+
+    lm.releaseLocksOnTransaction(tid2);
+    reader.join(1000);
+    assertTrue(reader.acquired);
+  }
+
+  /**
+   * Locks on other pages are granted while a page has waiters
+   */
+  @Test public void otherPages() throws Exception {
+    lm.acquireLock(tid1, p0, LockManager.LockType.XLock, LONG_WAIT);
+    Acquirer waiter = new Acquirer(tid2, p0, LockManager.LockType.XLock, LONG_WAIT);
+    pause();
+    assertTrue(lm.tryAcquireLock(tid3, p1, LockManager.LockType.XLock));
+    assertFalse(waiter.acquired);
+    lm.releaseLocksOnTransaction(tid1);
+    waiter.join(1000);
+    assertTrue(waiter.acquired);
+  }
+
+  /**
+   * An upgrade from S to X goes ahead of earlier waiters
+   */
+  @Test public void upgradeFirst() throws Exception {
+    lm.acquireLock(tid1, p0, LockManager.LockType.SLock, LONG_WAIT);
+    lm.acquireLock(tid2, p0, LockManager.LockType.SLock, LONG_WAIT);
+    Acquirer writer = new Acquirer(tid3, p0, LockManager.LockType.XLock, LONG_WAIT);
+    pause();
+    Acquirer upgrade = new Acquirer(tid1, p0, LockManager.LockType.XLock, LONG_WAIT);
+    pause();
+
+    lm.releaseLocksOnTransaction(tid2);
+    upgrade.join(1000);
+    assertTrue(upgrade.acquired);
+    assertFalse(writer.acquired);
+
+    lm.releaseLocksOnTransaction(tid1);
+    writer.join(1000);
+    assertTrue(writer.acquired);
+  }
+
+  /**
+   * The only holder of a page upgrades at once, even with others queued
+   */
+  @Test public void upgradeSoleHolder() throws Exception {
+    lm.acquireLock(tid1, p0, LockManager.LockType.SLock, LONG_WAIT);
+    Acquirer writer = new Acquirer(tid2, p0, LockManager.LockType.XLock, LONG_WAIT);
+    pause();
+    Acquirer upgrade = new Acquirer(tid1, p0, LockManager.LockType.XLock, LONG_WAIT);
+    upgrade.join(1000);
+    assertTrue(upgrade.acquired);
+    assertFalse(writer.acquired);
+  }
+
+  /**
+   * Under wait-die an older requester waits and a younger one aborts
+   */
+  @Test public void waitDie() throws Exception {
+    lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+    lm.acquireLock(tid2, p0, LockManager.LockType.XLock, LONG_WAIT);
+    Acquirer older = new Acquirer(tid1, p0, LockManager.LockType.XLock, LONG_WAIT);
+    Acquirer younger = new Acquirer(tid3, p0, LockManager.LockType.XLock, LONG_WAIT);
+    younger.join(1000);
+    assertTrue(younger.aborted);
+    assertFalse(older.aborted);
+    assertEquals(1, lm.getAbortCount(LockManager.AbortReason.DIE));
+
+    lm.releaseLocksOnTransaction(tid2);
+    older.join(1000);
+    assertTrue(older.acquired);
+  }
+
+  /**
+   * Under wound-wait an older requester aborts a younger waiting holder,
+   * and a younger running holder at its next lock request
+   */
+  @Test public void woundWait() throws Exception {
+    lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+    lm.acquireLock(tid2, p0, LockManager.LockType.XLock, LONG_WAIT);
+    lm.acquireLock(tid3, p1, LockManager.LockType.XLock, LONG_WAIT);
+    // tid3 is younger than tid2, so it may wait
+    Acquirer waiting = new Acquirer(tid3, p0, LockManager.LockType.XLock, LONG_WAIT);
+    pause();
+    assertFalse(waiting.aborted);
+
+    // tid1 wounds tid3 while it waits...
+    Acquirer older = new Acquirer(tid1, p1, LockManager.LockType.XLock, LONG_WAIT);
+    waiting.join(1000);
+    assertTrue(waiting.aborted);
+    lm.releaseLocksOnTransaction(tid3);
+    older.join(1000);
+    assertTrue(older.acquired);
+
+    // ...and tid2 while it runs
+    Acquirer again = new Acquirer(tid1, p0, LockManager.LockType.XLock, LONG_WAIT);
+    pause();
+    assertFalse(again.acquired);
+    try {
+      lm.acquireLock(tid2, p1, LockManager.LockType.SLock, LONG_WAIT);
+      fail("expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertEquals(2, lm.getAbortCount(LockManager.AbortReason.WOUND));
+    lm.releaseLocksOnTransaction(tid2);
+    again.join(1000);
+    assertTrue(again.acquired);
+  }
+
+  /**
+   * A waiter that times out leaves the queue, letting the requests
+   * behind it through
+   */
+  @Test public void timeout() throws Exception {
+    lm.acquireLock(tid1, p0, LockManager.LockType.SLock, LONG_WAIT);
+    Acquirer writer = new Acquirer(tid2, p0, LockManager.LockType.XLock, 0);
+    writer.join(1000);
+    assertTrue(writer.aborted);
+
+    Acquirer slowWriter = new Acquirer(tid2, p0, LockManager.LockType.XLock, 200);
+    pause();
+    Acquirer reader = new Acquirer(tid3, p0, LockManager.LockType.SLock, LONG_WAIT);
+    slowWriter.join(1000);
+    reader.join(1000);
+    assertTrue(slowWriter.aborted);
+    assertTrue(reader.acquired);
+    assertFalse(lm.holdsLock(tid2, p0));
+  }
+
+  /**
+   * A deadlock is broken at once by aborting its youngest transaction
+   */
+  @Test public void deadlockAbortsYoungest() throws Exception {
+    lm.acquireLock(tid1, p0, LockManager.LockType.XLock, LONG_WAIT);
+    lm.acquireLock(tid2, p1, LockManager.LockType.XLock, LONG_WAIT);
+    Acquirer older = new Acquirer(tid1, p1, LockManager.LockType.XLock, LONG_WAIT);
+    pause();
+    Acquirer younger = new Acquirer(tid2, p0, LockManager.LockType.XLock, LONG_WAIT);
+    younger.join(1000);
+    assertTrue(younger.aborted);
+    assertFalse(older.acquired);
+    assertEquals(1, lm.getAbortCount(LockManager.AbortReason.DEADLOCK));
+    assertEquals(0, lm.getAbortCount(LockManager.AbortReason.TIMEOUT));
+
+    lm.releaseLocksOnTransaction(tid2);
+    older.join(1000);
+    assertTrue(older.acquired);
+  }
+
+  /**
+   * Waiting behind a queued request is an edge of the wait-for graph too
+   */
+  @Test public void deadlockThroughQueue() throws Exception {
+    lm.acquireLock(tid1, p0, LockManager.LockType.SLock, LONG_WAIT);
+    lm.acquireLock(tid3, p1, LockManager.LockType.XLock, LONG_WAIT);
+    // tid2 waits for tid1, and tid3's request queues behind tid2's
+    Acquirer writer = new Acquirer(tid2, p0, LockManager.LockType.XLock, LONG_WAIT);
+    pause();
+    Acquirer reader = new Acquirer(tid3, p0, LockManager.LockType.SLock, LONG_WAIT);
+    pause();
+    assertFalse(reader.aborted);
+    // tid1 waiting for tid3 closes the cycle tid1 -> tid3 -> tid2 -> tid1
+    Acquirer closer = new Acquirer(tid1, p1, LockManager.LockType.SLock, LONG_WAIT);
+    reader.join(1000);
+    assertTrue(reader.aborted);
+    assertFalse(writer.aborted);
+    assertFalse(closer.aborted);
+  }
+
+  /**
+   * Waits that are not deadlocked are not aborted
+   */
+  @Test public void noSpuriousAborts() throws Exception {
+    lm.acquireLock(tid1, p0, LockManager.LockType.XLock, LONG_WAIT);
+    Acquirer waiter = new Acquirer(tid2, p0, LockManager.LockType.XLock, LONG_WAIT);
+    Acquirer other = new Acquirer(tid3, p0, LockManager.LockType.SLock, LONG_WAIT);
+    pause();
+    assertFalse(waiter.aborted);
+    assertFalse(other.aborted);
+    lm.releaseLocksOnTransaction(tid1);
+    waiter.join(1000);
+    assertTrue(waiter.acquired);
+    assertEquals(0, lm.getAbortCount(LockManager.AbortReason.DEADLOCK));
+  }
+
+  /**
+   * A page lock takes an intention lock on its table, which keeps others
+   * from locking the whole table
+   */
+  @Test public void intentionLocks() throws Exception {
+    lm.acquireLock(tid1, p0, LockManager.LockType.SLock, LONG_WAIT);
+    assertEquals(LockManager.LockType.ISLock, lm.getTableLock(tid1, 1));
+    lm.acquireLock(tid1, p1, LockManager.LockType.XLock, LONG_WAIT);
+    assertEquals(LockManager.LockType.IXLock, lm.getTableLock(tid1, 1));
+
+    // S on the table conflicts with IX, IS does not
+    lm.acquireTableLock(tid3, 1, LockManager.LockType.ISLock, LONG_WAIT);
+    Acquirer table = new Acquirer(tid2, null, LockManager.LockType.SLock, LONG_WAIT);
+    pause();
+    assertFalse(table.acquired);
+
+    // dropping the last page lock drops the intention lock too
+    lm.releaseLock(tid1, p0);
+    assertEquals(LockManager.LockType.IXLock, lm.getTableLock(tid1, 1));
+    lm.releaseLock(tid1, p1);
+    assertNull(lm.getTableLock(tid1, 1));
+    table.join(1000);
+    assertTrue(table.acquired);
+
+    // the table S lock covers reads of its pages but not writes
+    assertTrue(lm.tryAcquireLock(tid2, p0, LockManager.LockType.SLock));
+    assertTrue(lm.holdsLock(tid2, p0));
+    assertFalse(lm.tryAcquireLock(tid1, p0, LockManager.LockType.SLock) &&
+                lm.tryAcquireLock(tid1, p1, LockManager.LockType.XLock));
+  }
+
+  /**
+   * Page locks past the threshold escalate to one table lock
+   */
+  @Test public void escalation() throws Exception {
+    lm.setEscalationThreshold(4);
+    for (int i = 0; i < 5; i++) {
+      lm.acquireLock(tid1, new HeapPageId(1, i), LockManager.LockType.SLock, LONG_WAIT);
+    }
+    assertEquals(1, lm.getEscalationCount());
+    assertEquals(LockManager.LockType.SLock, lm.getTableLock(tid1, 1));
+    for (int i = 0; i < 10; i++) {
+      lm.acquireLock(tid1, new HeapPageId(1, i), LockManager.LockType.SLock, LONG_WAIT);
+      assertTrue(lm.holdsLock(tid1, new HeapPageId(1, i)));
+    }
+    assertEquals(10, lm.getLockList(tid1).size());
+
+    // others may still read, but not write
+    assertTrue(lm.tryAcquireLock(tid2, p0, LockManager.LockType.SLock));
+    assertFalse(lm.tryAcquireLock(tid2, p1, LockManager.LockType.XLock));
+
+    // a writer escalates to X once the readers are gone
+    lm.releaseLocksOnTransaction(tid1);
+    lm.releaseLocksOnTransaction(tid2);
+    for (int i = 0; i < 5; i++) {
+      lm.acquireLock(tid3, new HeapPageId(1, i), LockManager.LockType.XLock, LONG_WAIT);
+    }
+    assertEquals(2, lm.getEscalationCount());
+    assertEquals(LockManager.LockType.XLock, lm.getTableLock(tid3, 1));
+    assertFalse(lm.tryAcquireLock(tid1, new HeapPageId(1, 100), LockManager.LockType.SLock));
+  }
+
+  /**
+   * Escalation does not wait for other transactions' locks on the table
+   */
+  @Test public void escalationDoesNotWait() throws Exception {
+    lm.setEscalationThreshold(4);
+    lm.acquireLock(tid2, new HeapPageId(1, 100), LockManager.LockType.XLock, LONG_WAIT);
+    for (int i = 0; i < 5; i++) {
+      lm.acquireLock(tid1, new HeapPageId(1, i), LockManager.LockType.SLock, LONG_WAIT);
+    }
+    assertEquals(0, lm.getEscalationCount());
+    assertEquals(LockManager.LockType.ISLock, lm.getTableLock(tid1, 1));
+  }
+
+  /**
+   * Row locks on one page: X locks on different rows are compatible, and
+   * the page gets only intention locks
+   */
+  @Test public void rowLocks() throws Exception {
+    RecordId r0 = new RecordId(p0, 0);
+    RecordId r1 = new RecordId(p0, 1);
+    lm.acquireTupleLock(tid1, r0, LockManager.LockType.XLock, LONG_WAIT);
+    assertTrue(lm.tryAcquireTupleLock(tid2, r1, LockManager.LockType.XLock));
+    assertTrue(lm.holdsTupleLock(tid1, r0));
+    assertTrue(lm.holdsTupleLock(tid2, r1));
+    assertTrue(lm.hasRowWriters(p0));
+    assertEquals(LockManager.LockType.IXLock, lm.getTableLock(tid1, 1));
+
+    // the same row conflicts, and so does a page lock
+    assertFalse(lm.tryAcquireTupleLock(tid3, r0, LockManager.LockType.SLock));
+    assertFalse(lm.tryAcquireLock(tid3, p0, LockManager.LockType.SLock));
+    assertTrue(lm.tryAcquireTupleLock(tid3, new RecordId(p0, 2), LockManager.LockType.SLock));
+
+    lm.releaseLocksOnTransaction(tid1);
+    lm.releaseLocksOnTransaction(tid2);
+    assertFalse(lm.holdsTupleLock(tid1, r0));
+    assertFalse(lm.hasRowWriters(p0));
+    assertTrue(lm.tryAcquireTupleLock(tid3, r0, LockManager.LockType.SLock));
+  }
+
+  /**
+   * A page or table lock covers the rows under it
+   */
+  @Test public void rowLocksCovered() throws Exception {
+    RecordId r0 = new RecordId(p0, 0);
+    lm.acquireLock(tid1, p0, LockManager.LockType.XLock, LONG_WAIT);
+    lm.acquireTupleLock(tid1, r0, LockManager.LockType.XLock, LONG_WAIT);
+    assertFalse(lm.holdsTupleLock(tid1, r0));
+
+    lm.acquireTableLock(tid2, 2, LockManager.LockType.SLock, LONG_WAIT);
+    RecordId other = new RecordId(new HeapPageId(2, 0), 0);
+    assertTrue(lm.tryAcquireTupleLock(tid2, other, LockManager.LockType.SLock));
+    assertFalse(lm.holdsTupleLock(tid2, other));
+    assertFalse(lm.tryAcquireTupleLock(tid3, other, LockManager.LockType.XLock));
+  }
+
+  /**
+   * Key locks conflict only on the same key, keep the table's intention
+   * lock while any page or key lock remains, and can be released early
+   */
+  @Test public void keyLocks() throws Exception {
+    KeyId k1 = new KeyId(1, new IntField(1));
+    KeyId end = new KeyId(1, null);
+    lm.acquireKeyLock(tid1, k1, LockManager.LockType.SLock, LONG_WAIT);
+    lm.acquireKeyLock(tid1, end, LockManager.LockType.SLock, LONG_WAIT);
+    assertTrue(lm.holdsKeyLock(tid1, k1));
+    assertEquals(LockManager.LockType.ISLock, lm.getTableLock(tid1, 1));
+
+    assertTrue(lm.tryAcquireKeyLock(tid2, k1, LockManager.LockType.SLock));
+    assertFalse(lm.tryAcquireKeyLock(tid3, k1, LockManager.LockType.XLock));
+    assertFalse(lm.tryAcquireKeyLock(tid3, new KeyId(1, null), LockManager.LockType.XLock));
+    assertTrue(lm.tryAcquireKeyLock(tid3, new KeyId(1, new IntField(2)), LockManager.LockType.XLock));
+    assertEquals(LockManager.LockType.IXLock, lm.getTableLock(tid3, 1));
+
+    // releasing a page lock leaves the intention lock the keys need
+    lm.acquireLock(tid1, p0, LockManager.LockType.SLock, LONG_WAIT);
+    lm.releaseLock(tid1, p0);
+    assertEquals(LockManager.LockType.ISLock, lm.getTableLock(tid1, 1));
+    lm.releaseKeyLock(tid1, k1);
+    lm.releaseKeyLock(tid1, end);
+    assertFalse(lm.holdsKeyLock(tid1, k1));
+    assertNull(lm.getTableLock(tid1, 1));
+
+    lm.releaseLocksOnTransaction(tid2);
+    assertTrue(lm.tryAcquireKeyLock(tid3, k1, LockManager.LockType.XLock));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LockManagerTest.class);
+  }
+}
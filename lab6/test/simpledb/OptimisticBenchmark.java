@@ -0,0 +1,116 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares transaction throughput of two-phase locking (with wound-wait)
+ * and optimistic transactions on a B+ tree.  Every transaction looks up a
+ * few keys and inserts one.  Each thread draws its keys from a range of
+ * its own, except for the given percentage drawn from the whole key
+ * space, so the writes are mostly disjoint.  A warm-up round first splits
+ * the full leaves the bulk load leaves behind.  Commits are asynchronous
+ * and the pool is STEAL/NO-FORCE, so that log forces and page writes do
+ * not hide the cost of concurrency control.  Run with
+ * <pre>
+ *   java -cp bin/src:bin/test:lib/* simpledb.OptimisticBenchmark [threads] [seconds] [shared %] [lookups]
+ * </pre>
+ */
+public class OptimisticBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int shared = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int lookups = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, null, null, 0);
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(500).setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        run(bf, threads, 2, shared, lookups, false);
+
+        System.out.println("mode\tcommits/s\taborts/s\tvalidation failures");
+        for (boolean optimistic : new boolean[]{false, true}) {
+            BufferPool bp = Database.resetBufferPool(500);
+            bp.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+            bp.setStealNoForce(true);
+            long[] counts = run(bf, threads, seconds, shared, lookups, optimistic);
+            System.out.println((optimistic ? "optimistic" : "locking")
+                               + "\t" + counts[0] / seconds
+                               + "\t" + counts[1] / seconds
+                               + "\t" + bp.getValidationFailureCount());
+        }
+    }
+
+    // run transactions on all threads for the given time; returns the
+    // number of commits and of aborts
+    static long[] run(BTreeFile bf, int threads, int seconds, int shared, int lookups,
+                      boolean optimistic) throws Exception {
+        final AtomicLong commits = new AtomicLong(0);
+        final AtomicLong aborts = new AtomicLong(0);
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        final int range = BTreeUtility.MAX_RAND_VALUE / threads;
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int base = i * range;
+            workers[i] = new Thread() {
+                // a key of this thread's range, or sometimes of any
+                int key(Random rand) {
+                    if (rand.nextInt(100) < shared) {
+                        return rand.nextInt(BTreeUtility.MAX_RAND_VALUE);
+                    }
+                    return base + rand.nextInt(range);
+                }
+
+                public void run() {
+                    Random rand = new Random();
+                    while (System.currentTimeMillis() < end) {
+                        Transaction t = new Transaction();
+                        t.setOptimistic(optimistic);
+                        t.setAsyncCommit(true);
+                        t.start();
+                        try {
+                            for (int j = 0; j < lookups; j++) {
+                                IntField key = new IntField(key(rand));
+                                DbFileIterator it = bf.indexIterator(t.getId(),
+                                        new IndexPredicate(Predicate.Op.EQUALS, key));
+                                it.open();
+                                while (it.hasNext()) {
+                                    it.next();
+                                }
+                                it.close();
+                            }
+                            Database.getBufferPool().insertTuple(t.getId(), bf.getId(),
+                                    BTreeUtility.getBTreeTuple(key(rand), 2));
+                            // does nothing for locking transactions
+                            t.validate();
+                            t.commit();
+                            commits.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            // a failed validation has aborted already
+                            abort(t);
+                            aborts.incrementAndGet();
+                        } catch (DbException | IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        return new long[]{commits.get(), aborts.get()};
+    }
+
+    private static void abort(Transaction t) {
+        try {
+            t.abort();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.*;
+
+import static org.junit.Assert.*;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        pid = new HeapPageId(hf.getId(), 0);
+    }
+
+    private HeapPage page(int... values) throws Exception {
+        HeapPage p = new HeapPage(pid, HeapPage.createEmptyPageData());
+        for (int v : values) {
+            p.insertTuple(Utility.getHeapTuple(v, 2));
+        }
+        return p;
+    }
+
+    /**
+     * Redo yields the after image and undo the before image, from
+     * either image as the base
+     */
+    @Test
+    public void redoAndUndo() throws Exception {
+        byte[] before = page(1, 2).getPageData();
+        byte[] after = page(1, 2, 3).getPageData();
+
+        PageDelta delta = PageDelta.diff(before, after);
+        assertArrayEquals(after, delta.apply(before, true));
+        assertArrayEquals(after, delta.apply(after, true));
+        assertArrayEquals(before, delta.apply(after, false));
+        assertArrayEquals(before, delta.apply(before, false));
+    }
+
+    /**
+     * Identical images have no ranges; nearby changes share a range
+     */
+    @Test
+    public void ranges() {
+        byte[] before = new byte[64];
+        assertEquals(0, PageDelta.diff(before, before.clone()).getNumRanges());
+
+        byte[] after = before.clone();
+        after[10] = 1;
+        after[12] = 1;
+        after[40] = 1;
+        PageDelta delta = PageDelta.diff(before, after);
+        assertEquals(2, delta.getNumRanges());
+        assertNull(PageDelta.diff(before, new byte[32]));
+    }
+
+    /**
+     * A delta survives serialization
+     */
+    @Test
+    public void serialize() throws Exception {
+        byte[] before = page(1).getPageData();
+        byte[] after = page(1, 2).getPageData();
+        PageDelta delta = PageDelta.diff(before, after);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(bytes));
+        assertEquals(delta.serializedSize(), bytes.size());
+
+        PageDelta read = PageDelta.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertArrayEquals(after, read.apply(before, true));
+        assertArrayEquals(before, read.apply(after, false));
+    }
+
+    /**
+     * A one-tuple change is logged in a small fraction of a page image
+     */
+    @Test
+    public void smallLogRecords() throws Exception {
+        File f = File.createTempFile("deltalog", ".log");
+        f.deleteOnExit();
+        LogFile log = new LogFile(f);
+        HeapPage before = page(1, 2);
+        HeapPage after = page(1, 2, 3);
+        TransactionId tid = new TransactionId();
+
+        long start = log.logWrite(tid, before, before);
+        long end = log.logWrite(tid, before, after);
+        assertTrue(end - start < BufferPool.getPageSize() / 10);
+
+        log.setDeltaRecords(false);
+        long full = log.logWrite(tid, before, after) - end;
+        assertTrue(full > 2 * BufferPool.getPageSize());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
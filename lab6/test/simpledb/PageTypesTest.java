@@ -0,0 +1,93 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.*;
+
+import static org.junit.Assert.*;
+
+public class PageTypesTest extends SimpleDbTestBase {
+
+    private HeapPageId heapPid;
+    private BTreePageId leafPid;
+    private LogFile log;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        heapPid = new HeapPageId(hf.getId(), 0);
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 0, null, null, 0);
+        leafPid = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+        File f = File.createTempFile("pagetypes", ".log");
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    private byte[] serialize(Page p) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        log.writePageData(new DataOutputStream(bytes), p);
+        return bytes.toByteArray();
+    }
+
+    private Page deserialize(byte[] data) throws IOException {
+        return log.readPageData(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    /**
+     * Pages come back with the same class, id and data, whether their
+     * types are logged as tags or by class name
+     */
+    @Test
+    public void roundTrip() throws Exception {
+        HeapPage heap = new HeapPage(heapPid, HeapPage.createEmptyPageData());
+        heap.insertTuple(Utility.getHeapTuple(1, 2));
+        for (boolean tagged : new boolean[]{true, false}) {
+            log.setPageTags(tagged);
+            Page p = deserialize(serialize(heap));
+            assertEquals(HeapPage.class, p.getClass());
+            assertEquals(heapPid, p.getId());
+            assertArrayEquals(heap.getPageData(), p.getPageData());
+        }
+    }
+
+    /**
+     * B+ tree leaf pages are built with the key field of their file
+     */
+    @Test
+    public void btreePages() throws Exception {
+        BTreeLeafPage leaf = new BTreeLeafPage(leafPid, BTreeLeafPage.createEmptyPageData(), 0);
+        Page p = deserialize(serialize(leaf));
+        assertEquals(BTreeLeafPage.class, p.getClass());
+        assertEquals(leafPid, p.getId());
+        assertArrayEquals(leaf.getPageData(), p.getPageData());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        log.writePageId(new DataOutputStream(bytes), leafPid);
+        PageId pid = log.readPageId(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(leafPid, pid);
+    }
+
+    /**
+     * Tags take less space than class names
+     */
+    @Test
+    public void tagsAreSmaller() throws Exception {
+        HeapPage heap = new HeapPage(heapPid, HeapPage.createEmptyPageData());
+        int tagged = serialize(heap).length;
+        log.setPageTags(false);
+        int named = serialize(heap).length;
+        assertTrue(named - tagged >= "simpledb.HeapPage".length() + "simpledb.HeapPageId".length());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageTypesTest.class);
+    }
+}
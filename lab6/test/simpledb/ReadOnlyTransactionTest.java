@@ -0,0 +1,102 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadOnlyTransactionTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.getBufferPool();
+
+    Transaction t = new Transaction();
+    t.start();
+    for (int i = 0; i < 10; ++i) {
+      bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(i, 2));
+    }
+    t.commit();
+    p0 = new HeapPageId(empty.getId(), 0);
+  }
+
+  private int scan(TransactionId tid) throws Exception {
+    DbFileIterator it = empty.iterator(tid);
+    int n = 0;
+    it.open();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    it.close();
+    return n;
+  }
+
+  /**
+   * A read-only transaction writes no log records and does not force the log
+   */
+  @Test public void noLogRecords() throws Exception {
+    LogFile log = Database.getLogFile();
+    int records = log.getTotalRecords();
+    long forces = log.getForceCount();
+
+    Transaction t = new Transaction(true);
+    t.start();
+    assertEquals(10, scan(t.getId()));
+    t.commit();
+
+    assertEquals(records, log.getTotalRecords());
+    assertEquals(forces, log.getForceCount());
+  }
+
+  /**
+   * A read-only transaction may not get pages READ_WRITE or change tuples
+   */
+  @Test public void cannotWrite() throws Exception {
+    Transaction t = new Transaction(true);
+    t.start();
+    try {
+      bp.getPage(t.getId(), p0, Permissions.READ_WRITE);
+      fail("expected DbException");
+    } catch (DbException e) {
+      // expected
+    }
+    try {
+      bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(99, 2));
+      fail("expected DbException");
+    } catch (DbException e) {
+      // expected
+    }
+    assertEquals(1, empty.numPages());
+    t.commit();
+  }
+
+  /**
+   * Finishing a read-only transaction releases its shared locks
+   */
+  @Test public void releasesLocks() throws Exception {
+    Transaction t = new Transaction(true);
+    t.start();
+    bp.getPage(t.getId(), p0, Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(t.getId(), p0));
+    t.commit();
+    assertFalse(bp.holdsLock(t.getId(), p0));
+
+    TransactionId writer = new TransactionId();
+    bp.getPage(writer, p0, Permissions.READ_WRITE);
+    assertTrue(bp.holdsLock(writer, p0));
+    bp.transactionComplete(writer);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ReadOnlyTransactionTest.class);
+  }
+}
@@ -0,0 +1,138 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final Predicate<PageId> ANY = pid -> true;
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * CLOCK gives a referenced page a second chance
+     */
+    @Test
+    public void clockSecondChance() {
+        ReplacementPolicy policy = new ClockPolicy(3);
+        for (int i = 0; i < 3; i++) {
+            policy.pageAdmitted(pid(i));
+        }
+        // first sweep clears all bits, so page 0 goes
+        assertEquals(pid(0), policy.chooseVictim(ANY));
+        policy.pageRemoved(pid(0));
+        policy.pageAdmitted(pid(3));
+
+        // page 1 was referenced again after the sweep, page 2 was not
+        policy.pageAccessed(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(ANY));
+    }
+
+    /**
+     * LRU-K evicts pages referenced fewer than K times before hot pages
+     */
+    @Test
+    public void lruKPrefersColdPages() {
+        ReplacementPolicy policy = new LruKPolicy(3, 2);
+        policy.pageAdmitted(pid(0));
+        policy.pageAccessed(pid(0));
+        policy.pageAdmitted(pid(1));
+        policy.pageAdmitted(pid(2));
+        // page 0 has two references, pages 1 and 2 only one
+        assertEquals(pid(1), policy.chooseVictim(ANY));
+        policy.pageRemoved(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(ANY));
+
+        // history survives eviction: page 1 comes back with two references
+        policy.pageAdmitted(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(ANY));
+    }
+
+    /**
+     * 2Q keeps a scan from flushing pages in the main queue
+     */
+    @Test
+    public void twoQScanResistance() {
+        ReplacementPolicy policy = new TwoQPolicy(8);
+        // page 0 falls out of A1in and is promoted on its next admission
+        policy.pageAdmitted(pid(0));
+        policy.pageRemoved(pid(0));
+        policy.pageAdmitted(pid(0));
+
+        // a long scan through a full pool only ever evicts from A1in
+        int resident = 1;
+        for (int i = 1; i < 100; i++) {
+            if (resident == 8) {
+                PageId victim = policy.chooseVictim(ANY);
+                assertFalse(pid(0).equals(victim));
+                policy.pageRemoved(victim);
+                resident--;
+            }
+            policy.pageAdmitted(pid(i));
+            resident++;
+        }
+    }
+
+    /**
+     * 2Q does not promote a page that was discarded rather than evicted
+     */
+    @Test
+    public void twoQDiscardNotPromoted() {
+        ReplacementPolicy policy = new TwoQPolicy(8);
+        policy.pageAdmitted(pid(0));
+        policy.pageDiscarded(pid(0));
+        policy.pageAdmitted(pid(0));
+        policy.pageAdmitted(pid(1));
+        policy.pageAdmitted(pid(2));
+        // page 0 is back in A1in, which is over its share, and goes first
+        assertEquals(pid(0), policy.chooseVictim(ANY));
+    }
+
+    /**
+     * Policies skip pages that may not be evicted
+     */
+    @Test
+    public void respectsEvictable() {
+        for (ReplacementPolicy.Type type : ReplacementPolicy.Type.values()) {
+            ReplacementPolicy policy = type.create(2);
+            policy.pageAdmitted(pid(0));
+            policy.pageAdmitted(pid(1));
+            assertEquals(type.toString(), pid(1), policy.chooseVictim(pid -> !pid.equals(pid(0))));
+            assertNull(type.toString(), policy.chooseVictim(pid -> false));
+        }
+    }
+
+    /**
+     * BufferPool counts hits and misses
+     */
+    @Test
+    public void hitMissCounters() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        for (ReplacementPolicy.Type type : ReplacementPolicy.Type.values()) {
+            BufferPool bp = Database.resetBufferPool(2, type);
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < 4; i++) {
+                bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            }
+            bp.getPage(tid, new HeapPageId(hf.getId(), 3), Permissions.READ_ONLY);
+            assertEquals(type.toString(), 1, bp.getHitCount());
+            assertEquals(type.toString(), 4, bp.getMissCount());
+            bp.transactionComplete(tid);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,131 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+public class ScanRingTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 20;
+    private static final int BIG_PAGES = 40;
+
+    private HeapFile big;
+    private HeapFile hot;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        big = SystemTestUtil.createRandomHeapFile(2, 504 * BIG_PAGES, null, null);
+        hot = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Database.resetBufferPool(POOL_PAGES);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private int scan(DbFileIterator it) throws Exception {
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    private boolean hotPageResident(BufferPool bp) throws Exception {
+        bp.resetStats();
+        bp.getPage(tid, new HeapPageId(hot.getId(), 0), Permissions.READ_ONLY);
+        return bp.getHitCount() == 1;
+    }
+
+    /**
+     * A large scan reads through a ring and leaves the pool alone
+     */
+    @Test
+    public void largeScanUsesRing() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.getPage(tid, new HeapPageId(hot.getId(), 0), Permissions.READ_ONLY);
+
+        bp.resetStats();
+        assertEquals(504 * BIG_PAGES, scan(big.iterator(tid)));
+        assertEquals(BIG_PAGES, bp.getMissCount());
+        assertTrue(hotPageResident(bp));
+    }
+
+    /**
+     * Without rings, the same scan floods the pool
+     */
+    @Test
+    public void ringsDisabled() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.setScanRingsEnabled(false);
+        bp.getPage(tid, new HeapPageId(hot.getId(), 0), Permissions.READ_ONLY);
+
+        assertEquals(504 * BIG_PAGES, scan(big.iterator(tid)));
+        assertFalse(hotPageResident(bp));
+    }
+
+    /**
+     * Small scans still go through the pool
+     */
+    @Test
+    public void smallScanUsesPool() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        assertNull(bp.newScanRing(POOL_PAGES / BufferPool.SCAN_RING_DIVISOR));
+        assertEquals(10, scan(hot.iterator(tid)));
+        assertTrue(hotPageResident(bp));
+    }
+
+    /**
+     * A pool too small to spare a frame hands out no ring
+     */
+    @Test
+    public void tinyPoolHasNoRing() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.SCAN_RING_DIVISOR - 1);
+        assertNull(bp.newScanRing(BIG_PAGES));
+    }
+
+    /**
+     * Ring frames are recycled once the ring is full
+     */
+    @Test
+    public void ringIsBounded() throws Exception {
+        ScanRing ring = new ScanRing(4);
+        DbFileIterator it = big.iterator(tid, ring);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            assertTrue(ring.size() <= 4);
+        }
+        assertEquals(4, ring.size());
+        it.close();
+        assertEquals(0, ring.size());
+    }
+
+    /**
+     * Building table statistics does not flood the pool either
+     */
+    @Test
+    public void tableStatsUsesRing() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.getPage(tid, new HeapPageId(hot.getId(), 0), Permissions.READ_ONLY);
+        new TableStats(big.getId(), 1);
+        assertTrue(hotPageResident(bp));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ScanRingTest.class);
+    }
+}
@@ -385,6 +385,7 @@ public class TestUtil {
                 throw new RuntimeException(e);
             }
             emptyFile.deleteOnExit();
+            HeapFile.freeSpaceMapFile(emptyFile).deleteOnExit();
         }
 
         protected void setUp() throws Exception {
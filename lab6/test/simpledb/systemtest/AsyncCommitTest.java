@@ -0,0 +1,157 @@
+package simpledb.systemtest;
+
+import java.io.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test asynchronous commit: commits that return before the log is forced
+ * may be lost in a crash, but never leave a transaction half applied.
+ */
+public class AsyncCommitTest extends SimpleDbTestBase {
+    private static final int TUPLES_PER_TRANSACTION = 5;
+
+    File file;
+    HeapFile hf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = new File("asynccommit.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getLogFile().stopLogFlusher();
+        Database.getBufferPool().setStealNoForce(false);
+        file.delete();
+        HeapFile.freeSpaceMapFile(file).delete();
+    }
+
+    void insert(int first, boolean async) throws Exception {
+        Transaction t = new Transaction();
+        t.setAsyncCommit(async);
+        t.start();
+        for (int i = first; i < first + TUPLES_PER_TRANSACTION; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        t.commit();
+    }
+
+    int count() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = hf.iterator(t.getId());
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    void crash() throws Exception {
+        Database.getLogFile().stopLogFlusher();
+        Database.getBufferPool().setStealNoForce(false);
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Asynchronous commits in NO-FORCE mode do not force the log
+     */
+    @Test public void noForcePerCommit() throws Exception {
+        Database.getBufferPool().setStealNoForce(true);
+        Database.getLogFile().setFlushInterval(60000);
+        long forces = Database.getLogFile().getForceCount();
+        long async = Database.getLogFile().getAsyncCommitCount();
+        for (int i = 0; i < 20; i++) {
+            insert(i * TUPLES_PER_TRANSACTION, true);
+        }
+        assertEquals(20, Database.getLogFile().getAsyncCommitCount() - async);
+        assertTrue(Database.getLogFile().getForceCount() - forces < 20);
+        assertEquals(100, count());
+
+        // whatever survives the crash is made of whole transactions
+        crash();
+        assertEquals(0, count() % TUPLES_PER_TRANSACTION);
+    }
+
+    /**
+     * A commit lost in a crash is rolled back, although its pages were
+     * written to disk
+     */
+    @Test public void lostCommitIsRolledBack() throws Exception {
+        Database.getLogFile().setFlushInterval(60000);
+        insert(0, false);
+        insert(100, true);
+        crash();
+        assertEquals(TUPLES_PER_TRANSACTION, count());
+    }
+
+    /**
+     * The log flusher makes asynchronous commits durable
+     */
+    @Test public void flusherMakesCommitsDurable() throws Exception {
+        Database.getBufferPool().setStealNoForce(true);
+        Database.getLogFile().setFlushInterval(10);
+        for (int i = 0; i < 10; i++) {
+            insert(i * TUPLES_PER_TRANSACTION, true);
+        }
+        Thread.sleep(200);
+        crash();
+        assertEquals(10 * TUPLES_PER_TRANSACTION, count());
+    }
+
+    /**
+     * A force the log flusher fails is reported by the next commits,
+     * asynchronous or not
+     */
+    @Test public void flusherFailureFailsLaterCommits() throws Exception {
+        Database.getLogFile().setFlushInterval(10);
+        // close the log and put directories where its segment files were,
+        // so that they cannot be opened again and every force fails
+        Database.getLogFile().shutdown();
+        File[] segments = new File(".").listFiles((dir, name) -> name.matches("log\\.[0-9]+"));
+        try {
+            for (File f : segments) {
+                f.delete();
+                f.mkdir();
+            }
+            Transaction t = new Transaction();
+            t.setAsyncCommit(true);
+            t.start();
+            t.commit();
+            Thread.sleep(200);
+
+            for (boolean async : new boolean[] { true, false }) {
+                t = new Transaction();
+                t.setAsyncCommit(async);
+                t.start();
+                try {
+                    t.commit();
+                    fail("expected the flusher's failure");
+                } catch (IOException e) {
+                    assertNotNull(e.getCause());
+                }
+            }
+        } finally {
+            Database.getLogFile().stopLogFlusher();
+            for (File f : segments) {
+                f.delete();
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,71 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.*;
+
+/**
+ * Measures the latency of Transaction.commit() with synchronous and
+ * asynchronous commit, with the BufferPool in FORCE and in STEAL/NO-FORCE
+ * mode.  Run with
+ * <pre>
+ *   java -cp bin/src:bin/test:lib/* simpledb.systemtest.CommitLatencyBenchmark [commits]
+ * </pre>
+ */
+public class CommitLatencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+        System.out.println("pool\tcommit\tmean us\tp50 us\tp99 us");
+        for (boolean noForce : new boolean[]{false, true}) {
+            for (boolean async : new boolean[]{false, true}) {
+                long[] latencies = run(commits, noForce, async);
+                Arrays.sort(latencies);
+                long sum = 0;
+                for (long l : latencies) {
+                    sum += l;
+                }
+                System.out.println((noForce ? "no-force" : "force") + "\t"
+                                   + (async ? "async" : "sync") + "\t"
+                                   + sum / latencies.length / 1000 + "\t"
+                                   + latencies[latencies.length / 2] / 1000 + "\t"
+                                   + latencies[latencies.length * 99 / 100] / 1000);
+            }
+        }
+    }
+
+    // commit one-tuple transactions and return the time each commit took
+    static long[] run(int commits, boolean noForce, boolean async) throws Exception {
+        Database.reset();
+        File file = new File("commitlatency.db");
+        file.delete();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Database.getBufferPool().setStealNoForce(noForce);
+
+        long[] latencies = new long[commits];
+        for (int n = 0; n < commits; n++) {
+            Transaction t = new Transaction();
+            t.setAsyncCommit(async);
+            t.start();
+            try {
+                Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(n, 2));
+            } catch (TransactionAbortedException e) {
+                // timed out waiting for the page cleaner; try again
+                t.abort();
+                n--;
+                continue;
+            }
+            long start = System.nanoTime();
+            t.commit();
+            latencies[n] = System.nanoTime() - start;
+        }
+
+        Database.getLogFile().stopLogFlusher();
+        Database.getBufferPool().setStealNoForce(false);
+        file.delete();
+        HeapFile.freeSpaceMapFile(file).delete();
+        return latencies;
+    }
+}
@@ -0,0 +1,144 @@
+package simpledb.systemtest;
+
+import java.io.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test fuzzy checkpoints: checkpoints that leave the buffer pool alone,
+ * the dirty page table, and redo that skips pages already written.
+ */
+public class FuzzyCheckpointTest extends SimpleDbTestBase {
+    File file;
+    HeapFile hf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = new File("fuzzycheckpoint.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getLogFile().stopCheckpoints();
+        Database.getBufferPool().setStealNoForce(false);
+    }
+
+    void insert(int first, int count, boolean commit) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = first; i < first + count; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        if (commit) {
+            t.commit();
+        } else {
+            Database.getBufferPool().flushAllPages(); // steal the pages
+            t.abort();
+        }
+    }
+
+    int count() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = hf.iterator(t.getId());
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    void crash() throws Exception {
+        Database.getLogFile().stopCheckpoints();
+        Database.getBufferPool().setStealNoForce(false);
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * A checkpoint does not write committed pages; they are recorded in
+     * the dirty page table instead
+     */
+    @Test public void checkpointLeavesPoolAlone() throws Exception {
+        Database.getBufferPool().setStealNoForce(true);
+        insert(0, 10, true);
+        int pending = Database.getBufferPool().getNumPendingWrites();
+        assertTrue(pending > 0);
+
+        Database.getLogFile().logCheckpoint();
+        assertEquals(pending, Database.getBufferPool().getNumPendingWrites());
+        assertEquals(pending, Database.getLogFile().getNumDirtyPages());
+
+        crash();
+        assertEquals(10, count());
+    }
+
+    /**
+     * Pages written before a checkpoint are not redone
+     */
+    @Test public void redoSkipsWrittenPages() throws Exception {
+        insert(0, 10, true);
+        insert(10, 10, true);
+        assertEquals(0, Database.getLogFile().getNumDirtyPages());
+
+        crash();
+        assertTrue(Database.getLogFile().getRedoCount() > 0);
+        assertEquals(20, count());
+
+        insert(20, 10, true);
+        Database.getLogFile().logCheckpoint();
+        crash();
+        assertEquals(0, Database.getLogFile().getRedoCount());
+        assertEquals(30, count());
+    }
+
+    /**
+     * Redo starts before the checkpoint for pages that were dirty when it
+     * was taken, and an abort in that range is undone again
+     */
+    @Test public void redoFromOldestDirtyPage() throws Exception {
+        Database.getBufferPool().setStealNoForce(true);
+        insert(0, 10, true);
+        Database.getLogFile().logCheckpoint();
+        insert(10, 10, false);
+        insert(20, 10, true);
+
+        crash();
+        assertTrue(Database.getLogFile().getRedoCount() > 0);
+        assertEquals(20, count());
+    }
+
+    /**
+     * Background checkpoints run while transactions commit
+     */
+    @Test public void backgroundCheckpoints() throws Exception {
+        Database.getBufferPool().setStealNoForce(true);
+        Database.getLogFile().startCheckpoints(20);
+        long deadline = System.currentTimeMillis() + 5000;
+        int n = 0;
+        while (Database.getLogFile().getCheckpointCount() < 3
+               && System.currentTimeMillis() < deadline) {
+            insert(n, 5, true);
+            n += 5;
+            Thread.sleep(10);
+        }
+        assertTrue(Database.getLogFile().getCheckpointCount() >= 3);
+
+        crash();
+        assertEquals(n, count());
+    }
+}
@@ -0,0 +1,153 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test group commit: concurrent commits share forces of the log and are
+ * still durable.
+ */
+public class GroupCommitTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int COMMITS = 10;
+
+    File[] files;
+    HeapFile[] tables;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        // one table per thread, so that writers never wait for page locks
+        files = new File[THREADS];
+        tables = new HeapFile[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            files[i] = new File("groupcommit" + i + ".db");
+            files[i].delete();
+            tables[i] = Utility.createEmptyHeapFile(files[i].getAbsolutePath(), 2);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getLogFile().setGroupCommit(false);
+        for (File f : files) {
+            f.delete();
+            HeapFile.freeSpaceMapFile(f).delete();
+        }
+    }
+
+    void commitAll() throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final HeapFile hf = tables[i];
+            Thread th = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int c = 0; c < COMMITS; c++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(c, 2));
+                            t.commit();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads.add(th);
+            th.start();
+        }
+        for (Thread th : threads) {
+            th.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    int count(HeapFile hf) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = hf.iterator(t.getId());
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    /**
+     * Without group commit, every commit forces the log itself
+     */
+    @Test public void forcePerCommit() throws Exception {
+        long before = Database.getLogFile().getForceCount();
+        commitAll();
+        assertTrue(Database.getLogFile().getForceCount() - before >= THREADS * COMMITS);
+    }
+
+    /**
+     * With group commit, concurrent commits share forces
+     */
+    @Test public void commitsShareForces() throws Exception {
+        Database.getLogFile().setGroupCommit(true);
+        Database.getLogFile().setGroupCommitWindow(10000, THREADS);
+        long before = Database.getLogFile().getForceCount();
+        commitAll();
+        long forces = Database.getLogFile().getForceCount() - before;
+        assertTrue("forces: " + forces, forces < THREADS * COMMITS);
+
+        for (HeapFile hf : tables) {
+            assertEquals(COMMITS, count(hf));
+        }
+    }
+
+    /**
+     * A force before a page is written does not wait for a group to
+     * gather when no commit is waiting
+     */
+    @Test public void pageForceSkipsWindow() throws Exception {
+        Database.getLogFile().setGroupCommit(true);
+        // long enough to notice, with a group size that is never reached
+        Database.getLogFile().setGroupCommitWindow(2000000, THREADS);
+        Transaction t = new Transaction();
+        t.start();
+        Page p = tables[0].readPage(new HeapPageId(tables[0].getId(), 0));
+        long end = Database.getLogFile().logWrite(t.getId(), p, p);
+
+        long start = System.nanoTime();
+        Database.getLogFile().forceTo(end);
+        assertTrue(System.nanoTime() - start < 1000000000L);
+        t.commit();
+    }
+
+    /**
+     * Group commits survive a crash
+     */
+    @Test public void groupCommitsAreDurable() throws Exception {
+        Database.getLogFile().setGroupCommit(true);
+        commitAll();
+
+        Database.reset();
+        for (int i = 0; i < THREADS; i++) {
+            tables[i] = Utility.openHeapFile(2, files[i]);
+        }
+        Database.getLogFile().recover();
+        for (HeapFile hf : tables) {
+            assertEquals(COMMITS, count(hf));
+        }
+    }
+}
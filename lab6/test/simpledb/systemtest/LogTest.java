@@ -338,6 +338,34 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestOpenCrashCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // insert but no commit
+        // crash
+        // checkpoint: recovery rolled the loser back, so it is not live
+        // crash again
+        // data should not be there
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 10, 0);
+        Database.getBufferPool().flushAllPages(); // XXX something to UNDO
+
+        crash();
+        Database.getLogFile().logCheckpoint();
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 10, false);
+        t.commit();
+    }
+
     @Test public void TestOpenCommitOpenCrash()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -427,6 +455,52 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestOpenCheckpointAbort()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts but does not commit
+        // checkpoint (truncates the log)
+        // T2 inserts and commits
+        // T1 inserts again and aborts
+        // only T2 data should be there, before and after a crash;
+        // T1's rollback follows its records across the checkpoint
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 30, 0);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+        Database.getLogFile().logCheckpoint();
+
+        doInsert(hf2, 31, 32);
+
+        insertRow(hf1, t1, 33, 0);
+        abort(t1);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 30, false);
+        look(hf1, t, 33, false);
+        look(hf2, t, 31, true);
+        look(hf2, t, 32, true);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 30, false);
+        look(hf1, t, 33, false);
+        look(hf2, t, 31, true);
+        look(hf2, t, 32, true);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
@@ -0,0 +1,226 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test optimistic transactions: lock-free reads, buffered writes, and
+ * validation at commit against transactions that changed what they read.
+ */
+public class OptimisticTest extends SimpleDbTestBase {
+    File file;
+    HeapFile hf;
+    BufferPool bp;
+    HeapPageId pid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = new File("optimistic.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        bp = Database.getBufferPool();
+        pid = new HeapPageId(hf.getId(), 0);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 1);
+        t.commit();
+    }
+
+    void insert(Transaction t, int v) throws Exception {
+        bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(v, 2));
+    }
+
+    // the first fields of the tuples t sees
+    Set<Integer> values(Transaction t) throws Exception {
+        Set<Integer> values = new HashSet<Integer>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        return values;
+    }
+
+    Set<Integer> committedValues() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Set<Integer> values = values(t);
+        t.commit();
+        return values;
+    }
+
+    Transaction optimistic() {
+        Transaction t = new Transaction();
+        t.setOptimistic(true);
+        t.start();
+        return t;
+    }
+
+    static Set<Integer> set(Integer... vs) {
+        return new HashSet<Integer>(Arrays.asList(vs));
+    }
+
+    /**
+     * Reads take no locks and writes are buffered until validation
+     */
+    @Test public void writesApplyAtValidation() throws Exception {
+        Transaction o = optimistic();
+        assertEquals(set(1), values(o));
+        insert(o, 2);
+        assertFalse(bp.holdsLock(o.getId(), pid));
+        assertEquals(set(1), values(o));
+
+        // would wait for a shared lock of o
+        Transaction w = new Transaction();
+        w.start();
+        bp.getPage(w.getId(), pid, Permissions.READ_WRITE);
+        w.commit();
+
+        o.validate();
+        assertTrue(bp.holdsLock(o.getId(), pid));
+        o.commit();
+        assertEquals(set(1, 2), committedValues());
+        assertEquals(0, bp.getValidationFailureCount());
+    }
+
+    /**
+     * A page changed by a commit after the transaction read it fails
+     * validation, and the buffered writes are dropped
+     */
+    @Test public void changedPageFailsValidation() throws Exception {
+        Transaction o = optimistic();
+        assertEquals(set(1), values(o));
+        insert(o, 2);
+
+        Transaction w = new Transaction();
+        w.start();
+        insert(w, 3);
+        w.commit();
+
+        try {
+            o.validate();
+            fail("expected a conflict");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(1, bp.getValidationFailureCount());
+        assertFalse(bp.holdsLock(o.getId(), pid));
+        assertEquals(set(1, 3), committedValues());
+    }
+
+    /**
+     * A page another transaction is changing fails validation without
+     * waiting for it
+     */
+    @Test public void runningWriterFailsValidation() throws Exception {
+        Transaction o = optimistic();
+        assertEquals(set(1), values(o));
+
+        Transaction w = new Transaction();
+        w.start();
+        insert(w, 3);
+        try {
+            o.commit();
+            fail("expected a conflict");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof TransactionAbortedException);
+        }
+        w.commit();
+        assertEquals(set(1, 3), committedValues());
+    }
+
+    /**
+     * A writer that aborts leaves the page the transaction read as it was,
+     * unless its changes went to disk before the abort
+     */
+    @Test public void abortedWriterPassesValidation() throws Exception {
+        Transaction o = optimistic();
+        assertEquals(set(1), values(o));
+        Transaction w = new Transaction();
+        w.start();
+        insert(w, 3);
+        w.abort();
+        o.commit();
+        assertEquals(0, bp.getValidationFailureCount());
+
+        o = optimistic();
+        assertEquals(set(1), values(o));
+        w = new Transaction();
+        w.start();
+        insert(w, 3);
+        bp.flushAllPages();
+        w.abort();
+        try {
+            o.validate();
+            fail("expected a conflict");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(set(1), committedValues());
+    }
+
+    /**
+     * Optimistic transactions that write different tables both commit
+     */
+    @Test public void disjointWritesCommit() throws Exception {
+        HeapFile other = Utility.createEmptyHeapFile(new File("optimistic2.db").getAbsolutePath(), 2);
+        Transaction o1 = optimistic();
+        Transaction o2 = optimistic();
+        assertEquals(set(1), values(o1));
+        insert(o1, 2);
+        bp.insertTuple(o2.getId(), other.getId(), Utility.getHeapTuple(5, 2));
+        o2.commit();
+        o1.commit();
+        assertEquals(set(1, 2), committedValues());
+        assertEquals(0, bp.getValidationFailureCount());
+    }
+
+    /**
+     * A read-only optimistic transaction validates what it read
+     */
+    @Test public void readOnlyValidates() throws Exception {
+        Transaction o = new Transaction(true);
+        o.setOptimistic(true);
+        o.start();
+        assertEquals(set(1), values(o));
+        o.commit();
+
+        o = new Transaction(true);
+        o.setOptimistic(true);
+        o.start();
+        assertEquals(set(1), values(o));
+        Transaction w = new Transaction();
+        w.start();
+        insert(w, 2);
+        w.commit();
+        try {
+            o.validate();
+            fail("expected a conflict");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Tables with row locking cannot be read optimistically
+     */
+    @Test(expected = DbException.class)
+    public void rowLockingRejected() throws Exception {
+        hf.setRowLocking(true);
+        values(optimistic());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OptimisticTest.class);
+    }
+}
@@ -0,0 +1,105 @@
+package simpledb.systemtest;
+
+import java.io.*;
+
+import simpledb.*;
+
+/**
+ * Compares rollback and recovery time, and log size, between page types
+ * logged as PageTypes tags and page types logged by class name (built
+ * through reflection.)  Run with
+ * <pre>
+ *   java -cp bin/src:bin/test:lib/* simpledb.systemtest.PageTypesBenchmark [transactions]
+ * </pre>
+ */
+public class PageTypesBenchmark {
+    private static final int TABLES = 8;
+    private static final int TUPLES_PER_TRANSACTION = 20;
+    private static final int ROLLBACK_TUPLES = 2000;
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+        System.out.println("types\tlog bytes\trollback ms\trecovery ms");
+        for (int run = 0; run < RUNS; run++) {
+            for (boolean tagged : new boolean[]{true, false}) {
+                long rollback = rollback(tagged);
+
+                File[] files = buildLog(size, tagged);
+                long logBytes = RecoveryBenchmark.logBytes();
+                long recovery = RecoveryBenchmark.recover(files, 1);
+                for (File f : files) {
+                    f.delete();
+                    HeapFile.freeSpaceMapFile(f).delete();
+                }
+                System.out.println((tagged ? "tags" : "names") + "\t" + logBytes + "\t"
+                                   + rollback + "\t" + recovery);
+            }
+        }
+    }
+
+    // time the abort of a transaction that logged every page it changed
+    // many times
+    static long rollback(boolean tagged) throws Exception {
+        Database.reset();
+        Database.getLogFile().setPageTags(tagged);
+        File file = new File("pagetypesbench.db");
+        file.delete();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < ROLLBACK_TUPLES; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+            if (i % 10 == 0) {
+                Database.getBufferPool().flushPages(t.getId());
+            }
+        }
+        Database.getBufferPool().flushPages(t.getId());
+
+        long start = System.nanoTime();
+        t.abort();
+        long ms = (System.nanoTime() - start) / 1000000;
+        file.delete();
+        HeapFile.freeSpaceMapFile(file).delete();
+        return ms;
+    }
+
+    // commit size transactions round-robin across the tables and leave
+    // their pages unwritten, as if the database crashed
+    static File[] buildLog(int size, boolean tagged) throws Exception {
+        Database.reset();
+        Database.getLogFile().setPageTags(tagged);
+
+        File[] files = new File[TABLES];
+        HeapFile[] tables = new HeapFile[TABLES];
+        for (int i = 0; i < TABLES; i++) {
+            files[i] = new File("pagetypesbench" + i + ".db");
+            files[i].delete();
+            tables[i] = Utility.createEmptyHeapFile(files[i].getAbsolutePath(), 2);
+        }
+
+        Database.getBufferPool().setStealNoForce(true);
+        for (int n = 0; n < size; n++) {
+            HeapFile hf = tables[n % TABLES];
+            while (true) {
+                Transaction t = new Transaction();
+                t.start();
+                try {
+                    for (int i = 0; i < TUPLES_PER_TRANSACTION; i++) {
+                        Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                                Utility.getHeapTuple(n * TUPLES_PER_TRANSACTION + i, 2));
+                    }
+                    t.commit();
+                    break;
+                } catch (TransactionAbortedException e) {
+                    // timed out waiting for the page cleaner; try again
+                    t.abort();
+                }
+            }
+        }
+        Database.getBufferPool().setStealNoForce(false);
+        return files;
+    }
+}
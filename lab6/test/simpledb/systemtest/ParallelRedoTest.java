@@ -0,0 +1,142 @@
+package simpledb.systemtest;
+
+import java.io.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that recovery redoes pages on several threads and ends up in the
+ * same state as redoing them one at a time.
+ */
+public class ParallelRedoTest extends SimpleDbTestBase {
+    private static final int TABLES = 6;
+
+    File[] files;
+    HeapFile[] tables;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        files = new File[TABLES];
+        tables = new HeapFile[TABLES];
+        for (int i = 0; i < TABLES; i++) {
+            files[i] = new File("parallelredo" + i + ".db");
+            files[i].delete();
+            tables[i] = Utility.createEmptyHeapFile(files[i].getAbsolutePath(), 2);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().setStealNoForce(false);
+        for (File f : files) {
+            f.delete();
+            HeapFile.freeSpaceMapFile(f).delete();
+        }
+    }
+
+    void insert(HeapFile hf, int first, int count, boolean commit) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = first; i < first + count; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        if (commit) {
+            t.commit();
+        } else {
+            Database.getBufferPool().flushAllPages(); // steal the pages
+            t.abort();
+        }
+    }
+
+    int count(HeapFile hf) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = hf.iterator(t.getId());
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    void crash(int redoThreads) throws Exception {
+        Database.getBufferPool().setStealNoForce(false);
+        Database.reset();
+        for (int i = 0; i < TABLES; i++) {
+            tables[i] = Utility.openHeapFile(2, files[i]);
+        }
+        Database.getLogFile().setRedoThreads(redoThreads);
+        Database.getLogFile().recover();
+    }
+
+    // commits on every table, an aborted transaction on every other table,
+    // and a loser left running on the first one
+    void workload() throws Exception {
+        Database.getBufferPool().setStealNoForce(true);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < TABLES; i++) {
+                insert(tables[i], round * 100, 20, true);
+                if (i % 2 == 1) {
+                    insert(tables[i], round * 100 + 50, 5, false);
+                }
+            }
+        }
+        Transaction loser = new Transaction();
+        loser.start();
+        Database.getBufferPool().insertTuple(loser.getId(), tables[0].getId(), Utility.getHeapTuple(999, 2));
+        Database.getBufferPool().flushAllPages();
+    }
+
+    /**
+     * Parallel redo recovers committed work and undoes aborts and losers
+     */
+    @Test public void parallelRedo() throws Exception {
+        workload();
+        crash(4);
+        assertTrue(Database.getLogFile().getRedoCount() > 0);
+        for (HeapFile hf : tables) {
+            assertEquals(60, count(hf));
+        }
+    }
+
+    /**
+     * Recovering the same log with one thread or several gives the same pages
+     */
+    @Test public void sameAsSequential() throws Exception {
+        workload();
+        crash(1);
+        long redone = Database.getLogFile().getRedoCount();
+        byte[][] sequential = new byte[TABLES][];
+        for (int i = 0; i < TABLES; i++) {
+            sequential[i] = readFile(files[i]);
+        }
+
+        crash(4);
+        assertEquals(redone, Database.getLogFile().getRedoCount());
+        for (int i = 0; i < TABLES; i++) {
+            assertArrayEquals(sequential[i], readFile(files[i]));
+        }
+    }
+
+    static byte[] readFile(File f) throws IOException {
+        byte[] data = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb.systemtest;
+
+import java.io.*;
+
+import simpledb.*;
+
+/**
+ * Measures how long recovery takes against the size of the log, redoing
+ * pages on one thread and on all cores.  Run with
+ * <pre>
+ *   java -cp bin/src:bin/test:lib/* simpledb.systemtest.RecoveryBenchmark [tables] [sizes...]
+ * </pre>
+ * where each size is the number of committed transactions in the log.
+ */
+public class RecoveryBenchmark {
+    private static final int TUPLES_PER_TRANSACTION = 20;
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int numTables = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int[] sizes = {100, 400, 1600};
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("transactions\tlog bytes\tredone\t1 thread ms\t" + cores + " threads ms");
+        for (int size : sizes) {
+            File[] files = buildLog(numTables, size);
+            long logBytes = logBytes();
+
+            long sequential = Long.MAX_VALUE;
+            long parallel = Long.MAX_VALUE;
+            long redone = 0;
+            // no checkpoint is taken and nothing is appended, so the same
+            // log can be recovered again and again
+            for (int run = 0; run < RUNS; run++) {
+                sequential = Math.min(sequential, recover(files, 1));
+                parallel = Math.min(parallel, recover(files, cores));
+                redone = Database.getLogFile().getRedoCount();
+            }
+            System.out.println(size + "\t" + logBytes + "\t" + redone + "\t"
+                               + sequential + "\t" + parallel);
+
+            for (File f : files) {
+                f.delete();
+                HeapFile.freeSpaceMapFile(f).delete();
+            }
+        }
+    }
+
+    // commit size transactions round-robin across the tables and leave
+    // their pages unwritten, as if the database crashed
+    static File[] buildLog(int numTables, int size) throws Exception {
+        // the first append throws away the previous log
+        Database.reset();
+
+        File[] files = new File[numTables];
+        HeapFile[] tables = new HeapFile[numTables];
+        for (int i = 0; i < numTables; i++) {
+            files[i] = new File("recoverybench" + i + ".db");
+            files[i].delete();
+            tables[i] = Utility.createEmptyHeapFile(files[i].getAbsolutePath(), 2);
+        }
+
+        Database.getBufferPool().setStealNoForce(true);
+        for (int n = 0; n < size; n++) {
+            HeapFile hf = tables[n % numTables];
+            while (true) {
+                Transaction t = new Transaction();
+                t.start();
+                try {
+                    for (int i = 0; i < TUPLES_PER_TRANSACTION; i++) {
+                        Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                                Utility.getHeapTuple(n * TUPLES_PER_TRANSACTION + i, 2));
+                    }
+                    t.commit();
+                    break;
+                } catch (TransactionAbortedException e) {
+                    // timed out waiting for the page cleaner; try again
+                    t.abort();
+                }
+            }
+        }
+        Database.getBufferPool().setStealNoForce(false);
+        return files;
+    }
+
+    // size of the log's segment files
+    static long logBytes() {
+        long bytes = 0;
+        File[] segments = new File(".").listFiles((dir, name) -> name.startsWith("log."));
+        for (File f : segments) {
+            bytes += f.length();
+        }
+        return bytes;
+    }
+
+    // reopen the tables on an empty buffer pool and time recovery
+    static long recover(File[] files, int redoThreads) throws Exception {
+        Database.reset();
+        for (File f : files) {
+            Utility.openHeapFile(2, f);
+        }
+        Database.getLogFile().setRedoThreads(redoThreads);
+        long start = System.nanoTime();
+        Database.getLogFile().recover();
+        return (System.nanoTime() - start) / 1000000;
+    }
+}
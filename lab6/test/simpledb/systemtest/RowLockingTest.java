@@ -0,0 +1,188 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test row locking on HeapFiles: transactions changing different rows of
+ * one page, aborts that undo only their own rows, and recovery of pages
+ * that hold rows of several transactions.
+ */
+public class RowLockingTest extends SimpleDbTestBase {
+    File file;
+    HeapFile hf;
+    BufferPool bp;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = new File("rowlocking.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        hf.setRowLocking(true);
+        bp = Database.getBufferPool();
+    }
+
+    Tuple insert(Transaction t, int v) throws Exception {
+        Tuple tup = Utility.getHeapTuple(v, 2);
+        bp.insertTuple(t.getId(), hf.getId(), tup);
+        return tup;
+    }
+
+    // the first fields of the tuples t sees
+    Set<Integer> values(Transaction t) throws Exception {
+        Set<Integer> values = new HashSet<Integer>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        return values;
+    }
+
+    Set<Integer> committedValues() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Set<Integer> values = values(t);
+        t.commit();
+        return values;
+    }
+
+    void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        hf.setRowLocking(true);
+        bp = Database.getBufferPool();
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Two transactions insert into the same page without waiting for
+     * each other
+     */
+    @Test public void writersShareAPage() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        Tuple a = insert(t1, 1);
+        Tuple b = insert(t2, 2);
+        assertEquals(a.getRecordId().getPageId(), b.getRecordId().getPageId());
+        assertFalse(a.getRecordId().equals(b.getRecordId()));
+        assertTrue(bp.holdsTupleLock(t1.getId(), a.getRecordId()));
+        assertTrue(bp.holdsTupleLock(t2.getId(), b.getRecordId()));
+        // a scan waits for rows others have not committed
+        t2.commit();
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), values(t1));
+        t1.commit();
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), committedValues());
+    }
+
+    /**
+     * An abort undoes the aborting transaction's rows and leaves the
+     * other rows of the page alone
+     */
+    @Test public void abortUndoesOwnRows() throws Exception {
+        Transaction t0 = new Transaction();
+        t0.start();
+        Tuple old = insert(t0, 0);
+        t0.commit();
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t1, 1);
+        insert(t2, 2);
+        bp.deleteTuple(t1.getId(), old);
+        t1.abort();
+        t2.commit();
+        assertEquals(new HashSet<Integer>(Arrays.asList(0, 2)), committedValues());
+
+        crash();
+        assertEquals(new HashSet<Integer>(Arrays.asList(0, 2)), committedValues());
+    }
+
+    /**
+     * A deleted row stays locked: others cannot read it or reuse its
+     * slot, but can change other rows of the page
+     */
+    @Test public void deleteLocksRow() throws Exception {
+        Transaction t0 = new Transaction();
+        t0.start();
+        Tuple a = insert(t0, 1);
+        Tuple b = insert(t0, 2);
+        t0.commit();
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        RecordId rid = a.getRecordId();
+        bp.deleteTuple(t1.getId(), a);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        assertFalse(bp.tryLockTuple(t2.getId(), rid, Permissions.READ_ONLY));
+        Tuple c = insert(t2, 3);
+        assertFalse(rid.equals(c.getRecordId()));
+        bp.deleteTuple(t2.getId(), b);
+        t2.commit();
+
+        t1.commit();
+        assertEquals(new HashSet<Integer>(Arrays.asList(3)), committedValues());
+    }
+
+    /**
+     * A page written with a running transaction's row on it (here by
+     * another transaction's commit) loses that row in recovery
+     */
+    @Test public void recoveryUndoesUncommittedRows() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t1, 1);
+        insert(t2, 2);
+        t2.commit();
+
+        // the page is on disk with both rows
+        HeapPage onDisk = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(onDisk.getNumEmptySlots() + 2, emptySlots());
+
+        crash();
+        assertEquals(new HashSet<Integer>(Arrays.asList(2)), committedValues());
+    }
+
+    // the number of slots of an empty page
+    int emptySlots() throws Exception {
+        return new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData()).getNumEmptySlots();
+    }
+
+    /**
+     * Committed rows are redone in recovery when the page was not written
+     */
+    @Test public void recoveryRedoesCommittedRows() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        insert(t1, 2);
+        t1.commit();
+        // lose the page written by the commit
+        hf.writePage(new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData()));
+
+        crash();
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), committedValues());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RowLockingTest.class);
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb.systemtest;
+
+import java.io.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the segmented log: records spread over segments, and truncation
+ * deletes whole segments that no transaction or page still needs.
+ */
+public class SegmentedLogTest extends SimpleDbTestBase {
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    File file1, file2;
+    HeapFile hf1, hf2;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file1 = new File("segmentedlog1.db");
+        file2 = new File("segmentedlog2.db");
+        file1.delete();
+        file2.delete();
+        hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
+        hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
+        Database.getLogFile().setSegmentSize(SEGMENT_SIZE);
+        // full page images fill segments quickly
+        Database.getLogFile().setDeltaRecords(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().setStealNoForce(false);
+        file1.delete();
+        HeapFile.freeSpaceMapFile(file1).delete();
+        file2.delete();
+        HeapFile.freeSpaceMapFile(file2).delete();
+    }
+
+    void insert(HeapFile hf, int first, int count) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = first; i < first + count; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        t.commit();
+    }
+
+    int count(HeapFile hf) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = hf.iterator(t.getId());
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    void crash() throws Exception {
+        Database.getBufferPool().setStealNoForce(false);
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * A checkpoint with nothing left to redo deletes all but the last segment
+     */
+    @Test public void checkpointDeletesSegments() throws Exception {
+        for (int i = 0; i < 40; i++) {
+            insert(hf1, i * 5, 5);
+        }
+        int before = Database.getLogFile().getNumSegments();
+        assertTrue(before > 2);
+
+        Database.getLogFile().logCheckpoint();
+        assertEquals(1, Database.getLogFile().getNumSegments());
+
+        insert(hf1, 1000, 5);
+        crash();
+        assertEquals(205, count(hf1));
+    }
+
+    /**
+     * Segments holding records of a running transaction or of pages not
+     * yet written survive truncation, and recovery reads across them
+     */
+    @Test public void truncationKeepsLiveRecords() throws Exception {
+        Database.getBufferPool().setStealNoForce(true);
+        insert(hf2, 0, 10); // leaves its pages unwritten
+        Transaction loser = new Transaction();
+        loser.start();
+        Database.getBufferPool().insertTuple(loser.getId(), hf1.getId(), Utility.getHeapTuple(999, 2));
+        for (int i = 0; i < 40; i++) {
+            insert(hf2, 100 + i * 5, 5);
+        }
+        Database.getBufferPool().flushAllPages();
+        assertTrue(Database.getLogFile().getNumSegments() > 2);
+
+        Database.getLogFile().logCheckpoint();
+        // the loser's first record is in the first segment
+        assertTrue(Database.getLogFile().getNumSegments() > 2);
+
+        crash();
+        assertEquals(0, count(hf1));
+        assertEquals(210, count(hf2));
+    }
+
+    /**
+     * An aborted transaction rolls back through records in earlier segments
+     */
+    @Test public void abortAcrossSegments() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 300; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf1.getId(), Utility.getHeapTuple(i, 2));
+            if (i % 20 == 0) {
+                Database.getBufferPool().flushAllPages(); // log the pages
+            }
+        }
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        assertTrue(Database.getLogFile().getNumSegments() > 1);
+        t.abort();
+        assertEquals(0, count(hf1));
+
+        crash();
+        assertEquals(0, count(hf1));
+    }
+}
@@ -0,0 +1,220 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test snapshot transactions in multi-version mode: they read what was
+ * committed when they started, take no locks, and keep old page versions
+ * only while they run.
+ */
+public class SnapshotReadTest extends SimpleDbTestBase {
+    File file;
+    HeapFile hf;
+    BufferPool bp;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = new File("snapshotread.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        bp = Database.getBufferPool();
+        bp.setMultiVersion(true);
+    }
+
+    void insert(Transaction t, int v) throws Exception {
+        bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(v, 2));
+    }
+
+    void commitValues(int... vs) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int v : vs) {
+            insert(t, v);
+        }
+        t.commit();
+    }
+
+    // the first fields of the tuples t sees
+    Set<Integer> values(Transaction t) throws Exception {
+        Set<Integer> values = new HashSet<Integer>();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        return values;
+    }
+
+    Transaction snapshot() {
+        Transaction t = new Transaction(true);
+        t.setSnapshot(true);
+        t.start();
+        return t;
+    }
+
+    static Set<Integer> set(Integer... vs) {
+        return new HashSet<Integer>(Arrays.asList(vs));
+    }
+
+    /**
+     * A snapshot does not lock the pages it reads, and sees neither
+     * uncommitted changes nor commits made after it started
+     */
+    @Test public void snapshotDoesNotBlockWriters() throws Exception {
+        commitValues(1, 2);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+
+        Transaction s1 = snapshot();
+        assertEquals(set(1, 2), values(s1));
+        assertFalse(bp.holdsLock(s1.getId(), pid));
+
+        // would wait for a shared lock of s1
+        Transaction w = new Transaction();
+        w.start();
+        insert(w, 3);
+        assertTrue(bp.holdsLock(w.getId(), pid));
+        assertEquals(set(1, 2), values(s1));
+
+        w.commit();
+        assertEquals(set(1, 2), values(s1));
+        Transaction s2 = snapshot();
+        assertEquals(set(1, 2, 3), values(s2));
+
+        s1.commit();
+        s2.commit();
+        assertEquals(0, bp.getNumPageVersions());
+    }
+
+    /**
+     * Old versions are kept while a snapshot that may read them runs
+     */
+    @Test public void versionsArePruned() throws Exception {
+        commitValues(1);
+        // no snapshot runs: nothing to keep
+        commitValues(2);
+        assertEquals(0, bp.getNumPageVersions());
+
+        Transaction s1 = snapshot();
+        commitValues(3);
+        commitValues(4);
+        assertEquals(2, bp.getNumPageVersions());
+        assertEquals(set(1, 2), values(s1));
+        s1.commit();
+        assertEquals(0, bp.getNumPageVersions());
+    }
+
+    /**
+     * A running writer's page that is on disk, but no longer in the pool,
+     * is read as it was committed
+     */
+    @Test public void writtenPagesStayInvisible() throws Exception {
+        commitValues(1);
+        Transaction s1 = snapshot();
+        Transaction w = new Transaction();
+        w.start();
+        insert(w, 2);
+        bp.flushAllPages();
+        bp.discardPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(set(1), values(s1));
+
+        Transaction s2 = snapshot();
+        assertEquals(set(1), values(s2));
+        w.abort();
+        assertEquals(set(1), values(s1));
+        s1.commit();
+        s2.commit();
+        assertEquals(set(1), values(snapshot()));
+    }
+
+    /**
+     * On a table with row locking, a snapshot sees the rows committed
+     * before it started, while other transactions change the same page
+     */
+    @Test public void rowLockedTable() throws Exception {
+        hf.setRowLocking(true);
+        commitValues(1, 2);
+        Tuple two = null;
+        Transaction r = new Transaction();
+        r.start();
+        DbFileIterator it = hf.iterator(r.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(0)).getValue() == 2) {
+                two = t;
+            }
+        }
+        it.close();
+        r.commit();
+
+        Transaction s1 = snapshot();
+        Transaction w1 = new Transaction();
+        w1.start();
+        Transaction w2 = new Transaction();
+        w2.start();
+        insert(w1, 3);
+        bp.deleteTuple(w1.getId(), two);
+        insert(w2, 4);
+        assertEquals(set(1, 2), values(s1));
+
+        w2.commit();
+        assertEquals(set(1, 2), values(s1));
+        Transaction s2 = snapshot();
+        assertEquals(set(1, 2, 4), values(s2));
+
+        w1.commit();
+        assertEquals(set(1, 2), values(s1));
+        assertEquals(set(1, 2, 4), values(s2));
+        assertEquals(set(1, 3, 4), values(snapshot()));
+        s1.commit();
+        s2.commit();
+    }
+
+    /**
+     * A snapshot scan of a B+ tree is unaffected by inserts that split
+     * its pages
+     */
+    @Test public void bTreeSnapshot() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 1000, null, tuples, 0);
+        bp = Database.getBufferPool();
+        bp.setMultiVersion(true);
+
+        Transaction s1 = snapshot();
+        Transaction w = new Transaction();
+        w.start();
+        for (int i = 0; i < 1000; i++) {
+            bp.insertTuple(w.getId(), bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+        }
+        w.commit();
+        SystemTestUtil.matchTuples(bf, s1.getId(), tuples);
+        s1.commit();
+
+        Transaction s2 = snapshot();
+        int count = 0;
+        DbFileIterator it = bf.iterator(s2.getId());
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        s2.commit();
+        assertEquals(2000, count);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+}
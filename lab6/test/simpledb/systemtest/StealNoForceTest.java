@@ -0,0 +1,179 @@
+package simpledb.systemtest;
+
+import java.io.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test STEAL/NO-FORCE buffer management: transactions larger than the
+ * buffer pool, commits that only force the log, aborts and recovery.
+ */
+public class StealNoForceTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 4;
+    private static final int TUPLES_PER_PAGE = 504;
+
+    File file;
+    HeapFile hf;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = new File("stealnoforce.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Database.resetBufferPool(POOL_PAGES).setStealNoForce(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().setStealNoForce(false);
+    }
+
+    void insert(Transaction t, int first, int count) throws Exception {
+        for (int i = first; i < first + count; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+    }
+
+    int count(HeapFile f) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = f.iterator(t.getId());
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    void crash() throws Exception {
+        Database.getBufferPool().setStealNoForce(false);
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * A transaction may dirty more pages than the pool holds
+     */
+    @Test public void transactionLargerThanPool() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, TUPLES_PER_PAGE * (POOL_PAGES + 2));
+        t.commit();
+
+        assertEquals(TUPLES_PER_PAGE * (POOL_PAGES + 2), count(hf));
+    }
+
+    /**
+     * Commit forces the log but leaves the pages to be written later
+     */
+    @Test public void commitDoesNotWritePages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 10);
+        t.commit();
+
+        assertTrue(Database.getBufferPool().getNumPendingWrites() > 0);
+        HeapPage onDisk = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(TUPLES_PER_PAGE, onDisk.getNumEmptySlots());
+
+        crash();
+        assertEquals(10, count(hf));
+    }
+
+    /**
+     * The page cleaner writes committed pages in the background
+     */
+    @Test public void cleanerWritesPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 10);
+        t.commit();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Database.getBufferPool().getNumPendingWrites() > 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(BufferPool.CLEANER_INTERVAL_MS);
+        }
+        assertEquals(0, Database.getBufferPool().getNumPendingWrites());
+        HeapPage onDisk = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(TUPLES_PER_PAGE - 10, onDisk.getNumEmptySlots());
+    }
+
+    /**
+     * A write-back the page cleaner fails is reported by flushAllPages
+     */
+    @Test public void cleanerFailureReported() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 10);
+        // the data file cannot be opened while a directory is in its place
+        file.delete();
+        file.mkdir();
+        try {
+            t.commit();
+            Thread.sleep(5 * BufferPool.CLEANER_INTERVAL_MS);
+        } finally {
+            file.delete();
+        }
+
+        try {
+            Database.getBufferPool().flushAllPages();
+            fail("expected the cleaner's failure");
+        } catch (IOException e) {
+            assertNotNull(e.getCause());
+        }
+        // the pages are written, and the failure is reported once
+        Database.getBufferPool().flushAllPages();
+        assertEquals(0, Database.getBufferPool().getNumPendingWrites());
+    }
+
+    /**
+     * Aborting keeps committed changes that are not on disk yet, and
+     * undoes stolen pages
+     */
+    @Test public void abortAfterNoForceCommit() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 0, 10);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 10, TUPLES_PER_PAGE * (POOL_PAGES + 1));
+        t2.abort();
+
+        assertEquals(10, count(hf));
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(POOL_PAGES);
+        assertEquals(10, count(hf));
+    }
+
+    /**
+     * Recovery undoes stolen pages of a transaction that never committed
+     */
+    @Test public void crashWithStolenPages() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 0, 10);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 10, TUPLES_PER_PAGE * (POOL_PAGES + 1));
+
+        crash();
+        assertEquals(10, count(hf));
+    }
+}